@@ -0,0 +1,263 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Deletes accounts in the background.
+ *
+ * A deletion starts with one short transaction on the caller's connection:
+ * the account's password is replaced by one that never verifies, and the
+ * account is recorded in ACCOUNT_DELETION.  The rest runs on a thread with
+ * its own connection, in short auto-committed steps, so the user's session
+ * goes on at once and nothing holds locks on MESSAGE for long:
+ *
+ *   - chats the user owns go to the member with the lowest user id; chats
+ *     nobody else is in are deleted the way ChatPurge deletes them;
+ *   - the user leaves every other chat;
+ *   - their messages are handed to the tombstone user (user id 0, shown as
+ *     [deleted]) MESSAGES_PER_CHUNK rows at a time, through the sender_id
+ *     index;
+ *   - archived messages are handed over too, by renaming the sender in
+ *     the archive's segments (see ChatArchive.renameSender);
+ *   - one last small transaction catches whatever arrived in the meantime
+ *     and removes the user with their contact and block lists.
+ *
+ * Progress is kept in the ACCOUNT_DELETION row.  Each client works only on
+ * the rows it has claimed: claimed_by holds an id made up when the client
+ * starts, and claimed_at is renewed after every chunk.  open() claims the
+ * rows nobody holds, and the rows whose claim has not been renewed for
+ * CLAIM_TIMEOUT (their client died); close() hands back what it did not
+ * finish, which the next client to start carries on with.
+ *
+ */
+public class AccountDeletion {
+
+   public static final int TOMBSTONE_ID = 0;
+   public static final String TOMBSTONE_LOGIN = "[deleted]";
+
+   private static final int MESSAGES_PER_CHUNK = 5000;
+   private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+   private static final String CLAIM_TIMEOUT = "10 minutes";
+   // starts like a hash but is not one, so Credentials never accepts a password for it
+   private static final String LOCKED_PASSWORD = "pbkdf2$deleted";
+
+   // queued by close(); user ids start at 1
+   private static final Integer STOP = -1;
+
+   // claimed_by of the rows this client works on
+   private final String _claim = UUID.randomUUID().toString();
+   private final Messenger _connection;
+   private final UserDirectory _directory;
+   private final BlockingQueue<Integer> _queue = new LinkedBlockingQueue<Integer>();
+   private final Thread _worker;
+   private volatile boolean _stopping = false;
+
+   // the deletion being worked on, for progress()
+   private volatile String _login = null;
+   private volatile int _moved = 0;
+   private volatile int _total = 0;
+
+   /**
+    * Starts the deletion thread, and claims and queues the deletions no
+    * other client is working on.
+    *
+    * @param connection a connection used only by the deletion thread
+    * @param directory the logins and user ids, updated as accounts go
+    * @throws java.sql.SQLException when the unfinished deletions cannot be read
+    */
+   public static AccountDeletion open (Messenger connection, UserDirectory directory) throws SQLException {
+      AccountDeletion deletions = new AccountDeletion(connection, directory);
+      // a row another client claims first is skipped: the second UPDATE waits for it and finds it claimed
+      connection.executeUpdate(String.format(
+         "UPDATE ACCOUNT_DELETION SET claimed_by = '%s', claimed_at = LOCALTIMESTAMP(0) " +
+         "WHERE claimed_by IS NULL OR claimed_at < LOCALTIMESTAMP(0) - interval '%s'",
+         deletions._claim, CLAIM_TIMEOUT));
+      for (List<String> row : connection.executeQueryAndReturnResult(String.format(
+            "SELECT user_id FROM ACCOUNT_DELETION WHERE claimed_by = '%s' ORDER BY requested_at", deletions._claim)))
+         deletions._queue.add(Integer.parseInt(row.get(0).trim()));
+      return deletions;
+   }//end open
+
+   private AccountDeletion (Messenger connection, UserDirectory directory) {
+      this._connection = connection;
+      this._directory = directory;
+      this._worker = new Thread(new Runnable() {
+         public void run () {
+            work();
+         }
+      }, "account deletion");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end AccountDeletion
+
+   /**
+    * Locks an account and queues its deletion.
+    *
+    * @param esql the caller's connection
+    * @param login the account to delete
+    * @throws java.sql.SQLException when there is no such account or it is already being deleted
+    */
+   public void request (Messenger esql, String login) throws SQLException {
+      int userID = this._directory.id(esql, login);
+      if (userID < 0 || userID == TOMBSTONE_ID)
+         throw new SQLException("User " + login + " does not exist");
+
+      // one transaction: a locked account always has its ACCOUNT_DELETION row
+      esql.executeUpdate(String.format(
+         "UPDATE USR SET password = '%s' WHERE user_id = %d; " +
+         "INSERT INTO ACCOUNT_DELETION (user_id, login, requested_at, claimed_by, claimed_at) " +
+         "VALUES (%d, '%s', LOCALTIMESTAMP(0), '%s', LOCALTIMESTAMP(0))",
+         LOCKED_PASSWORD, userID, userID, login, this._claim));
+      this._queue.add(userID);
+   }//end request
+
+   /**
+    * How far the deletion being worked on has got, or null if there is none.
+    */
+   public String progress () {
+      String login = this._login;
+      if (login == null)
+         return null;
+      return String.format("%s: %d/%d messages moved", login, this._moved, this._total);
+   }
+
+   /**
+    * Stops after the current step, hands back the deletions not finished and
+    * closes the connection.  What is left carries on the next time a client
+    * starts.
+    */
+   public void close () {
+      this._stopping = true;
+      this._queue.add(STOP);
+      try{
+         this._worker.join(CLOSE_TIMEOUT_MILLIS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+
+      String progress = progress();
+      if (progress != null)
+         System.out.println("\n\tAccount deletion paused at " + progress + "; it carries on next time.");
+      // a thread still in a step is using the connection; its claims run out after CLAIM_TIMEOUT instead
+      if (!this._worker.isAlive()) {
+         try{
+            this._connection.executeUpdate(String.format(
+               "UPDATE ACCOUNT_DELETION SET claimed_by = NULL, claimed_at = NULL WHERE claimed_by = '%s'", this._claim));
+         }catch (SQLException e){
+            System.err.println("\tCould not hand back account deletions: " + e.getMessage());
+         }//end try
+      }
+      this._connection.cleanup();
+   }//end close
+
+   /**
+    * Prints the deletions still to finish, for the admin command.
+    *
+    * @param esql the connection to read them through
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static void report (Messenger esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT login, requested_at, messages_moved, messages_total FROM ACCOUNT_DELETION ORDER BY requested_at");
+      System.out.println("\t" + rows.size() + " account deletion(s) to finish.");
+      for (List<String> row : rows)
+         System.out.println(String.format("\t%s requested %s: %s/%s messages moved",
+            row.get(0).trim(), row.get(1).trim(), row.get(2).trim(), row.get(3).trim()));
+   }//end report
+
+   private void work () {
+      while (true) {
+         Integer userID;
+         try{
+            userID = this._queue.take();
+         }catch (InterruptedException e){
+            return;
+         }//end try
+         if (userID.equals(STOP))
+            return;
+
+         try{
+            if (delete(userID))
+               this._login = null;
+         }catch (SQLException e){
+            this._login = null;
+            System.err.println("\tDeleting account " + userID + " failed: " + e.getMessage());
+         }//end try
+         if (this._stopping)
+            return;
+      }//end while
+   }//end work
+
+   // Runs one deletion, from wherever an earlier run left it; false if close() cut it short.
+   private boolean delete (int userID) throws SQLException {
+      Messenger esql = this._connection;
+      // gone, or taken over by another client after this one's claim ran out
+      List<List<String>> job = esql.executeQueryAndReturnResult(String.format(
+         "SELECT D.login, U.block_list, U.contact_list, D.messages_moved FROM ACCOUNT_DELETION D, USR U " +
+         "WHERE D.user_id = %d AND U.user_id = D.user_id AND D.claimed_by = '%s'", userID, this._claim));
+      if (job.isEmpty())
+         return true;
+      String login = job.get(0).get(0).trim();
+      String blockList = job.get(0).get(1);
+      String contactList = job.get(0).get(2);
+
+      this._moved = Integer.parseInt(job.get(0).get(3).trim());
+      this._total = this._moved + Integer.parseInt(esql.executeQueryAndReturnResult(String.format(
+         "SELECT COUNT(*) FROM MESSAGE WHERE sender_id = %d", userID)).get(0).get(0).trim());
+      this._login = login;
+      esql.executeUpdate(String.format(
+         "UPDATE ACCOUNT_DELETION SET messages_total = %d, claimed_at = LOCALTIMESTAMP(0) WHERE user_id = %d",
+         this._total, userID));
+
+      // owned chats with anyone else in them change hands; the rest are deleted
+      esql.executeUpdate(String.format(
+         "UPDATE CHAT SET owner_id = " +
+         "(SELECT MIN(L.member_id) FROM CHAT_LIST L WHERE L.chat_id = CHAT.chat_id AND L.member_id <> %d) " +
+         "WHERE owner_id = %d AND EXISTS " +
+         "(SELECT 1 FROM CHAT_LIST L WHERE L.chat_id = CHAT.chat_id AND L.member_id <> %d)",
+         userID, userID, userID));
+      for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+            "SELECT chat_id FROM CHAT WHERE owner_id = %d", userID)))
+         ChatPurge.purgeChat(esql, Integer.parseInt(row.get(0).trim()));
+
+      // every chat counted and logged once rather than per member row (see leave_chats)
+      esql.executeQueryAndReturnResult(String.format("SELECT leave_chats(%d)", userID));
+
+      String chunk = String.format(
+         "UPDATE MESSAGE SET sender_id = %d WHERE msg_id IN " +
+         "(SELECT msg_id FROM MESSAGE WHERE sender_id = %d LIMIT %d)", TOMBSTONE_ID, userID, MESSAGES_PER_CHUNK);
+      int rowCount;
+      do {
+         if (this._stopping)
+            return false;
+         rowCount = esql.executeUpdate(chunk);
+         this._moved += rowCount;
+         esql.executeUpdate(String.format(
+            "UPDATE ACCOUNT_DELETION SET messages_moved = %d, claimed_at = LOCALTIMESTAMP(0) WHERE user_id = %d",
+            this._moved, userID));
+      } while (rowCount == MESSAGES_PER_CHUNK);
+
+      // before the account goes, so a deletion cut short here renames them when it carries on
+      try{
+         Messenger.archive.renameSender(login, TOMBSTONE_LOGIN);
+      }catch (java.io.IOException e){
+         throw new SQLException("Could not rename " + login + " in the archive: " + e.getMessage());
+      }//end try
+
+      // anything posted, or any chat joined, since the steps above goes with the account
+      esql.executeUpdate(String.format(
+         "UPDATE MESSAGE SET sender_id = %d WHERE sender_id = %d; " +
+         "UPDATE CHAT SET owner_id = %d WHERE owner_id = %d; " +
+         "DELETE FROM CHAT_LIST WHERE member_id = %d; " +
+         "DELETE FROM ACCOUNT_DELETION WHERE user_id = %d; " +
+         "DELETE FROM USR WHERE user_id = %d; " +
+         "DELETE FROM USER_LIST WHERE list_id IN (%s, %s)",
+         TOMBSTONE_ID, userID, TOMBSTONE_ID, userID, userID, userID, userID, blockList, contactList));
+
+      this._directory.remove(login);
+      return true;
+   }//end delete
+
+}//end AccountDeletion
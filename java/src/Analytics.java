@@ -0,0 +1,337 @@
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Admin usage reports: message volume per day and per chat, the most active
+ * users, chat sizes, and contact/block list sizes.
+ *
+ * Each table is read once, through a server side cursor in batches of
+ * FETCH_SIZE rows (the JDBC driver would otherwise load a whole result into
+ * memory), all in one read-only snapshot so the reports agree with each
+ * other.  Batches are aggregated on a thread pool while the next one is
+ * fetched; when the pool falls behind, the fetching thread aggregates a
+ * batch itself, so only a few batches are ever held at once.  Everything
+ * is counted into arrays indexed by chat, list or user and into fixed size
+ * sketches, so memory depends on the number of chats and users, not on the
+ * number of messages.
+ *
+ */
+public class Analytics {
+
+   private static final int FETCH_SIZE = 10000;
+   private static final int DAYS_SHOWN = 14;
+   private static final int TOP_USERS = 10;
+   private static final int HLL_PRECISION = 12;
+
+   private final Messenger _esql;
+   private final ThreadPoolExecutor _pool;
+
+   // filled by the aggregation threads; each has its own Partial
+   private final List<Partial> _partials = Collections.synchronizedList(new ArrayList<Partial>());
+   private final ThreadLocal<Partial> _partial = new ThreadLocal<Partial>() {
+      protected Partial initialValue () {
+         Partial partial = new Partial(Analytics.this._days);
+         Analytics.this._partials.add(partial);
+         return partial;
+      }
+   };
+
+   private int[] _ids;
+   private String[] _logins;
+   private int _firstDay;
+   private int _days;
+   private AtomicIntegerArray _userMessages;
+   private AtomicIntegerArray _chatMessages;
+   private AtomicIntegerArray _chatFirstDay;
+   private AtomicIntegerArray _chatLastDay;
+   private AtomicIntegerArray _chatMembers;
+   private AtomicIntegerArray _listMembers;
+   private byte[] _listIsBlock;
+
+   // per thread counters for messages, merged when the report is printed
+   private static class Partial {
+      final long[] messages;
+      final HyperLogLog[] senders;
+      final HyperLogLog allSenders = new HyperLogLog(HLL_PRECISION);
+
+      Partial (int days) {
+         this.messages = new long[days];
+         this.senders = new HyperLogLog[days];
+         for (int d = 0; d < days; ++d)
+            this.senders[d] = new HyperLogLog(HLL_PRECISION);
+      }
+   }//end Partial
+
+   // Aggregates one fetched batch; runs on any thread.
+   private interface Batch {
+      void rows (List<List<String>> rows);
+   }
+
+   private Analytics (Messenger esql) {
+      this._esql = esql;
+      int threads = Runtime.getRuntime().availableProcessors();
+      this._pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(2 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+   }
+
+   /**
+    * Computes and prints all reports.
+    *
+    * @param esql the connection to read through
+    * @throws Exception when a query or an aggregation fails
+    */
+   public static void run (Messenger esql) throws Exception {
+      Analytics analytics = new Analytics(esql);
+      try{
+         analytics.collect();
+      }finally{
+         analytics._pool.shutdown();
+      }//end try
+      analytics.print();
+   }//end run
+
+   private void collect () throws Exception {
+      long started = System.currentTimeMillis();
+      this._esql.executeUpdate("BEGIN ISOLATION LEVEL SERIALIZABLE READ ONLY");
+      try{
+         collectAll();
+      }finally{
+         this._esql.executeUpdate("COMMIT");
+      }//end try
+      System.out.println(String.format("\tRead everything in %.1f s.", (System.currentTimeMillis() - started) / 1000.0));
+   }//end collect
+
+   private void collectAll () throws Exception {
+      List<String> bounds = this._esql.executeQueryAndReturnResult(
+         "SELECT (SELECT MAX(chat_id) FROM CHAT), (SELECT MAX(list_id) FROM USER_LIST), " +
+         "(SELECT CAST(floor(EXTRACT(EPOCH FROM MIN(msg_timestamp)) / 86400) AS integer) FROM MESSAGE), " +
+         "(SELECT CAST(floor(EXTRACT(EPOCH FROM MAX(msg_timestamp)) / 86400) AS integer) FROM MESSAGE)").get(0);
+      int chats = parse(bounds.get(0), -1) + 1;
+      int lists = parse(bounds.get(1), -1) + 1;
+      this._firstDay = parse(bounds.get(2), 0);
+      this._days = parse(bounds.get(3), -1) - this._firstDay + 1;
+
+      // users: sorted ids with their logins, so a sender's counter is found by binary search
+      final List<List<String>> users = Collections.synchronizedList(new ArrayList<List<String>>());
+      stream("SELECT user_id, login FROM USR", new Batch() {
+         public void rows (List<List<String>> rows) {
+            users.addAll(rows);
+         }
+      });
+      this._ids = new int[users.size()];
+      this._logins = new String[users.size()];
+      for (int i = 0; i < this._ids.length; ++i) {
+         this._ids[i] = Integer.parseInt(users.get(i).get(0));
+         this._logins[i] = users.get(i).get(1).trim();
+      }
+      // batches may have been added out of order
+      sortByID(this._ids, this._logins);
+      this._userMessages = new AtomicIntegerArray(this._logins.length);
+
+      this._chatMessages = new AtomicIntegerArray(chats);
+      this._chatFirstDay = new AtomicIntegerArray(chats);
+      this._chatLastDay = new AtomicIntegerArray(chats);
+      for (int c = 0; c < chats; ++c)
+         this._chatFirstDay.set(c, Integer.MAX_VALUE);
+      stream("SELECT chat_id, sender_id, CAST(floor(EXTRACT(EPOCH FROM msg_timestamp) / 86400) AS integer) FROM MESSAGE",
+         new Batch() {
+            public void rows (List<List<String>> rows) { messages(rows); }
+         });
+
+      this._chatMembers = new AtomicIntegerArray(chats);
+      stream("SELECT chat_id FROM CHAT_LIST", new Batch() {
+         public void rows (List<List<String>> rows) {
+            for (List<String> row : rows)
+               Analytics.this._chatMembers.incrementAndGet(Integer.parseInt(row.get(0).trim()));
+         }
+      });
+
+      // each list writes only its own slot, and the pool finishes a stream before the next starts
+      this._listIsBlock = new byte[lists];
+      stream("SELECT list_id, list_type FROM USER_LIST", new Batch() {
+         public void rows (List<List<String>> rows) {
+            for (List<String> row : rows)
+               Analytics.this._listIsBlock[Integer.parseInt(row.get(0).trim())] =
+                  (byte) (row.get(1).trim().equals("block") ? 1 : 0);
+         }
+      });
+
+      this._listMembers = new AtomicIntegerArray(lists);
+      stream("SELECT list_id FROM USER_LIST_CONTAINS", new Batch() {
+         public void rows (List<List<String>> rows) {
+            for (List<String> row : rows)
+               Analytics.this._listMembers.incrementAndGet(Integer.parseInt(row.get(0).trim()));
+         }
+      });
+   }//end collectAll
+
+   private void messages (List<List<String>> rows) {
+      Partial partial = this._partial.get();
+      for (List<String> row : rows) {
+         if (row.get(0) == null)
+            continue;
+         int chat = Integer.parseInt(row.get(0).trim());
+         int day = Integer.parseInt(row.get(2).trim()) - this._firstDay;
+
+         this._chatMessages.incrementAndGet(chat);
+         lowerTo(this._chatFirstDay, chat, day);
+         raiseTo(this._chatLastDay, chat, day);
+         ++partial.messages[day];
+
+         if (row.get(1) == null)
+            continue;
+         String sender = row.get(1).trim();
+         long hash = HyperLogLog.hash(sender);
+         partial.senders[day].add(hash);
+         partial.allSenders.add(hash);
+         int user = Arrays.binarySearch(this._ids, Integer.parseInt(sender));
+         if (user >= 0)
+            this._userMessages.incrementAndGet(user);
+      }//end for
+   }//end messages
+
+   private static void sortByID (int[] ids, String[] logins) {
+      long[] order = new long[ids.length];
+      for (int i = 0; i < ids.length; ++i)
+         order[i] = (long) ids[i] << 32 | i;
+      Arrays.sort(order);
+      String[] sorted = new String[logins.length];
+      for (int i = 0; i < order.length; ++i) {
+         ids[i] = (int) (order[i] >>> 32);
+         sorted[i] = logins[(int) order[i]];
+      }
+      System.arraycopy(sorted, 0, logins, 0, sorted.length);
+   }
+
+   private static void lowerTo (AtomicIntegerArray array, int i, int value) {
+      int old;
+      while (value < (old = array.get(i)) && !array.compareAndSet(i, old, value)) { }
+   }
+
+   private static void raiseTo (AtomicIntegerArray array, int i, int value) {
+      int old;
+      while (value > (old = array.get(i)) && !array.compareAndSet(i, old, value)) { }
+   }
+
+   /*
+    * Reads a query through a cursor, FETCH_SIZE rows at a time, handing
+    * each batch to the pool, and waits until all batches are aggregated.
+    */
+   private void stream (String query, final Batch batch) throws SQLException, InterruptedException, ExecutionException {
+      List<Future<?>> pending = new ArrayList<Future<?>>();
+      this._esql.executeUpdate("DECLARE analytics NO SCROLL CURSOR FOR " + query);
+      while (true) {
+         final List<List<String>> rows = this._esql.executeQueryAndReturnResult("FETCH FORWARD " + FETCH_SIZE + " FROM analytics");
+         if (rows.isEmpty())
+            break;
+         pending.add(this._pool.submit(new Runnable() {
+            public void run () { batch.rows(rows); }
+         }));
+         if (rows.size() < FETCH_SIZE)
+            break;
+      }//end while
+      this._esql.executeUpdate("CLOSE analytics");
+
+      for (Future<?> future : pending)
+         future.get();
+   }//end stream
+
+   private void print () {
+      Partial total = new Partial(this._days);
+      for (Partial partial : this._partials) {
+         for (int d = 0; d < this._days; ++d) {
+            total.messages[d] += partial.messages[d];
+            total.senders[d].merge(partial.senders[d]);
+         }
+         total.allSenders.merge(partial.allSenders);
+      }//end for
+
+      long messages = 0;
+      for (long count : total.messages)
+         messages += count;
+
+      System.out.println("\n\t=== Messages ===");
+      System.out.println(String.format("\t%d messages over %d days from about %d distinct senders",
+         messages, Math.max(0, this._days), total.allSenders.estimate()));
+
+      SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+      date.setTimeZone(TimeZone.getTimeZone("UTC"));
+      System.out.println("\t   Day           Messages   Senders (approx.)");
+      for (int d = Math.max(0, this._days - DAYS_SHOWN); d < this._days; ++d)
+         System.out.println(String.format("\t   %s %11d %9d",
+            date.format(new Date((this._firstDay + d) * 86400000L)), total.messages[d], total.senders[d].estimate()));
+
+      QuantileSketch perChatDay = new QuantileSketch();
+      for (int c = 0; c < this._chatMessages.length(); ++c)
+         if (this._chatMessages.get(c) > 0)
+            perChatDay.add((double) this._chatMessages.get(c) / (this._chatLastDay.get(c) - this._chatFirstDay.get(c) + 1));
+      printQuantiles("Messages per chat per day (first to last message)", perChatDay);
+
+      System.out.println("\n\t=== Most active users ===");
+      for (int user : topUsers())
+         System.out.println(String.format("\t   %-50s %d", this._logins[user], this._userMessages.get(user)));
+
+      System.out.println("\n\t=== Chats ===");
+      QuantileSketch chatSizes = new QuantileSketch();
+      long[] sizeBuckets = new long[32];
+      for (int c = 0; c < this._chatMembers.length(); ++c) {
+         int size = this._chatMembers.get(c);
+         if (size > 0) {
+            chatSizes.add(size);
+            ++sizeBuckets[31 - Integer.numberOfLeadingZeros(size)];
+         }
+      }
+      printQuantiles("Members per chat", chatSizes);
+      for (int b = 0; b < sizeBuckets.length; ++b)
+         if (sizeBuckets[b] > 0)
+            System.out.println(String.format("\t   %7d - %-7d members: %d chats", 1 << b, (2 << b) - 1, sizeBuckets[b]));
+
+      System.out.println("\n\t=== Contacts and blocks ===");
+      QuantileSketch contacts = new QuantileSketch();
+      QuantileSketch blocks = new QuantileSketch();
+      for (int l = 0; l < this._listMembers.length(); ++l)
+         (this._listIsBlock[l] == 1 ? blocks : contacts).add(this._listMembers.get(l));
+      printQuantiles("Contacts per user", contacts);
+      printQuantiles("Blocked users per user", blocks);
+   }//end print
+
+   private static void printQuantiles (String title, QuantileSketch sketch) {
+      System.out.println(String.format("\t%s (%d): p50 %.1f  p90 %.1f  p99 %.1f  max %.1f", title, sketch.count(),
+         sketch.quantile(0.5), sketch.quantile(0.9), sketch.quantile(0.99), sketch.max()));
+   }
+
+   // Users with the most messages, most first.
+   private int[] topUsers () {
+      int[] top = new int[Math.min(TOP_USERS, this._logins.length)];
+      int found = 0;
+      for (int user = 0; user < this._logins.length; ++user) {
+         int count = this._userMessages.get(user);
+         if (count == 0 || (found == top.length && count <= this._userMessages.get(top[found - 1])))
+            continue;
+         int i = found < top.length ? found++ : found - 1;
+         while (i > 0 && this._userMessages.get(top[i - 1]) < count) {
+            top[i] = top[i - 1];
+            --i;
+         }
+         top[i] = user;
+      }//end for
+      return Arrays.copyOf(top, found);
+   }//end topUsers
+
+   private static int parse (String value, int ifNull) {
+      return value == null ? ifNull : Integer.parseInt(value.trim());
+   }
+
+}//end Analytics
@@ -0,0 +1,638 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Archive of cold chat history.  Old messages are moved out of MESSAGE into
+ * local segment files so the hot table only holds recent rows.
+ *
+ * Layout: <archive dir>/chat_<chat_id>/<first ms>-<last ms>-<first msg_id>.seg
+ * plus a matching .idx file.  A segment holds up to ROWS_PER_SEGMENT messages
+ * of one chat in seq order, cut into blocks of ROWS_PER_BLOCK rows.  Each
+ * block stores its five columns (msg_id, timestamp, sender, text, seq)
+ * separately, each Deflate-compressed.  Ids, timestamps and seqs are delta
+ * encoded and senders go through a per-segment dictionary.  The .idx file has
+ * the time and seq ranges, the sender dictionary and the offset, lengths and
+ * first seq of every block.  It is written last, so a segment without one is
+ * incomplete and gets ignored.
+ *
+ * Segments written before messages had a seq (MAGIC_V1) have no seq column.
+ * They are all older than anything numbered, so their rows are numbered
+ * backwards from 0 in timestamp order when the segments are read.
+ *
+ * Reads memory-map the .seg file and only inflate the blocks they need.
+ * Archived messages are read only: editing and deleting go through MESSAGE.
+ * The one exception is the sender dictionary, which renameSender rewrites
+ * when an account is deleted.
+ *
+ */
+public class ChatArchive {
+
+   private static final int MAGIC_V1 = 0x43434152;
+   private static final int MAGIC = 0x43434132;
+   private static final int ROWS_PER_SEGMENT = 10000;
+   private static final int ROWS_PER_BLOCK = 512;
+   private static final int COLUMNS = 5;
+   private static final int COLUMNS_V1 = 4;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static class Block {
+      int rows;
+      long offset;
+      long firstSeq;
+      int[] lengths = new int[COLUMNS];
+      int[] rawLengths = new int[COLUMNS];
+   }//end Block
+
+   private static class Segment {
+      File data;
+      boolean numbered;
+      int rows;
+      long minMillis;
+      long maxMillis;
+      long minSeq;
+      long maxSeq;
+      String[] senders;
+      Block[] blocks;
+      MappedByteBuffer map;
+   }//end Segment
+
+   private static class ChatSegments {
+      long modified;
+      List<Segment> newestFirst;
+   }//end ChatSegments
+
+   private final File _dir;
+   private final Map<Integer, ChatSegments> _chats = new HashMap<Integer, ChatSegments>();
+   private final Inflater _inflater = new Inflater();
+   private final Deflater _deflater = new Deflater(Deflater.BEST_COMPRESSION);
+   private final SimpleDateFormat _format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+   public ChatArchive (File dir) {
+      this._dir = dir;
+      // timestamps are stored as wall clock milliseconds, no zone conversions
+      this._format.setTimeZone(TimeZone.getTimeZone("UTC"));
+   }
+
+   /**
+    * Opens the archive in the directory named by the messenger.archive.dir
+    * system property, "archive" by default.
+    */
+   public static ChatArchive open () {
+      return new ChatArchive(new File(System.getProperty("messenger.archive.dir", "archive")));
+   }
+
+   /**
+    * Moves every message older than the given number of days from MESSAGE
+    * into segments.  Each chat is archived up to the newest seq older than
+    * the cutoff and read in pages along its (chat_id, seq) index.  A chat's
+    * newest message always stays in MESSAGE, for the chat list to show.  Each
+    * segment is synced to disk before its rows are deleted, and each delete
+    * is its own short transaction over the same seq range.
+    *
+    * @param esql the connection to read and delete through
+    * @param directory turns sender ids into the logins segments keep
+    * @param days age after which a message is archived
+    * @throws java.sql.SQLException when a query fails
+    * @throws java.io.IOException when a segment cannot be written
+    */
+   public void archive (Messenger esql, UserDirectory directory, int days) throws SQLException, IOException {
+      // fix the cutoff once so every chat is archived up to the same point
+      String cutoff = esql.executeQueryAndReturnResult(String.format(
+         "SELECT LOCALTIMESTAMP(0) - interval '%d days'", days)).get(0).get(0);
+
+      // seqs are handed out in posting order, so everything up to the newest old seq is old;
+      // stop one short of the chat's newest message
+      List<List<String>> chats = esql.executeQueryAndReturnResult(String.format(
+         "SELECT chat_id, up_to FROM (SELECT O.chat_id, " +
+         "LEAST(O.old_seq, (SELECT MAX(M.seq) FROM MESSAGE M WHERE M.chat_id = O.chat_id) - 1) AS up_to " +
+         "FROM (SELECT chat_id, MAX(seq) AS old_seq FROM MESSAGE WHERE msg_timestamp < '%s' GROUP BY chat_id) O) A " +
+         "WHERE up_to > 0", cutoff));
+      System.out.println("\t" + chats.size() + " chat(s) have messages older than " + cutoff + ".");
+
+      long archived = 0;
+      int done = 0;
+      for (List<String> chat : chats) {
+         int chatID = Integer.parseInt(chat.get(0).trim());
+         int upTo = Integer.parseInt(chat.get(1).trim());
+         // seqs start at 1
+         int after = 0;
+
+         while (true) {
+            List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+               "SELECT msg_id, msg_text, msg_timestamp, sender_id, seq FROM MESSAGE " +
+               "WHERE chat_id = %d AND seq > %d AND seq <= %d ORDER BY seq LIMIT %d",
+               chatID, after, upTo, ROWS_PER_SEGMENT));
+            if (rows.size() == 0)
+               break;
+
+            // segments outlive the users, so they keep the sender's login; a sender
+            // that is gone reads as the tombstone, as it will once its deletion finishes
+            for (List<String> row : rows) {
+               String login = row.get(3) == null ? null : directory.login(esql, Integer.parseInt(row.get(3).trim()));
+               row.set(3, login == null ? AccountDeletion.TOMBSTONE_LOGIN : login);
+            }
+
+            writeSegment(chatID, rows);
+
+            // exactly the rows that went into the segment: its seq range
+            int last = Integer.parseInt(rows.get(rows.size() - 1).get(4).trim());
+            esql.executeUpdate(String.format(
+               "DELETE FROM MESSAGE WHERE chat_id = %d AND seq > %d AND seq <= %d", chatID, after, last));
+            after = last;
+
+            archived += rows.size();
+            if (rows.size() < ROWS_PER_SEGMENT)
+               break;
+         }//end while
+
+         ++done;
+         if (done % 100 == 0 || done == chats.size())
+            System.out.println("\t" + done + "/" + chats.size() + " chats archived, " + archived + " messages moved");
+      }//end for
+   }//end archive
+
+   /**
+    * Reads the archived messages of a chat just before a seq, newest first,
+    * with the columns ChatView uses (msg_id, msg_text, msg_timestamp, sender's
+    * login, seq).  Segments and blocks at or after the seq are skipped
+    * without being inflated.
+    *
+    * @param chatID the chat to read
+    * @param beforeSeq only messages with a lower seq, Long.MAX_VALUE for the newest
+    * @param count the maximum number of messages to return
+    * @return up to count messages
+    * @throws java.io.IOException when a segment cannot be read
+    */
+   public synchronized List<List<String>> readBefore (int chatID, long beforeSeq, int count) throws IOException {
+      List<List<String>> result = new ArrayList<List<String>>();
+      List<Segment> segments = segments(chatID);
+
+      for (int s = 0; s < segments.size() && result.size() < count; ++s) {
+         Segment segment = segments.get(s);
+         if (segment.minSeq >= beforeSeq)
+            continue;
+         for (int b = segment.blocks.length - 1; b >= 0 && result.size() < count; --b) {
+            if (segment.blocks[b].firstSeq >= beforeSeq)
+               continue;
+            List<List<String>> rows = readBlock(segment, segment.blocks[b]);
+            for (int r = rows.size() - 1; r >= 0 && result.size() < count; --r)
+               if (Long.parseLong(rows.get(r).get(4)) < beforeSeq)
+                  result.add(rows.get(r));
+         }
+      }//end for
+
+      return result;
+   }//end readBefore
+
+   /**
+    * Removes everything archived for a chat, used when the chat is deleted.
+    */
+   public synchronized void deleteChat (int chatID) {
+      this._chats.remove(chatID);
+      File chatDir = chatDir(chatID);
+      File[] files = chatDir.listFiles();
+      if (files == null)
+         return;
+      for (File f : files)
+         f.delete();
+      chatDir.delete();
+   }//end deleteChat
+
+   /**
+    * Replaces a sender in the dictionary of every segment that has one, so
+    * the messages of a deleted account read as the tombstone's.  The
+    * columns stay as they are; each .idx is written next to the old one and
+    * moved over it.
+    *
+    * @param login the sender to replace
+    * @param replacement what the segments show instead
+    * @return the number of segments rewritten
+    * @throws java.io.IOException when an index cannot be read or written
+    */
+   public synchronized int renameSender (String login, String replacement) throws IOException {
+      File[] chatDirs = this._dir.listFiles();
+      if (chatDirs == null)
+         return 0;
+
+      int rewritten = 0;
+      for (File chatDir : chatDirs) {
+         File[] files = chatDir.getName().startsWith("chat_") ? chatDir.listFiles() : null;
+         if (files == null)
+            continue;
+         boolean changed = false;
+         for (File f : files)
+            if (f.getName().endsWith(".idx") && renameSender(f, login, replacement))
+               changed = true;
+         if (changed) {
+            this._chats.remove(Integer.parseInt(chatDir.getName().substring("chat_".length())));
+            ++rewritten;
+         }
+      }//end for
+      return rewritten;
+   }//end renameSender
+
+   // Copies an index with the sender replaced; false, and nothing written, if it does not have the sender.
+   private boolean renameSender (File index, String login, String replacement) throws IOException {
+      DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new FileInputStream(index)));
+      ByteArrayOutputStream copy = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(copy);
+      boolean found = false;
+      try{
+         int magic = in.readInt();
+         if (magic != MAGIC && magic != MAGIC_V1)
+            throw new IOException("Not an archive index: " + index);
+         out.writeInt(magic);
+         out.writeInt(in.readInt()); // chat id
+         out.writeInt(in.readInt()); // rows
+         for (int i = 0; i < (magic == MAGIC ? 4 : 2); ++i)
+            out.writeLong(in.readLong()); // time range, then seq range
+
+         int senders = in.readInt();
+         out.writeInt(senders);
+         for (int i = 0; i < senders; ++i) {
+            String sender = in.readUTF();
+            if (sender.equals(login)) {
+               sender = replacement;
+               found = true;
+            }
+            out.writeUTF(sender);
+         }
+
+         // the block table is copied as it is
+         byte[] buffer = new byte[8192];
+         int n;
+         while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+      }finally{
+         in.close();
+      }//end try
+      if (!found)
+         return false;
+
+      File tmp = new File(index.getParentFile(), index.getName() + ".tmp");
+      FileOutputStream tmpOut = new FileOutputStream(tmp);
+      try{
+         copy.writeTo(tmpOut);
+         tmpOut.getFD().sync();
+      }finally{
+         tmpOut.close();
+      }//end try
+      if (!tmp.renameTo(index))
+         throw new IOException("Could not move index into place: " + index);
+      return true;
+   }//end renameSender
+
+   private File chatDir (int chatID) {
+      return new File(this._dir, "chat_" + chatID);
+   }
+
+   // Segment indexes of a chat, newest first.  They are kept in memory and only
+   // read again when the chat directory changes.  Unnumbered segments come last
+   // and get their seqs here, counting down from 0.
+   private List<Segment> segments (int chatID) throws IOException {
+      File chatDir = chatDir(chatID);
+      long modified = chatDir.lastModified();
+      if (modified == 0)
+         return Collections.<Segment>emptyList();
+
+      ChatSegments cached = this._chats.get(chatID);
+      if (cached != null && cached.modified == modified)
+         return cached.newestFirst;
+
+      List<Segment> segments = new ArrayList<Segment>();
+      File[] files = chatDir.listFiles();
+      for (File f : files)
+         if (f.getName().endsWith(".idx"))
+            segments.add(readIndex(f));
+
+      Collections.sort(segments, new java.util.Comparator<Segment>() {
+         public int compare (Segment a, Segment b) {
+            if (a.numbered != b.numbered)
+               return a.numbered ? -1 : 1;
+            if (a.numbered)
+               return a.maxSeq < b.maxSeq ? 1 : (a.maxSeq > b.maxSeq ? -1 : 0);
+            return a.maxMillis < b.maxMillis ? 1 : (a.maxMillis > b.maxMillis ? -1 : 0);
+         }
+      });
+
+      long next = 0;
+      for (Segment segment : segments) {
+         if (segment.numbered)
+            continue;
+         segment.maxSeq = next;
+         segment.minSeq = next - segment.rows + 1;
+         next = segment.minSeq - 1;
+         long first = segment.minSeq;
+         for (Block block : segment.blocks) {
+            block.firstSeq = first;
+            first += block.rows;
+         }
+      }//end for
+
+      cached = new ChatSegments();
+      cached.modified = modified;
+      cached.newestFirst = segments;
+      this._chats.put(chatID, cached);
+      return segments;
+   }//end segments
+
+   private Segment readIndex (File index) throws IOException {
+      DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new FileInputStream(index)));
+      try{
+         int magic = in.readInt();
+         if (magic != MAGIC && magic != MAGIC_V1)
+            throw new IOException("Not an archive index: " + index);
+
+         Segment segment = new Segment();
+         String name = index.getName();
+         segment.data = new File(index.getParentFile(), name.substring(0, name.length() - 4) + ".seg");
+         segment.numbered = magic == MAGIC;
+         in.readInt(); // chat id
+         segment.rows = in.readInt();
+         segment.minMillis = in.readLong();
+         segment.maxMillis = in.readLong();
+         if (segment.numbered) {
+            segment.minSeq = in.readLong();
+            segment.maxSeq = in.readLong();
+         }
+
+         segment.senders = new String[in.readInt()];
+         for (int i = 0; i < segment.senders.length; ++i)
+            segment.senders[i] = in.readUTF();
+
+         segment.blocks = new Block[in.readInt()];
+         for (int i = 0; i < segment.blocks.length; ++i) {
+            Block block = new Block();
+            block.rows = in.readInt();
+            block.offset = in.readLong();
+            if (segment.numbered)
+               block.firstSeq = in.readLong();
+            for (int c = 0; c < columns(segment); ++c) {
+               block.lengths[c] = in.readInt();
+               block.rawLengths[c] = in.readInt();
+            }
+            segment.blocks[i] = block;
+         }
+         return segment;
+      }finally{
+         in.close();
+      }//end try
+   }//end readIndex
+
+   private List<List<String>> readBlock (Segment segment, Block block) throws IOException {
+      if (segment.map == null) {
+         RandomAccessFile file = new RandomAccessFile(segment.data, "r");
+         try{
+            segment.map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+         }finally{
+            file.close();
+         }//end try
+      }
+
+      ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+      long offset = block.offset;
+      for (int c = 0; c < columns(segment); ++c) {
+         byte[] compressed = new byte[block.lengths[c]];
+         ByteBuffer view = segment.map.duplicate();
+         view.position((int) offset);
+         view.get(compressed);
+         offset += block.lengths[c];
+         columns[c] = ByteBuffer.wrap(inflate(compressed, block.rawLengths[c]));
+      }
+
+      List<List<String>> rows = new ArrayList<List<String>>(block.rows);
+      long id = 0;
+      long millis = 0;
+      long seq = segment.numbered ? 0 : block.firstSeq - 1;
+      for (int r = 0; r < block.rows; ++r) {
+         id += unzigzag(readVarLong(columns[0]));
+         millis += unzigzag(readVarLong(columns[1]));
+         String sender = segment.senders[(int) readVarLong(columns[2])];
+         byte[] text = new byte[(int) readVarLong(columns[3])];
+         columns[3].get(text);
+         seq += segment.numbered ? unzigzag(readVarLong(columns[4])) : 1;
+
+         rows.add(Arrays.asList(Long.toString(id), new String(text, UTF8), formatMillis(millis), sender,
+            Long.toString(seq)));
+      }
+      return rows;
+   }//end readBlock
+
+   private static int columns (Segment segment) {
+      return segment.numbered ? COLUMNS : COLUMNS_V1;
+   }
+
+   private void writeSegment (int chatID, List<List<String>> rows) throws IOException {
+      File chatDir = chatDir(chatID);
+      chatDir.mkdirs();
+
+      long minMillis = parseMillis(rows.get(0).get(2));
+      long maxMillis = parseMillis(rows.get(rows.size() - 1).get(2));
+      String base = minMillis + "-" + maxMillis + "-" + rows.get(0).get(0).trim();
+      File data = new File(chatDir, base + ".seg");
+      File index = new File(chatDir, base + ".idx");
+      File dataTmp = new File(chatDir, base + ".seg.tmp");
+      File indexTmp = new File(chatDir, base + ".idx.tmp");
+
+      Map<String, Integer> senders = new LinkedHashMap<String, Integer>();
+      List<Block> blocks = new ArrayList<Block>();
+
+      FileOutputStream dataOut = new FileOutputStream(dataTmp);
+      try{
+         long offset = 0;
+         for (int start = 0; start < rows.size(); start += ROWS_PER_BLOCK) {
+            int end = Math.min(rows.size(), start + ROWS_PER_BLOCK);
+            ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+            for (int c = 0; c < COLUMNS; ++c)
+               columns[c] = new ByteArrayOutputStream();
+
+            // deltas restart at every block so blocks can be decoded on their own
+            long id = 0;
+            long millis = 0;
+            long seq = 0;
+            for (int r = start; r < end; ++r) {
+               List<String> row = rows.get(r);
+               long rowID = Long.parseLong(row.get(0).trim());
+               long rowMillis = parseMillis(row.get(2));
+               long rowSeq = Long.parseLong(row.get(4).trim());
+               String sender = row.get(3).trim();
+               Integer senderID = senders.get(sender);
+               if (senderID == null) {
+                  senderID = senders.size();
+                  senders.put(sender, senderID);
+               }
+               byte[] text = row.get(1).trim().getBytes(UTF8);
+
+               writeVarLong(columns[0], zigzag(rowID - id));
+               writeVarLong(columns[1], zigzag(rowMillis - millis));
+               writeVarLong(columns[2], senderID);
+               writeVarLong(columns[3], text.length);
+               columns[3].write(text);
+               writeVarLong(columns[4], zigzag(rowSeq - seq));
+               id = rowID;
+               millis = rowMillis;
+               seq = rowSeq;
+            }
+
+            Block block = new Block();
+            block.rows = end - start;
+            block.offset = offset;
+            block.firstSeq = Long.parseLong(rows.get(start).get(4).trim());
+            for (int c = 0; c < COLUMNS; ++c) {
+               byte[] raw = columns[c].toByteArray();
+               byte[] compressed = deflate(raw);
+               dataOut.write(compressed);
+               block.rawLengths[c] = raw.length;
+               block.lengths[c] = compressed.length;
+               offset += compressed.length;
+            }
+            blocks.add(block);
+         }//end for
+         dataOut.getFD().sync();
+      }finally{
+         dataOut.close();
+      }//end try
+
+      FileOutputStream indexFile = new FileOutputStream(indexTmp);
+      DataOutputStream indexOut = new DataOutputStream(new java.io.BufferedOutputStream(indexFile));
+      try{
+         indexOut.writeInt(MAGIC);
+         indexOut.writeInt(chatID);
+         indexOut.writeInt(rows.size());
+         indexOut.writeLong(minMillis);
+         indexOut.writeLong(maxMillis);
+         indexOut.writeLong(Long.parseLong(rows.get(0).get(4).trim()));
+         indexOut.writeLong(Long.parseLong(rows.get(rows.size() - 1).get(4).trim()));
+         indexOut.writeInt(senders.size());
+         for (String sender : senders.keySet())
+            indexOut.writeUTF(sender);
+         indexOut.writeInt(blocks.size());
+         for (Block block : blocks) {
+            indexOut.writeInt(block.rows);
+            indexOut.writeLong(block.offset);
+            indexOut.writeLong(block.firstSeq);
+            for (int c = 0; c < COLUMNS; ++c) {
+               indexOut.writeInt(block.lengths[c]);
+               indexOut.writeInt(block.rawLengths[c]);
+            }
+         }
+         indexOut.flush();
+         indexFile.getFD().sync();
+      }finally{
+         indexOut.close();
+      }//end try
+
+      // the index appears last: a segment is only visible once it is complete
+      if (!dataTmp.renameTo(data) || !indexTmp.renameTo(index))
+         throw new IOException("Could not move segment into place: " + data);
+   }//end writeSegment
+
+   private byte[] deflate (byte[] raw) {
+      this._deflater.reset();
+      this._deflater.setInput(raw);
+      this._deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+      byte[] buffer = new byte[8192];
+      while (!this._deflater.finished()) {
+         int n = this._deflater.deflate(buffer);
+         out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+   }
+
+   private byte[] inflate (byte[] compressed, int rawLength) throws IOException {
+      this._inflater.reset();
+      this._inflater.setInput(compressed);
+      byte[] raw = new byte[rawLength];
+      try{
+         int n = 0;
+         while (n < rawLength && !this._inflater.finished())
+            n += this._inflater.inflate(raw, n, rawLength - n);
+      }catch (DataFormatException e){
+         throw new IOException("Corrupt archive block: " + e.getMessage());
+      }//end try
+      return raw;
+   }
+
+   // PostgreSQL prints timestamps as "yyyy-MM-dd HH:mm:ss[.ffffff]"
+   private long parseMillis (String timestamp) throws IOException {
+      String value = timestamp.trim();
+      int dot = value.indexOf('.');
+      long fraction = 0;
+      if (dot >= 0) {
+         String digits = (value.substring(dot + 1) + "000").substring(0, 3);
+         fraction = Long.parseLong(digits);
+         value = value.substring(0, dot);
+      }
+      try{
+         return this._format.parse(value).getTime() + fraction;
+      }catch (ParseException e){
+         throw new IOException("Bad timestamp: " + timestamp);
+      }//end try
+   }
+
+   private String formatMillis (long millis) {
+      String value = this._format.format(new java.util.Date(millis));
+      long fraction = ((millis % 1000) + 1000) % 1000;
+      if (fraction == 0)
+         return value;
+
+      String digits = Long.toString(1000 + fraction).substring(1);
+      while (digits.endsWith("0"))
+         digits = digits.substring(0, digits.length() - 1);
+      return value + "." + digits;
+   }
+
+   private static long zigzag (long v) {
+      return (v << 1) ^ (v >> 63);
+   }
+
+   private static long unzigzag (long v) {
+      return (v >>> 1) ^ -(v & 1);
+   }
+
+   private static void writeVarLong (ByteArrayOutputStream out, long v) {
+      while ((v & ~0x7FL) != 0) {
+         out.write((int) ((v & 0x7F) | 0x80));
+         v >>>= 7;
+      }
+      out.write((int) v);
+   }
+
+   private static long readVarLong (ByteBuffer in) {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = in.get();
+         v |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return v;
+   }
+
+}//end ChatArchive
@@ -0,0 +1,170 @@
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints (chat ids), laid out like a Roaring
+ * bitmap.  Values are grouped by their upper 16 bits; each group keeps its
+ * lower 16 bits either as a sorted char array, while it has up to
+ * ARRAY_MAX values, or as a 65536-bit bitmap once it is denser than that.
+ * A user in a handful of chats costs a few bytes per chat, and a lookup is
+ * a binary search over the groups plus one inside the group.
+ *
+ */
+public class ChatBitmap {
+
+   // beyond this many values an array takes more room than the 8 KB bitmap
+   private static final int ARRAY_MAX = 4096;
+   private static final int WORDS = 1 << 10;
+
+   private static class Container {
+      // sorted values while bits == null
+      char[] values = new char[4];
+      long[] bits = null;
+      int size = 0;
+
+      boolean contains (char low) {
+         if (this.bits != null)
+            return (this.bits[low >>> 6] & (1L << low)) != 0;
+         return Arrays.binarySearch(this.values, 0, this.size, low) >= 0;
+      }
+
+      boolean add (char low) {
+         if (this.bits != null) {
+            long word = this.bits[low >>> 6];
+            if ((word & (1L << low)) != 0)
+               return false;
+            this.bits[low >>> 6] = word | (1L << low);
+            ++this.size;
+            return true;
+         }
+
+         int i = Arrays.binarySearch(this.values, 0, this.size, low);
+         if (i >= 0)
+            return false;
+         i = -i - 1;
+         if (this.size == ARRAY_MAX) {
+            toBits();
+            return add(low);
+         }
+         if (this.size == this.values.length)
+            this.values = Arrays.copyOf(this.values, Math.min(ARRAY_MAX, 2 * this.size));
+         System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+         this.values[i] = low;
+         ++this.size;
+         return true;
+      }//end add
+
+      boolean remove (char low) {
+         if (this.bits != null) {
+            long word = this.bits[low >>> 6];
+            if ((word & (1L << low)) == 0)
+               return false;
+            this.bits[low >>> 6] = word & ~(1L << low);
+            if (--this.size == ARRAY_MAX)
+               toValues();
+            return true;
+         }
+
+         int i = Arrays.binarySearch(this.values, 0, this.size, low);
+         if (i < 0)
+            return false;
+         System.arraycopy(this.values, i + 1, this.values, i, this.size - i - 1);
+         --this.size;
+         return true;
+      }//end remove
+
+      private void toBits () {
+         this.bits = new long[WORDS];
+         for (int i = 0; i < this.size; ++i)
+            this.bits[this.values[i] >>> 6] |= 1L << this.values[i];
+         this.values = null;
+      }
+
+      private void toValues () {
+         this.values = new char[this.size];
+         int n = 0;
+         for (int w = 0; w < WORDS; ++w)
+            for (long word = this.bits[w]; word != 0; word &= word - 1)
+               this.values[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+         this.bits = null;
+      }
+
+      void copyTo (int high, int[] out, int offset) {
+         if (this.bits == null) {
+            for (int i = 0; i < this.size; ++i)
+               out[offset + i] = high | this.values[i];
+            return;
+         }
+         for (int w = 0; w < WORDS; ++w)
+            for (long word = this.bits[w]; word != 0; word &= word - 1)
+               out[offset++] = high | w << 6 | Long.numberOfTrailingZeros(word);
+      }
+   }//end Container
+
+   // upper 16 bits of each group, sorted, and the group's container
+   private char[] _keys = new char[0];
+   private Container[] _containers = new Container[0];
+   private int _size = 0;
+
+   public boolean contains (int value) {
+      int i = Arrays.binarySearch(this._keys, (char) (value >>> 16));
+      return i >= 0 && this._containers[i].contains((char) value);
+   }
+
+   /**
+    * @return true if the value was not in the set yet
+    */
+   public boolean add (int value) {
+      char high = (char) (value >>> 16);
+      int i = Arrays.binarySearch(this._keys, high);
+      if (i < 0) {
+         i = -i - 1;
+         int n = this._keys.length;
+         this._keys = Arrays.copyOf(this._keys, n + 1);
+         this._containers = Arrays.copyOf(this._containers, n + 1);
+         System.arraycopy(this._keys, i, this._keys, i + 1, n - i);
+         System.arraycopy(this._containers, i, this._containers, i + 1, n - i);
+         this._keys[i] = high;
+         this._containers[i] = new Container();
+      }
+      if (!this._containers[i].add((char) value))
+         return false;
+      ++this._size;
+      return true;
+   }//end add
+
+   /**
+    * @return true if the value was in the set
+    */
+   public boolean remove (int value) {
+      int i = Arrays.binarySearch(this._keys, (char) (value >>> 16));
+      if (i < 0 || !this._containers[i].remove((char) value))
+         return false;
+      --this._size;
+      if (this._containers[i].size == 0) {
+         int n = this._keys.length - 1;
+         System.arraycopy(this._keys, i + 1, this._keys, i, n - i);
+         System.arraycopy(this._containers, i + 1, this._containers, i, n - i);
+         this._keys = Arrays.copyOf(this._keys, n);
+         this._containers = Arrays.copyOf(this._containers, n);
+      }
+      return true;
+   }//end remove
+
+   public int size () {
+      return this._size;
+   }
+
+   /**
+    * The values in ascending order.
+    */
+   public int[] toArray () {
+      int[] out = new int[this._size];
+      int offset = 0;
+      for (int i = 0; i < this._keys.length; ++i) {
+         this._containers[i].copyTo(this._keys[i] << 16, out, offset);
+         offset += this._containers[i].size;
+      }
+      return out;
+   }//end toArray
+
+}//end ChatBitmap
@@ -0,0 +1,110 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Admin bulk deletion of chats.  Big deletes are broken into short
+ * auto-committed chunks so no single statement holds locks on MESSAGE for
+ * long or writes one huge transaction to the WAL:
+ *
+ *   - a chat's member list goes first, so nobody can open the chat while
+ *     it is half deleted;
+ *   - its messages are then deleted MESSAGES_PER_CHUNK rows at a time,
+ *     through the (chat_id, msg_timestamp) index;
+ *   - the emptied chat finally goes through delete_chat(), which removes it
+ *     in one small transaction.
+ *
+ * Progress is printed every CHATS_PER_REPORT chats.
+ *
+ */
+public class ChatPurge {
+
+   private static final int MESSAGES_PER_CHUNK = 5000;
+   private static final int CHATS_PER_REPORT = 100;
+
+   /**
+    * Purges every chat that has had no new message and no new member for the
+    * given number of days (CHAT.last_active).  A chat nobody has posted to
+    * yet counts from when it was created.
+    *
+    * @param esql the connection to delete through
+    * @param days how long a chat has to be idle
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static void purgeIdle (Messenger esql, int days) throws SQLException {
+      String query = String.format(
+         "SELECT chat_id FROM CHAT WHERE last_active < LOCALTIMESTAMP(0) - interval '%d days' ORDER BY chat_id", days);
+
+      List<List<String>> result = esql.executeQueryAndReturnResult(query);
+      List<Integer> chats = new ArrayList<Integer>(result.size());
+      for (List<String> row : result)
+         chats.add(Integer.parseInt(row.get(0).trim()));
+
+      System.out.println("\t" + chats.size() + " chat(s) idle for more than " + days + " days.");
+      purgeChats(esql, chats);
+   }//end purgeIdle
+
+   /**
+    * Purges the given chats, reporting progress as it goes.
+    *
+    * @param esql the connection to delete through
+    * @param chats the ids of the chats to delete
+    * @throws java.sql.SQLException when a delete fails
+    */
+   public static void purgeChats (Messenger esql, List<Integer> chats) throws SQLException {
+      long started = System.currentTimeMillis();
+      long messages = 0;
+      int purged = 0;
+
+      for (int i = 0; i < chats.size(); ++i) {
+         long deleted = purgeChat(esql, chats.get(i));
+         if (deleted >= 0) {
+            ++purged;
+            messages += deleted;
+         }
+
+         if ((i + 1) % CHATS_PER_REPORT == 0 || i + 1 == chats.size())
+            System.out.println(String.format("\t%d/%d chats processed, %d purged, %d messages deleted (%d s)",
+               i + 1, chats.size(), purged, messages, (System.currentTimeMillis() - started) / 1000));
+      }//end for
+
+      System.out.println("\tPurge finished.");
+   }//end purgeChats
+
+   /**
+    * Purges one chat: members, messages in chunks, then the chat itself.
+    *
+    * @param esql the connection to delete through
+    * @param chatID the chat to delete
+    * @return the number of messages deleted, or -1 if there was no such chat
+    * @throws java.sql.SQLException when a delete fails
+    */
+   public static long purgeChat (Messenger esql, int chatID) throws SQLException {
+      // one statement for all members, counted and logged once (see clear_members)
+      esql.executeQueryAndReturnResult(String.format("SELECT clear_members(%d)", chatID));
+      long messages = deleteMessages(esql, chatID);
+
+      // nothing left in MESSAGE or CHAT_LIST, so this transaction only touches CHAT
+      String query = String.format("SELECT delete_chat(%d, NULL)", chatID);
+      boolean found = Integer.parseInt(esql.executeQueryAndReturnResult(query).get(0).get(0)) >= 0;
+      Messenger.archive.deleteChat(chatID);
+      return found ? messages : -1;
+   }//end purgeChat
+
+   // Deletes a chat's messages in chunks, each one its own short transaction.
+   private static long deleteMessages (Messenger esql, int chatID) throws SQLException {
+      String chunk = String.format(
+         "DELETE FROM MESSAGE WHERE msg_id IN " +
+         "(SELECT msg_id FROM MESSAGE WHERE chat_id = %d LIMIT %d)", chatID, MESSAGES_PER_CHUNK);
+
+      long deleted = 0;
+      int rowCount;
+      do {
+         rowCount = esql.executeUpdate(chunk);
+         deleted += rowCount;
+      } while (rowCount == MESSAGES_PER_CHUNK);
+
+      return deleted;
+   }//end deleteMessages
+
+}//end ChatPurge
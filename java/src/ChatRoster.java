@@ -0,0 +1,295 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of who is in which chat, for member lists and membership
+ * checks without a query.
+ *
+ * Members are kept by user id, translated to and from logins by the
+ * UserDirectory.  Each chat keeps its member ids as a sorted int array, and
+ * each member their chat ids as a ChatBitmap, so "is X in chat Y", "members
+ * of Y" and "which of these users are not in Y" are answered from memory.
+ *
+ * The index is built from CHAT_LIST once, with one cursor over the table.
+ * After that it follows CHAT_LIST_LOG: every added or removed CHAT_LIST row
+ * logs its chat and runs NOTIFY chat_roster (see log_membership), and the
+ * next lookup after the notification re-reads the rosters of the chats
+ * logged since, in one query.  Log ids are handed out before commit, so a
+ * change can commit after a later one; the last LOG_OVERLAP ids are looked
+ * at again each time for that reason.  The log only keeps an hour, so an
+ * index that has not been looked at for half that is built again.
+ *
+ */
+public class ChatRoster {
+
+   // name of the LISTEN/NOTIFY channel used to invalidate other sessions
+   public static final String CHANNEL = "chat_roster";
+
+   private static final int FETCH_SIZE = 10000;
+   private static final int LOG_OVERLAP = 100;
+   private static final int CHATS_PER_QUERY = 1000;
+   private static final long REBUILD_AFTER_MILLIS = 30 * 60 * 1000;
+   private static final int[] NO_MEMBERS = new int[0];
+
+   private final UserDirectory _directory;
+   // user id -> chats, chat -> sorted user ids
+   private final ArrayList<ChatBitmap> _chats = new ArrayList<ChatBitmap>();
+   private final HashMap<Integer, int[]> _members = new HashMap<Integer, int[]>();
+
+   private boolean _built = false;
+   private long _checkedAt;
+   // log ids already in the index, from LOG_OVERLAP below the highest up
+   private final TreeSet<Integer> _applied = new TreeSet<Integer>();
+   private int _lastChange = 0;
+
+   /**
+    * @param directory translates between logins and the user ids CHAT_LIST holds
+    */
+   public ChatRoster (UserDirectory directory) {
+      this._directory = directory;
+   }
+
+   /**
+    * Subscribes the connection to membership changes from other sessions.
+    */
+   public void listen (Messenger esql) throws SQLException {
+      esql.listen(CHANNEL);
+   }
+
+   /**
+    * Reads all of CHAT_LIST into the index, replacing what it held.  Call
+    * after listen(), so no change can slip in between.
+    *
+    * @param esql the connection to read through
+    * @throws java.sql.SQLException when a query fails
+    */
+   public synchronized void build (Messenger esql) throws SQLException {
+      this._built = false;
+      this._members.clear();
+      this._applied.clear();
+      this._chats.clear();
+
+      esql.executeUpdate("DELETE FROM CHAT_LIST_LOG WHERE logged_at < LOCALTIMESTAMP(0) - interval '1 hour'");
+      // the table and the log position have to come from the same snapshot
+      esql.executeUpdate("BEGIN ISOLATION LEVEL SERIALIZABLE READ ONLY");
+      long[] pairs = new long[1024];
+      int n = 0;
+      try{
+         // changes committed by now are in the table; later commits of lower ids are caught up on
+         this._lastChange = 0;
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+               "SELECT change_id FROM CHAT_LIST_LOG WHERE change_id > " +
+               "(SELECT COALESCE(MAX(change_id), 0) FROM CHAT_LIST_LOG) - %d", LOG_OVERLAP))) {
+            int change = Integer.parseInt(row.get(0));
+            this._applied.add(change);
+            this._lastChange = Math.max(this._lastChange, change);
+         }
+         esql.executeUpdate("DECLARE roster NO SCROLL CURSOR FOR SELECT chat_id, member_id FROM CHAT_LIST");
+         List<List<String>> rows;
+         do {
+            rows = esql.executeQueryAndReturnResult("FETCH FORWARD " + FETCH_SIZE + " FROM roster");
+            if (n + rows.size() > pairs.length)
+               pairs = Arrays.copyOf(pairs, Math.max(2 * pairs.length, n + rows.size()));
+            // chat in the high half, so sorting puts each chat's members together
+            for (List<String> row : rows)
+               pairs[n++] = (long) Integer.parseInt(row.get(0)) << 32 | Integer.parseInt(row.get(1));
+         } while (rows.size() == FETCH_SIZE);
+         esql.executeUpdate("CLOSE roster");
+      }finally{
+         esql.executeUpdate("COMMIT");
+      }//end try
+
+      Arrays.sort(pairs, 0, n);
+      for (int start = 0, end; start < n; start = end) {
+         int chat = (int) (pairs[start] >>> 32);
+         for (end = start; end < n && (int) (pairs[end] >>> 32) == chat; ++end);
+         int[] members = new int[end - start];
+         for (int i = start; i < end; ++i) {
+            members[i - start] = (int) pairs[i];
+            chatsOf((int) pairs[i]).add(chat);
+         }
+         this._members.put(chat, members);
+      }
+
+      this._built = true;
+   }//end build
+
+   /**
+    * Returns the trimmed logins of a chat's members in login order.
+    *
+    * @param esql the connection used to catch up with changes
+    * @param chatID the chat
+    * @return its members, empty if the chat does not exist
+    * @throws java.sql.SQLException when catching up fails
+    */
+   public synchronized List<String> members (Messenger esql, int chatID) throws SQLException {
+      refresh(esql);
+      int[] ids = roster(chatID);
+      List<String> members = new ArrayList<String>(ids.length);
+      for (int id : ids) {
+         String login = this._directory.login(esql, id);
+         if (login != null)
+            members.add(login);
+      }
+      Collections.sort(members);
+      return members;
+   }//end members
+
+   /**
+    * Checks whether a user is in a chat.
+    *
+    * @param esql the connection used to catch up with changes
+    * @param login the user's login
+    * @param chatID the chat
+    * @throws java.sql.SQLException when catching up fails
+    */
+   public synchronized boolean isMember (Messenger esql, String login, int chatID) throws SQLException {
+      refresh(esql);
+      int id = this._directory.id(esql, login);
+      return id >= 0 && id < this._chats.size() && this._chats.get(id).contains(chatID);
+   }
+
+   /**
+    * Returns the number of members of a chat.
+    */
+   public synchronized int count (Messenger esql, int chatID) throws SQLException {
+      refresh(esql);
+      return roster(chatID).length;
+   }
+
+   private int[] roster (int chatID) {
+      int[] ids = this._members.get(chatID);
+      return ids == null ? NO_MEMBERS : ids;
+   }
+
+   private ChatBitmap chatsOf (int id) {
+      while (this._chats.size() <= id)
+         this._chats.add(new ChatBitmap());
+      return this._chats.get(id);
+   }
+
+   // Builds the index on first use, or catches up with the log after a notification.
+   private void refresh (Messenger esql) throws SQLException {
+      long now = System.currentTimeMillis();
+      if (!this._built || now - this._checkedAt > REBUILD_AFTER_MILLIS) {
+         // a notification from before the build is covered by it
+         esql.hasNotification(CHANNEL);
+         build(esql);
+      }
+      else if (esql.hasNotification(CHANNEL))
+         catchUp(esql);
+      this._checkedAt = now;
+   }//end refresh
+
+   private void catchUp (Messenger esql) throws SQLException {
+      List<List<String>> log = esql.executeQueryAndReturnResult(String.format(
+         "SELECT change_id, chat_id FROM CHAT_LIST_LOG WHERE change_id > %d", this._lastChange - LOG_OVERLAP));
+      TreeSet<Integer> changed = new TreeSet<Integer>();
+      for (List<String> entry : log) {
+         int change = Integer.parseInt(entry.get(0));
+         if (this._applied.add(change))
+            changed.add(Integer.parseInt(entry.get(1)));
+         this._lastChange = Math.max(this._lastChange, change);
+      }
+      this._applied.headSet(this._lastChange - LOG_OVERLAP, true).clear();
+
+      List<Integer> chats = new ArrayList<Integer>(changed);
+      for (int from = 0; from < chats.size(); from += CHATS_PER_QUERY) {
+         List<Integer> chunk = chats.subList(from, Math.min(chats.size(), from + CHATS_PER_QUERY));
+         StringBuilder ids = new StringBuilder();
+         Map<Integer, List<Integer>> rosters = new TreeMap<Integer, List<Integer>>();
+         for (int chat : chunk) {
+            ids.append(ids.length() == 0 ? "" : ",").append(chat);
+            rosters.put(chat, new ArrayList<Integer>());
+         }
+
+         for (List<String> row : esql.executeQueryAndReturnResult(
+               "SELECT chat_id, member_id FROM CHAT_LIST WHERE chat_id IN (" + ids + ")"))
+            rosters.get(Integer.parseInt(row.get(0))).add(Integer.parseInt(row.get(1)));
+
+         for (Map.Entry<Integer, List<Integer>> roster : rosters.entrySet())
+            replace(roster.getKey(), roster.getValue());
+      }//end for
+   }//end catchUp
+
+   // Swaps a chat's roster for the one read from CHAT_LIST, fixing up the members' bitmaps.
+   private void replace (int chatID, List<Integer> ids) {
+      for (int id : roster(chatID))
+         this._chats.get(id).remove(chatID);
+
+      int[] members = new int[ids.size()];
+      for (int i = 0; i < members.length; ++i) {
+         members[i] = ids.get(i);
+         chatsOf(members[i]).add(chatID);
+      }
+      Arrays.sort(members);
+      if (members.length == 0)
+         this._members.remove(chatID);
+      else
+         this._members.put(chatID, members);
+   }//end replace
+
+   /**
+    * Times member lookups of random chats: the old query, which joined every
+    * row of CHAT to the roster and deduplicated the result, against a
+    * roster read by key and the index.  Run it on datasets of different
+    * sizes (see DatasetGenerator) to see the old cost grow with the number
+    * of chats and the others stay put.
+    *
+    * @param esql the connection to query through
+    * @param lookups the number of chats to look up with each method
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static void benchmark (Messenger esql, int lookups) throws SQLException {
+      List<String> range = esql.executeQueryAndReturnResult(
+         "SELECT MIN(chat_id), MAX(chat_id), COUNT(*) FROM CHAT").get(0);
+      if (range.get(0) == null) {
+         System.out.println("\tThere are no chats.");
+         return;
+      }
+      int low = Integer.parseInt(range.get(0));
+      int high = Integer.parseInt(range.get(1));
+      System.out.println("\t" + range.get(2) + " chat(s), " + lookups + " lookup(s) each:");
+
+      int[] chats = new int[lookups];
+      Random random = new Random(lookups);
+      for (int i = 0; i < lookups; ++i)
+         chats[i] = low + random.nextInt(high - low + 1);
+
+      long start = System.nanoTime();
+      for (int chat : chats)
+         esql.executeQueryAndReturnResult(String.format(
+            "SELECT DISTINCT CL.member_id FROM CHAT C, CHAT_LIST CL WHERE %d = CL.chat_id", chat));
+      report("cross join", start, lookups);
+
+      // only CL.chat_id is constrained, which is the leading column of the primary key
+      start = System.nanoTime();
+      for (int chat : chats)
+         esql.executeQueryAndReturnResult(String.format(
+            "SELECT member_id FROM CHAT_LIST WHERE chat_id = %d ORDER BY member_id", chat));
+      report("roster query", start, lookups);
+
+      ChatRoster index = new ChatRoster(new UserDirectory());
+      start = System.nanoTime();
+      index.build(esql);
+      System.out.println(String.format("\tindex built in %.1f ms", (System.nanoTime() - start) / 1e6));
+      start = System.nanoTime();
+      for (int chat : chats)
+         index.members(esql, chat);
+      report("index", start, lookups);
+   }//end benchmark
+
+   private static void report (String method, long start, int lookups) {
+      System.out.println(String.format("\t%-14s %10.3f ms per lookup",
+         method, (System.nanoTime() - start) / 1e6 / lookups));
+   }
+
+}//end ChatRoster
@@ -0,0 +1,195 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What is needed to draw an open chat: its owner, type and member count
+ * and a page of its newest messages, read with one query.
+ *
+ * Membership is checked against the roster index (see ChatRoster), so the
+ * query itself depends only on the chat and the page size and is the same
+ * for every member.  Reads of the same chat at the same time share one
+ * query (see SingleFlight), but only within one process: every session is
+ * a process of its own, so members in different sessions each read the
+ * chat themselves, as bench-shared-reads shows.  A chat without messages
+ * still returns one row, with the message columns NULL.
+ *
+ */
+public class ChatView {
+
+   // bench-shared-reads: how long the readers get to start, and how often they read
+   private static final long READER_STARTUP_MILLIS = 5000;
+   private static final long ROUND_MILLIS = 100;
+   private static final String REPORT = "\tread-chat";
+
+   public final int chatID;
+   public final String owner;
+   public final String type;
+   public final int memberCount;
+   // msg_id, msg_text, msg_timestamp, sender's login, seq; newest first
+   public final List<List<String>> messages;
+
+   private ChatView (int chatID, String owner, String type, int memberCount, List<List<String>> messages) {
+      this.chatID = chatID;
+      this.owner = owner;
+      this.type = type;
+      this.memberCount = memberCount;
+      this.messages = messages;
+   }
+
+   /**
+    * Reads a chat for one of its members.
+    *
+    * @param esql the connection to query through
+    * @param directory turns the user ids in the chat into logins
+    * @param login the user opening the chat
+    * @param chatID the chat
+    * @param messages how many of the newest messages to read
+    * @return the chat, or null if it does not exist or the user is not in it
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static ChatView open (Messenger esql, UserDirectory directory, String login, int chatID, int messages) throws SQLException {
+      if (!Messenger.rosters.isMember(esql, login, chatID))
+         return null;
+
+      // Opening the same chat while it is being read, as any member, waits for that read instead.
+      List<List<String>> rows = esql.executeSharedQuery(pageQuery(chatID, messages));
+      if (rows.isEmpty())
+         return null;
+
+      List<String> first = rows.get(0);
+      List<List<String>> page = new ArrayList<List<String>>(rows.size());
+      for (List<String> row : rows)
+         if (row.get(3) != null) {
+            List<String> message = new ArrayList<String>(row.subList(3, 8));
+            message.set(3, login(esql, directory, message.get(3)));
+            page.add(message);
+         }
+      String owner = login(esql, directory, first.get(0));
+      return new ChatView(chatID, owner, first.get(1).trim(), Integer.parseInt(first.get(2)), page);
+   }//end open
+
+   /**
+    * Measures how many reads of an open chat are shared between sessions.
+    * Each reader is its own process, as every session of the messenger is,
+    * and opens the chat with the most members as a different member, as far
+    * as there are members enough.  The readers start their rounds at the
+    * same moments (see readRounds) and report their SingleFlight counters,
+    * which are added up here.
+    *
+    * @param dbname the database the readers connect to
+    * @param dbport its port
+    * @param user the user they connect as
+    * @param esql the connection to pick the chat through
+    * @param readers the number of reader processes
+    * @param rounds the number of times they open the chat together
+    * @throws java.lang.Exception when a reader cannot be started or fails
+    */
+   public static void benchmark (String dbname, String dbport, String user, Messenger esql,
+                                 int readers, int rounds) throws Exception {
+      List<List<String>> chat = esql.executeQueryAndReturnResult(
+         "SELECT chat_id FROM CHAT ORDER BY member_count DESC LIMIT 1");
+      if (chat.isEmpty()) {
+         System.out.println("\tThere are no chats.");
+         return;
+      }
+      int chatID = Integer.parseInt(chat.get(0).get(0).trim());
+      Messenger.rosters.build(esql);
+      List<String> members = Messenger.rosters.members(esql, chatID);
+      if (members.isEmpty()) {
+         System.out.println("\tThe chats have no members.");
+         return;
+      }
+      System.out.println(String.format("\tchat #%d, %d member(s), %d reader process(es), %d round(s)",
+         chatID, members.size(), readers, rounds));
+
+      // time for every reader to start its JVM and connect before the first round
+      long startAt = System.currentTimeMillis() + READER_STARTUP_MILLIS;
+      String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+      List<Process> processes = new ArrayList<Process>();
+      try{
+         for (int i = 0; i < readers; ++i)
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+               Messenger.class.getName(), dbname, dbport, user, "read-chat", Integer.toString(chatID),
+               members.get(i % members.size()), Integer.toString(rounds), Long.toString(startAt))
+               .redirectErrorStream(true).start());
+
+         long read = 0;
+         long ran = 0;
+         long nanos = 0;
+         for (Process process : processes) {
+            String report = null;
+            BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            for (String line = out.readLine(); line != null; line = out.readLine())
+               if (line.startsWith(REPORT))
+                  report = line;
+            if (process.waitFor() != 0 || report == null)
+               throw new IOException("A reader failed (exit code " + process.exitValue() + ")");
+            String[] counts = report.substring(REPORT.length()).trim().split(" ");
+            read += Long.parseLong(counts[0]);
+            ran += Long.parseLong(counts[1]);
+            nanos += Long.parseLong(counts[2]);
+         }//end for
+
+         System.out.println(String.format("\t%d read(s), %d went to the database, %d shared (%.1f%%), %.3f ms per read",
+            read, ran, read - ran, read == 0 ? 0.0 : 100.0 * (read - ran) / read,
+            read == 0 ? 0.0 : nanos / 1e6 / read));
+      }finally{
+         for (Process process : processes)
+            process.destroy();
+      }//end try
+   }//end benchmark
+
+   /**
+    * One reader of bench-shared-reads: opens the chat as the given member
+    * once a round, rounds starting every ROUND_MILLIS from startAt, then
+    * prints what its SingleFlight counted and how long the reads took.
+    *
+    * @param esql the connection to read through
+    * @param chatID the chat to open
+    * @param login the member to open it as
+    * @param rounds the number of times to open it
+    * @param startAt when the first round starts, in System.currentTimeMillis() terms
+    * @throws java.lang.Exception when a read fails
+    */
+   public static void readRounds (Messenger esql, int chatID, String login, int rounds, long startAt) throws Exception {
+      Messenger.rosters.build(esql);
+      SingleFlight flights = Messenger.flights;
+      long requests = flights.getRequests();
+      long executions = flights.getExecutions();
+      long nanos = 0;
+      for (int r = 0; r < rounds; ++r) {
+         long wait = startAt + r * ROUND_MILLIS - System.currentTimeMillis();
+         if (wait > 0)
+            Thread.sleep(wait);
+         long began = System.nanoTime();
+         if (open(esql, Messenger.directory, login, chatID, 10) == null)
+            throw new SQLException("Chat #" + chatID + " cannot be opened as " + login);
+         nanos += System.nanoTime() - began;
+      }
+      System.out.println(REPORT + " " + (flights.getRequests() - requests) + " "
+         + (flights.getExecutions() - executions) + " " + nanos);
+   }//end readRounds
+
+   // The page comes newest first along (chat_id, seq); the member count is kept on CHAT.
+   private static String pageQuery (int chatID, int messages) {
+      return String.format(
+         "SELECT C.owner_id, C.chat_type, C.member_count, " +
+         "M.msg_id, M.msg_text, M.msg_timestamp, M.sender_id, M.seq " +
+         "FROM CHAT C LEFT JOIN (SELECT msg_id, msg_text, msg_timestamp, sender_id, seq FROM MESSAGE " +
+         "WHERE chat_id = %d ORDER BY seq DESC LIMIT %d) M ON true " +
+         "WHERE C.chat_id = %d ORDER BY M.seq DESC",
+         chatID, messages, chatID);
+   }
+
+   // The login of a user id column, "" when it is NULL or the user is gone.
+   private static String login (Messenger esql, UserDirectory directory, String id) throws SQLException {
+      String login = id == null ? null : directory.login(esql, Integer.parseInt(id));
+      return login == null ? "" : login;
+   }
+
+}//end ChatView
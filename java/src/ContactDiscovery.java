@@ -0,0 +1,147 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds which of a list of phone numbers (an address book) belong to users,
+ * and adds those users to a contact list.
+ *
+ * Numbers go to the server as an array literal, CHUNK at a time, and are
+ * turned back into rows with generate_series, so each chunk is matched with
+ * one join over USR's unique phoneNum index.  The same join with the list
+ * checks first reports what each match is, then adds the new ones with one
+ * INSERT ... SELECT.  Users who blocked the caller, or whom the caller
+ * blocked, are left out; unlike add_contact, a block is never lifted here.
+ *
+ */
+public class ContactDiscovery {
+
+   // an array element is found by walking the array, so big arrays cost n^2
+   private static final int CHUNK = 1000;
+   private static final int PHONE_LENGTH = 16;
+
+   public final List<String> added = new ArrayList<String>();
+   public final List<String> existing = new ArrayList<String>();
+   public final List<String> blocked = new ArrayList<String>();
+   // numbers that are not valid phone numbers
+   public int invalid = 0;
+   // numbers that matched nobody
+   public int unmatched = 0;
+
+   /**
+    * Reads phone numbers from a file, separated by new lines, commas or
+    * semicolons.
+    */
+   public static List<String> read (String path) throws IOException {
+      List<String> phones = new ArrayList<String>();
+      BufferedReader in = new BufferedReader(new FileReader(path));
+      try{
+         for (String line = in.readLine(); line != null; line = in.readLine())
+            phones.addAll(split(line));
+      }finally{
+         in.close();
+      }//end try
+      return phones;
+   }//end read
+
+   /**
+    * Splits a typed list of phone numbers on commas and semicolons.
+    */
+   public static List<String> split (String list) {
+      List<String> phones = new ArrayList<String>();
+      for (String phone : list.split("[,;]"))
+         if (phone.trim().length() > 0)
+            phones.add(phone.trim());
+      return phones;
+   }
+
+   /**
+    * Matches phone numbers against USR and adds the users found to the
+    * owner's contact list.
+    *
+    * @param esql the connection to query through
+    * @param owner the login whose contact list grows
+    * @param phones the numbers, as stored, e.g. +1(180)393-1512
+    * @return who was added, who already was a contact and who was left out
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static ContactDiscovery discover (Messenger esql, String owner, Collection<String> phones) throws SQLException {
+      ContactDiscovery result = new ContactDiscovery();
+      Set<String> unique = new LinkedHashSet<String>();
+      for (String phone : phones) {
+         if (valid(phone))
+            unique.add(phone);
+         else
+            ++result.invalid;
+      }
+
+      List<String> chunk = new ArrayList<String>(CHUNK);
+      for (String phone : unique) {
+         chunk.add(phone);
+         if (chunk.size() == CHUNK) {
+            result.match(esql, owner, chunk);
+            chunk.clear();
+         }
+      }
+      if (!chunk.isEmpty())
+         result.match(esql, owner, chunk);
+      return result;
+   }//end discover
+
+   private void match (Messenger esql, String owner, List<String> phones) throws SQLException {
+      StringBuilder array = new StringBuilder("{");
+      for (String phone : phones)
+         array.append(array.length() == 1 ? "" : ",").append('"').append(phone).append('"');
+      array.append('}');
+
+      // owner O, matched user U, never the tombstone; char(16) so the join can use the phoneNum index
+      String matches = String.format(
+         "FROM USR O, USR U, (SELECT CAST(A.phones[i] AS char(%d)) AS phone " +
+         "FROM (SELECT CAST('%s' AS text[]) AS phones) A, generate_series(1, %d) i) P " +
+         "WHERE O.login = '%s' AND U.phoneNum = P.phone AND U.login <> O.login AND U.user_id <> %d",
+         PHONE_LENGTH, array, phones.size(), owner, AccountDeletion.TOMBSTONE_ID);
+      String blocks =
+         "EXISTS (SELECT 1 FROM USER_LIST_CONTAINS B WHERE B.list_id = U.block_list AND B.list_member = O.login) " +
+         "OR EXISTS (SELECT 1 FROM USER_LIST_CONTAINS B WHERE B.list_id = O.block_list AND B.list_member = U.login)";
+      String contact =
+         "EXISTS (SELECT 1 FROM USER_LIST_CONTAINS C WHERE C.list_id = O.contact_list AND C.list_member = U.login)";
+
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT U.login, CASE WHEN " + blocks + " THEN 'blocked' WHEN " + contact + " THEN 'exists' ELSE 'new' END " +
+         matches + " ORDER BY U.login");
+      this.unmatched += phones.size() - rows.size();
+
+      boolean any = false;
+      for (List<String> row : rows) {
+         String login = row.get(0).trim();
+         String state = row.get(1);
+         if (state.equals("blocked"))
+            this.blocked.add(login);
+         else if (state.equals("exists"))
+            this.existing.add(login);
+         else
+            any = true;
+      }
+      if (!any)
+         return;
+
+      // the same conditions again, so what is inserted is what was just reported as new
+      esql.executeUpdate("INSERT INTO USER_LIST_CONTAINS (list_id, list_member) SELECT O.contact_list, U.login " +
+         matches + " AND NOT (" + blocks + ") AND NOT " + contact);
+      for (List<String> row : rows)
+         if (row.get(1).equals("new"))
+            this.added.add(row.get(0).trim());
+   }//end match
+
+   // Only characters phone numbers are written with, which is also what keeps the array literal well formed.
+   private static boolean valid (String phone) {
+      return phone.length() > 0 && phone.length() <= PHONE_LENGTH && phone.matches("[0-9+()\\-. ]+");
+   }
+
+}//end ContactDiscovery
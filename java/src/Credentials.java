@@ -0,0 +1,179 @@
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Password hashing and verification.
+ *
+ * Passwords are stored as "pbkdf2$<iterations>$<salt hex>$<hash hex>".  Rows
+ * still holding a plaintext password are accepted once and rewritten with a
+ * hash on the first successful login.
+ *
+ * Hashing is deliberately slow, so it runs on a small fixed pool with a
+ * bounded queue; when the queue is full the attempt is turned away instead
+ * of piling up.  Attempts are also rate limited per login, so guessing one
+ * account's password cannot take all the CPU.  The limit lives in the
+ * database (see take_login_attempt), where every client shares it; there
+ * is no limit per client, since every client connects from the server's
+ * own host and would share a single bucket.
+ *
+ */
+public class Credentials {
+
+   public enum Result { OK, WRONG, THROTTLED, BUSY }
+
+   private static final String PREFIX = "pbkdf2$";
+   private static final int ITERATIONS = 20000;
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 160;
+
+   private static final long VERIFY_TIMEOUT_SECONDS = 10;
+
+   private final ThreadPoolExecutor _pool;
+   private final SecureRandom _random = new SecureRandom();
+
+   /**
+    * Creates the verifier
+    *
+    * @param threads the number of hashing threads
+    * @param queueSize how many hash jobs may wait for a thread
+    */
+   public Credentials (int threads, int queueSize) {
+      this._pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread(r, "credentials");
+               t.setDaemon(true);
+               return t;
+            }
+         }, new ThreadPoolExecutor.AbortPolicy());
+   }//end Credentials
+
+   /**
+    * Checks a login and password against USR.
+    *
+    * @param esql the connection to read the stored password through
+    * @param login the user's login
+    * @param password the password that was typed in
+    * @return OK, WRONG, or THROTTLED/BUSY when the attempt was not checked at all
+    * @throws java.sql.SQLException when the lookup or the rehash fails
+    */
+   public Result check (Messenger esql, String login, String password) throws SQLException {
+      List<List<String>> admitted = esql.executeQueryAndReturnResult(
+         String.format("SELECT take_login_attempt('%s')", login));
+      if (!admitted.get(0).get(0).trim().startsWith("t"))
+         return Result.THROTTLED;
+
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+         String.format("SELECT password FROM USR WHERE login = '%s' AND user_id <> %d", login, AccountDeletion.TOMBSTONE_ID));
+      if (result.size() == 0 || result.get(0).get(0) == null)
+         return Result.WRONG;
+
+      final String stored = result.get(0).get(0).trim();
+      final String typed = password;
+
+      if (!stored.startsWith(PREFIX)) {
+         // plaintext row from before hashing: compare, and on success store the hash instead
+         if (!MessageDigest.isEqual(stored.getBytes(), typed.getBytes()))
+            return Result.WRONG;
+
+         String hash = hash(typed);
+         if (hash == null)
+            return Result.OK;
+         esql.executeUpdate(String.format(
+            "UPDATE USR SET password = '%s' WHERE login = '%s' AND password = '%s'", hash, login, stored));
+         return Result.OK;
+      }
+
+      Boolean matches = run(new Callable<Boolean>() {
+         public Boolean call () throws Exception {
+            return verify(typed, stored);
+         }
+      });
+      if (matches == null)
+         return Result.BUSY;
+      return matches ? Result.OK : Result.WRONG;
+   }//end check
+
+   /**
+    * Hashes a password for storing, on the hashing pool.
+    *
+    * @param password the plaintext password
+    * @return the encoded hash, or null if the pool is saturated
+    */
+   public String hash (final String password) {
+      final byte[] salt = new byte[SALT_BYTES];
+      this._random.nextBytes(salt);
+      return run(new Callable<String>() {
+         public String call () throws Exception {
+            return PREFIX + ITERATIONS + "$" + toHex(salt) + "$" + toHex(pbkdf2(password, salt, ITERATIONS));
+         }
+      });
+   }//end hash
+
+   private static boolean verify (String password, String stored) throws Exception {
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4)
+         return false;
+      byte[] salt = fromHex(parts[2]);
+      byte[] expected = fromHex(parts[3]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, salt, Integer.parseInt(parts[1])));
+   }
+
+   private static byte[] pbkdf2 (String password, byte[] salt, int iterations) throws Exception {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+   }
+
+   // Runs a hash job on the pool; null when the pool is full or the job took too long.
+   private <T> T run (Callable<T> job) {
+      Future<T> future;
+      try{
+         future = this._pool.submit(job);
+      }catch (RejectedExecutionException e){
+         return null;
+      }//end try
+
+      try{
+         return future.get(VERIFY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }catch (TimeoutException e){
+         future.cancel(true);
+         return null;
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return null;
+      }catch (ExecutionException e){
+         throw new IllegalStateException(e.getCause());
+      }//end try
+   }//end run
+
+   private static String toHex (byte[] bytes) {
+      char[] digits = "0123456789abcdef".toCharArray();
+      char[] out = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; ++i) {
+         out[2 * i] = digits[(bytes[i] >> 4) & 0xF];
+         out[2 * i + 1] = digits[bytes[i] & 0xF];
+      }
+      return new String(out);
+   }
+
+   private static byte[] fromHex (String hex) {
+      byte[] out = new byte[hex.length() / 2];
+      for (int i = 0; i < out.length; ++i)
+         out[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return out;
+   }
+
+}//end Credentials
@@ -0,0 +1,587 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Offline integrity check of the CSV files load_data.sql copies in.
+ *
+ * Every file is memory mapped and split into byte ranges that are checked in
+ * parallel on a fork-join pool.  A range owns the lines that start inside
+ * it; ranges count their own lines, and the counts are added up as results
+ * are joined so every violation is reported with its line in the file.
+ *
+ * Each row is checked against the table definition in create_tables.sql:
+ * field count, NOT NULL, integer columns, char(n) lengths, primary key and
+ * UNIQUE duplicates, and that every foreign key names an existing row.
+ * Keys are kept in primitive sets (a paged bitmap for integer ids, an open
+ * addressing table of 64-bit hashes for logins and composite keys), filled
+ * while the parent tables are read so their children can be checked next.
+ * When two rows share a key and sit in different ranges, either one may be
+ * the one reported as the duplicate.
+ *
+ * Usage: java DatasetChecker [data directory]
+ * The exit status is 1 if any violation was found.
+ *
+ */
+public class DatasetChecker {
+
+   private static final int INT = 0;
+   private static final int TEXT = 1;
+
+   private static final int NOT_NULL = 1;
+   private static final int UNIQUE = 2;
+
+   private static final int RANGE_BYTES = 4 << 20;
+   private static final int MAX_LINE = 1 << 20;
+   private static final int MAX_REPORTED = 50;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // Mirrors create_tables.sql; the columns are in the order the CSV files (and COPY) list them.
+   private static final Table USER_LIST = new Table("USER_LIST", "usr_list.csv", new int[] {0},
+      new Column("list_id", INT, 0, NOT_NULL, null),
+      new Column("list_type", TEXT, 10, NOT_NULL, null));
+
+   private static final Table USR = new Table("USR", "usr.csv", new int[] {0},
+      new Column("login", TEXT, 50, NOT_NULL, null),
+      new Column("phoneNum", TEXT, 16, NOT_NULL | UNIQUE, null),
+      new Column("password", TEXT, 128, NOT_NULL, null),
+      new Column("status", TEXT, 140, 0, null),
+      new Column("block_list", INT, 0, 0, USER_LIST),
+      new Column("contact_list", INT, 0, 0, USER_LIST));
+
+   private static final Table USER_LIST_CONTAINS = new Table("USER_LIST_CONTAINS", "usr_list_contains.csv", new int[] {0, 1},
+      new Column("list_id", INT, 0, 0, USER_LIST),
+      new Column("list_member", TEXT, 50, 0, USR));
+
+   private static final Table CHAT = new Table("CHAT", "chat.csv", new int[] {0},
+      new Column("chat_id", INT, 0, 0, null),
+      new Column("chat_type", TEXT, 50, NOT_NULL, null),
+      new Column("init_sender", TEXT, 50, 0, USR));
+
+   private static final Table CHAT_LIST = new Table("CHAT_LIST", "chat_list.csv", new int[] {0, 1},
+      new Column("chat_id", INT, 0, 0, CHAT),
+      new Column("member", TEXT, 50, 0, USR));
+
+   private static final Table MESSAGE = new Table("MESSAGE", "message.csv", new int[] {0},
+      new Column("msg_id", INT, 0, 0, null),
+      new Column("msg_text", TEXT, 300, NOT_NULL, null),
+      new Column("msg_timestamp", TEXT, 0, NOT_NULL, null),
+      new Column("sender_login", TEXT, 50, 0, USR),
+      new Column("chat_id", INT, 0, 0, CHAT));
+
+   // Parents before children; tables on the same level are checked at the same time.
+   private static final Table[][] LEVELS = {
+      { USER_LIST },
+      { USR },
+      { CHAT },
+      { USER_LIST_CONTAINS, CHAT_LIST, MESSAGE }
+   };
+
+   public static void main (String[] args) {
+      File dir = new File(args.length > 0 ? args[0] : "data");
+      ForkJoinPool pool = new ForkJoinPool();
+      long started = System.nanoTime();
+      long rows = 0;
+      long violations = 0;
+
+      try{
+         for (Table[] level : LEVELS) {
+            List<ForkJoinTask<Report>> tasks = new ArrayList<ForkJoinTask<Report>>();
+            for (Table table : level)
+               tasks.add(table.open(dir) ? pool.submit(new RangeCheck(table, 0, table.size)) : null);
+
+            for (int i = 0; i < level.length; ++i) {
+               Table table = level[i];
+               if (tasks.get(i) == null) {
+                  System.out.println("\t" + table.file + ": missing, not checked");
+                  continue;
+               }
+               Report report = tasks.get(i).join();
+               table.close();
+               rows += report.lines;
+               violations += report.count;
+               print(table, report);
+            }//end for
+         }//end for
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+         System.exit(2);
+      }finally{
+         pool.shutdown();
+      }//end try
+
+      double seconds = (System.nanoTime() - started) / 1e9;
+      System.out.println(String.format("\tChecked %d rows in %.2f s (%.0f rows/s), %d violation(s).",
+         rows, seconds, rows / Math.max(seconds, 1e-9), violations));
+      System.exit(violations == 0 ? 0 : 1);
+   }//end main
+
+   private static void print (Table table, Report report) {
+      System.out.println(String.format("\t%s: %d rows, %d violation(s)", table.file, report.lines, report.count));
+      for (int i = 0; i < report.kept; ++i)
+         System.out.println(String.format("\t   line %d: %s", report.at[i], report.messages[i]));
+      if (report.count > report.kept)
+         System.out.println(String.format("\t   ... and %d more", report.count - report.kept));
+   }//end print
+
+   /**
+    * Checks the lines starting in [start, end) of a table's file, splitting
+    * the range in half until it is small enough to check directly.
+    */
+   private static class RangeCheck extends RecursiveTask<Report> {
+
+      // ForkJoinTask is Serializable; these tasks are never serialized
+      private static final long serialVersionUID = 1L;
+
+      private final Table _table;
+      private final long _start;
+      private final long _end;
+
+      RangeCheck (Table table, long start, long end) {
+         this._table = table;
+         this._start = start;
+         this._end = end;
+      }
+
+      protected Report compute () {
+         if (this._end - this._start <= RANGE_BYTES) {
+            try{
+               return check();
+            }catch (IOException e){
+               throw new IllegalStateException(this._table.file + ": " + e.getMessage(), e);
+            }//end try
+         }
+
+         long mid = this._start + (this._end - this._start) / 2;
+         RangeCheck left = new RangeCheck(this._table, this._start, mid);
+         left.fork();
+         Report right = new RangeCheck(this._table, mid, this._end).compute();
+         return left.join().merge(right);
+      }//end compute
+
+      private Report check () throws IOException {
+         Table table = this._table;
+         Report report = new Report();
+
+         // map from the byte before the range (to see whether a line starts on its first byte)
+         // up to far enough past its end to finish the last line
+         long base = Math.max(0, this._start - 1);
+         long length = Math.min(table.size - base, this._end - base + MAX_LINE);
+         if (length <= 0)
+            return report;
+         MappedByteBuffer buf = table.channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+         int limit = buf.limit();
+         int end = (int) (this._end - base);
+         boolean truncated = base + limit < table.size;
+
+         int p = 0;
+         if (this._start > 0) {
+            while (p < limit && buf.get(p) != '\n')
+               ++p;
+            ++p;
+         }
+
+         int[] fieldStart = new int[table.columns.length + 1];
+         int[] fieldEnd = new int[table.columns.length + 1];
+
+         while (p < end && p < limit) {
+            int fields = 0;
+            int q = p;
+            fieldStart[0] = p;
+            while (q < limit) {
+               byte b = buf.get(q);
+               if (b == '\n')
+                  break;
+               if (b == '\\')
+                  ++q;
+               else if (b == ';') {
+                  if (fields < table.columns.length)
+                     fieldEnd[fields] = q;
+                  ++fields;
+                  if (fields < fieldStart.length)
+                     fieldStart[fields] = q + 1;
+               }
+               ++q;
+            }//end while
+
+            ++report.lines;
+            if (q >= limit && truncated) {
+               report.add(report.lines, "line is longer than " + MAX_LINE + " bytes");
+               break;
+            }
+
+            int lineEnd = Math.min(q, limit);
+            if (lineEnd > p && buf.get(lineEnd - 1) == '\r')
+               --lineEnd;
+            if (fields < fieldEnd.length)
+               fieldEnd[fields] = lineEnd;
+            ++fields;
+
+            if (fields != table.columns.length)
+               report.add(report.lines, String.format("expected %d fields, found %d", table.columns.length, fields));
+            else
+               table.checkRow(buf, fieldStart, fieldEnd, report);
+
+            p = q + 1;
+         }//end while
+
+         return report;
+      }//end check
+
+   }//end RangeCheck
+
+   /**
+    * Row count and the first violations of one byte range, with line
+    * numbers counted from the start of that range.
+    */
+   private static class Report {
+
+      long lines = 0;
+      long count = 0;
+      int kept = 0;
+      long[] at = new long[MAX_REPORTED];
+      String[] messages = new String[MAX_REPORTED];
+
+      void add (long line, String message) {
+         if (this.kept < MAX_REPORTED) {
+            this.at[this.kept] = line;
+            this.messages[this.kept] = message;
+            ++this.kept;
+         }
+         ++this.count;
+      }
+
+      // Appends the report of the range right after this one, shifting its line numbers.
+      Report merge (Report next) {
+         for (int i = 0; i < next.kept && this.kept < MAX_REPORTED; ++i) {
+            this.at[this.kept] = next.at[i] + this.lines;
+            this.messages[this.kept] = next.messages[i];
+            ++this.kept;
+         }
+         this.lines += next.lines;
+         this.count += next.count;
+         return this;
+      }
+
+   }//end Report
+
+   private static class Column {
+
+      final String name;
+      final int type;
+      final int maxLength;
+      final boolean notNull;
+      final boolean unique;
+      final Table references;
+      KeySet values;
+
+      Column (String name, int type, int maxLength, int flags, Table references) {
+         this.name = name;
+         this.type = type;
+         this.maxLength = maxLength;
+         this.notNull = (flags & NOT_NULL) != 0;
+         this.unique = (flags & UNIQUE) != 0;
+         this.references = references;
+      }
+
+   }//end Column
+
+   private static class Table {
+
+      final String name;
+      final String file;
+      final Column[] columns;
+      final boolean[] inKey;
+      final int keyColumns;
+      KeySet keys;
+      boolean loaded = false;
+      RandomAccessFile raf;
+      FileChannel channel;
+      long size;
+
+      Table (String name, String file, int[] primaryKey, Column... columns) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+         this.inKey = new boolean[columns.length];
+         for (int column : primaryKey)
+            this.inKey[column] = true;
+         this.keyColumns = primaryKey.length;
+      }
+
+      boolean open (File dir) throws IOException {
+         File f = new File(dir, this.file);
+         if (!f.isFile())
+            return false;
+
+         this.raf = new RandomAccessFile(f, "r");
+         this.channel = this.raf.getChannel();
+         this.size = this.channel.size();
+
+         long rows = estimateRows();
+         boolean intKey = this.keyColumns == 1 && this.columns[firstKeyColumn()].type == INT;
+         this.keys = intKey ? new IdBitmap() : new HashedKeys(rows);
+         for (Column column : this.columns)
+            if (column.unique)
+               column.values = new HashedKeys(rows);
+         this.loaded = true;
+         return true;
+      }//end open
+
+      void close () throws IOException {
+         this.raf.close();
+         this.channel = null;
+         for (Column column : this.columns)
+            column.values = null;
+      }
+
+      private int firstKeyColumn () {
+         int i = 0;
+         while (!this.inKey[i])
+            ++i;
+         return i;
+      }
+
+      // Guesses the number of rows from the line length in the first megabyte, for sizing hash sets.
+      private long estimateRows () throws IOException {
+         int sample = (int) Math.min(this.size, MAX_LINE);
+         if (sample == 0)
+            return 0;
+         MappedByteBuffer buf = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, sample);
+         int lines = 1;
+         for (int i = 0; i < sample; ++i)
+            if (buf.get(i) == '\n')
+               ++lines;
+         return this.size / Math.max(1, sample / lines) + lines;
+      }
+
+      void checkRow (MappedByteBuffer buf, int[] fieldStart, int[] fieldEnd, Report report) {
+         long key = 0;
+         boolean keyValid = true;
+
+         for (int i = 0; i < this.columns.length; ++i) {
+            Column column = this.columns[i];
+            int s = fieldStart[i];
+            int e = fieldEnd[i];
+
+            if (e - s == 2 && buf.get(s) == '\\' && buf.get(s + 1) == 'N') {
+               if (column.notNull || this.inKey[i])
+                  report.add(report.lines, "NULL in " + column.name);
+               keyValid &= !this.inKey[i];
+               continue;
+            }
+
+            if (column.maxLength > 0) {
+               int length = charLength(buf, s, e);
+               if (length > column.maxLength)
+                  report.add(report.lines, String.format("%s is %d characters, longer than %d", column.name, length, column.maxLength));
+            }
+
+            long value;
+            if (column.type == INT) {
+               value = parseInt(buf, s, e);
+               if (value == Long.MIN_VALUE) {
+                  report.add(report.lines, String.format("%s '%s' is not an integer", column.name, text(buf, s, e)));
+                  keyValid &= !this.inKey[i];
+                  continue;
+               }
+            }
+            else if (column.unique || column.references != null || this.inKey[i])
+               value = hash(buf, s, e);
+            else
+               continue;
+
+            Table parent = column.references;
+            if (parent != null && parent.loaded && !parent.keys.contains(value))
+               report.add(report.lines, String.format("%s '%s' is not in %s (%s)", column.name, text(buf, s, e), parent.name, parent.file));
+
+            if (column.unique && !column.values.add(value))
+               report.add(report.lines, String.format("duplicate %s '%s'", column.name, text(buf, s, e)));
+
+            if (this.inKey[i])
+               key = this.keyColumns == 1 ? value : mix(key * 0x9E3779B97F4A7C15L + value);
+         }//end for
+
+         if (keyValid && !this.keys.add(key))
+            report.add(report.lines, "duplicate primary key " + keyText(buf, fieldStart, fieldEnd));
+      }//end checkRow
+
+      private String keyText (MappedByteBuffer buf, int[] fieldStart, int[] fieldEnd) {
+         StringBuilder sb = new StringBuilder("(");
+         for (int i = 0; i < this.columns.length; ++i)
+            if (this.inKey[i]) {
+               if (sb.length() > 1)
+                  sb.append(", ");
+               sb.append(text(buf, fieldStart[i], fieldEnd[i]));
+            }
+         return sb.append(')').toString();
+      }
+
+   }//end Table
+
+   // Characters in a field, counting a backslash escape as one like COPY does.
+   private static int charLength (MappedByteBuffer buf, int s, int e) {
+      int length = 0;
+      for (int i = s; i < e; ++i) {
+         byte b = buf.get(i);
+         if (b == '\\')
+            ++i;
+         if ((b & 0xC0) != 0x80)
+            ++length;
+      }
+      return length;
+   }
+
+   // The integer in a field, or Long.MIN_VALUE if it is not one.
+   private static long parseInt (MappedByteBuffer buf, int s, int e) {
+      boolean negative = s < e && buf.get(s) == '-';
+      int i = negative ? s + 1 : s;
+      if (i == e || e - i > 10)
+         return Long.MIN_VALUE;
+      long value = 0;
+      for (; i < e; ++i) {
+         int digit = buf.get(i) - '0';
+         if (digit < 0 || digit > 9)
+            return Long.MIN_VALUE;
+         value = value * 10 + digit;
+      }
+      value = negative ? -value : value;
+      return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+   }//end parseInt
+
+   // 64-bit hash of a text field without its trailing blanks, the way char(n) compares.
+   private static long hash (MappedByteBuffer buf, int s, int e) {
+      while (e > s && buf.get(e - 1) == ' ')
+         --e;
+      long h = 0xcbf29ce484222325L;
+      for (int i = s; i < e; ++i) {
+         h ^= buf.get(i) & 0xFF;
+         h *= 0x100000001b3L;
+      }
+      return mix(h);
+   }
+
+   private static long mix (long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   private static String text (MappedByteBuffer buf, int s, int e) {
+      byte[] bytes = new byte[Math.min(e - s, 60)];
+      for (int i = 0; i < bytes.length; ++i)
+         bytes[i] = buf.get(s + i);
+      return new String(bytes, UTF8).trim();
+   }
+
+   private interface KeySet {
+      // Returns false if the key was already there.
+      boolean add (long key);
+      boolean contains (long key);
+   }
+
+   /**
+    * Set of int ids as a bitmap over the whole int range, split in pages of
+    * 64K ids that are only allocated once an id in them shows up.
+    */
+   private static class IdBitmap implements KeySet {
+
+      private static final int PAGE_BITS = 16;
+      private final AtomicReferenceArray<AtomicLongArray> _pages =
+         new AtomicReferenceArray<AtomicLongArray>(1 << (32 - PAGE_BITS));
+
+      public boolean add (long key) {
+         long bit = key - Integer.MIN_VALUE;
+         int index = (int) (bit >>> PAGE_BITS);
+         AtomicLongArray page = this._pages.get(index);
+         if (page == null) {
+            this._pages.compareAndSet(index, null, new AtomicLongArray(1 << (PAGE_BITS - 6)));
+            page = this._pages.get(index);
+         }
+
+         int word = (int) (bit & ((1 << PAGE_BITS) - 1)) >>> 6;
+         long mask = 1L << (bit & 63);
+         while (true) {
+            long old = page.get(word);
+            if ((old & mask) != 0)
+               return false;
+            if (page.compareAndSet(word, old, old | mask))
+               return true;
+         }//end while
+      }//end add
+
+      public boolean contains (long key) {
+         long bit = key - Integer.MIN_VALUE;
+         AtomicLongArray page = this._pages.get((int) (bit >>> PAGE_BITS));
+         int word = (int) (bit & ((1 << PAGE_BITS) - 1)) >>> 6;
+         return page != null && (page.get(word) & (1L << (bit & 63))) != 0;
+      }
+
+   }//end IdBitmap
+
+   /**
+    * Open addressing set of 64-bit hashes, filled concurrently with
+    * compare-and-set.  0 marks an empty slot, so a hash of 0 is stored as 1.
+    */
+   private static class HashedKeys implements KeySet {
+
+      private final AtomicLongArray _slots;
+      private final int _mask;
+
+      HashedKeys (long expected) {
+         int capacity = 1024;
+         while (capacity < expected * 2 && capacity < (1 << 30))
+            capacity <<= 1;
+         this._slots = new AtomicLongArray(capacity);
+         this._mask = capacity - 1;
+      }
+
+      public boolean add (long key) {
+         if (key == 0)
+            key = 1;
+         int i = (int) key & this._mask;
+         for (int probes = 0; probes <= this._mask; ++probes) {
+            long slot = this._slots.get(i);
+            if (slot == key)
+               return false;
+            if (slot == 0) {
+               if (this._slots.compareAndSet(i, 0, key))
+                  return true;
+               continue;
+            }
+            i = (i + 1) & this._mask;
+         }//end for
+         throw new IllegalStateException("key set is full, the file has far more rows than estimated");
+      }//end add
+
+      public boolean contains (long key) {
+         if (key == 0)
+            key = 1;
+         int i = (int) key & this._mask;
+         for (int probes = 0; probes <= this._mask; ++probes) {
+            long slot = this._slots.get(i);
+            if (slot == key)
+               return true;
+            if (slot == 0)
+               return false;
+            i = (i + 1) & this._mask;
+         }
+         return false;
+      }//end contains
+
+   }//end HashedKeys
+
+}//end DatasetChecker
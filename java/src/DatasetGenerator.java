@@ -0,0 +1,457 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a synthetic data set in the format load_data.sql copies in, for
+ * trying the client against far more data than data/*.csv holds.
+ *
+ * Every file is generated in blocks of rows.  Each block draws from its own
+ * random stream, derived from the seed, the file and the block number, so
+ * the output only depends on the settings and not on the number of threads.
+ * Blocks are generated on a thread pool and written to disk in order as soon
+ * as they are done, with a bounded number in flight, so memory use does not
+ * grow with the size of the data set.
+ *
+ * Shape of the data:
+ *   - users own a block list (id 2i) and a contact list (id 2i+1) like the
+ *     sample data; contact counts follow a power law around contacts=,
+ *     block counts a geometric distribution around blocks=;
+ *   - chat sizes follow a power law (Pareto, exponent alpha=) from 2 up to
+ *     maxChat=; two-member chats are private, the rest are groups;
+ *   - messages go to chats in proportion to their size, are sent by one of
+ *     the chat's members, and spread over days= days with a rate that grows
+ *     by growth= (1 = twice as many messages per day at the end as at the
+ *     start).
+ *
+ * Usage: java DatasetGenerator <output directory> [name=value ...]
+ * e.g.   java DatasetGenerator /tmp/big users=1000000 chats=200000 messages=100000000
+ *
+ */
+public class DatasetGenerator {
+
+   private static final int ROWS_PER_BLOCK = 10000;
+   private static final int MAX_DEGREE = 5000;
+   private static final long START_SECONDS = 1388534400L; // 2014-01-01 00:00:00
+
+   private static final String[] WORDS = ("lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod " +
+      "tempor incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud exercitation " +
+      "ullamco laboris nisi aliquip ex ea commodo consequat duis aute irure in reprehenderit voluptate velit " +
+      "esse cillum eu fugiat nulla pariatur excepteur sint occaecat cupidatat non proident sunt culpa qui " +
+      "officia deserunt mollit anim id est laborum").split(" ");
+   private static final String[] NAMES = ("Judy Norma Lonny Roxanne Hardy Bethel Geo Lilla Abigale Karianne Torp " +
+      "Haley Barton Hahn Cummings Stark Kuhn Lind Wolf Hermann Mraz Bins Kiehn Rath Veum Yost Dach Ryan").split(" ");
+
+   // settings, overridable as name=value arguments
+   private long _seed = 42;
+   private int _users = 100000;
+   private int _chats = 20000;
+   private long _messages = 1000000;
+   private double _contacts = 10;
+   private double _blocks = 1;
+   private double _alpha = 1.5;
+   private int _maxChat = 1000;
+   private int _days = 365;
+   private double _growth = 1;
+   private int _threads = Runtime.getRuntime().availableProcessors();
+
+   private final File _dir;
+   private int[] _chatSize;
+   private long[] _chatWeight;
+
+   private DatasetGenerator (File dir) {
+      this._dir = dir;
+   }
+
+   public static void main (String[] args) {
+      if (args.length < 1) {
+         System.err.println("Usage: java DatasetGenerator <output directory> [seed=] [users=] [chats=] [messages=] " +
+            "[contacts=] [blocks=] [alpha=] [maxChat=] [days=] [growth=] [threads=]");
+         return;
+      }
+
+      DatasetGenerator generator = new DatasetGenerator(new File(args[0]));
+      try{
+         for (int i = 1; i < args.length; ++i)
+            generator.set(args[i]);
+         generator.run();
+      }catch (Exception e){
+         System.err.println(e.getMessage());
+         System.exit(1);
+      }//end try
+   }//end main
+
+   private void set (String arg) {
+      int eq = arg.indexOf('=');
+      String name = eq < 0 ? arg : arg.substring(0, eq);
+      String value = arg.substring(eq + 1);
+      if (name.equals("seed")) this._seed = Long.parseLong(value);
+      else if (name.equals("users")) this._users = Integer.parseInt(value);
+      else if (name.equals("chats")) this._chats = Integer.parseInt(value);
+      else if (name.equals("messages")) this._messages = Long.parseLong(value);
+      else if (name.equals("contacts")) this._contacts = Double.parseDouble(value);
+      else if (name.equals("blocks")) this._blocks = Double.parseDouble(value);
+      else if (name.equals("alpha")) this._alpha = Double.parseDouble(value);
+      else if (name.equals("maxChat")) this._maxChat = Integer.parseInt(value);
+      else if (name.equals("days")) this._days = Integer.parseInt(value);
+      else if (name.equals("growth")) this._growth = Double.parseDouble(value);
+      else if (name.equals("threads")) this._threads = Integer.parseInt(value);
+      else throw new IllegalArgumentException("Unknown setting: " + arg);
+   }//end set
+
+   private void run () throws Exception {
+      if (this._users < 2)
+         throw new IllegalArgumentException("users must be at least 2");
+      if (this._chats < 1 && this._messages > 0)
+         throw new IllegalArgumentException("messages need at least one chat");
+      if (!this._dir.isDirectory() && !this._dir.mkdirs())
+         throw new IOException("Cannot create " + this._dir);
+      this._maxChat = Math.max(2, Math.min(this._maxChat, this._users));
+
+      long started = System.currentTimeMillis();
+      ExecutorService pool = Executors.newFixedThreadPool(this._threads);
+      try{
+         planChats();
+         write(pool, "usr_list.csv", 2L * this._users, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { userLists(first, count, out); }
+         });
+         write(pool, "usr.csv", this._users, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { users(first, count, rng, out); }
+         });
+         write(pool, "usr_list_contains.csv", this._users, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { listMembers(first, count, rng, out); }
+         });
+         write(pool, "chat.csv", this._chats, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { chats(first, count, out); }
+         });
+         write(pool, "chat_list.csv", this._chats, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { chatMembers(first, count, out); }
+         });
+         write(pool, "message.csv", this._messages, new Rows() {
+            public void block (long first, int count, Rng rng, Out out) { messages(first, count, rng, out); }
+         });
+      }finally{
+         pool.shutdown();
+      }//end try
+
+      System.out.println(String.format("\tDone in %d s.", (System.currentTimeMillis() - started) / 1000));
+   }//end run
+
+   // Generates one block of rows of a file.
+   private interface Rows {
+      void block (long first, int count, Rng rng, Out out);
+   }
+
+   private void write (ExecutorService pool, String file, long rows, final Rows generator) throws Exception {
+      long started = System.currentTimeMillis();
+      final long fileSeed = this._seed ^ Rng.mix(file.hashCode());
+      long blocks = (rows + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+      Deque<Future<Out>> pending = new ArrayDeque<Future<Out>>();
+      OutputStream os = new FileOutputStream(new File(this._dir, file));
+      long bytes = 0;
+
+      try{
+         long next = 0;
+         while (next < blocks || !pending.isEmpty()) {
+            // keep every thread busy, but only a couple of finished blocks waiting for the disk
+            while (next < blocks && pending.size() < 2 * this._threads) {
+               final long first = next * ROWS_PER_BLOCK;
+               final int count = (int) Math.min(ROWS_PER_BLOCK, rows - first);
+               final long block = next++;
+               pending.add(pool.submit(new Callable<Out>() {
+                  public Out call () {
+                     Out out = new Out();
+                     generator.block(first, count, new Rng(fileSeed + Rng.mix(block)), out);
+                     return out;
+                  }
+               }));
+            }//end while
+
+            Out out = pending.poll().get();
+            os.write(out.buf, 0, out.len);
+            bytes += out.len;
+         }//end while
+      }finally{
+         os.close();
+      }//end try
+
+      System.out.println(String.format("\t%s: %d rows, %d MB (%d ms)",
+         file, rows, bytes >> 20, System.currentTimeMillis() - started));
+   }//end write
+
+   // Chat sizes and cumulative weights are needed by several files, so they are drawn once up front.
+   private void planChats () {
+      Rng rng = new Rng(this._seed ^ Rng.mix(0x636861747330L));
+      this._chatSize = new int[this._chats];
+      this._chatWeight = new long[this._chats];
+      long total = 0;
+      for (int c = 0; c < this._chats; ++c) {
+         this._chatSize[c] = (int) Math.min(this._maxChat, Math.floor(2 * Math.pow(1 - rng.nextDouble(), -1 / this._alpha)));
+         total += this._chatSize[c];
+         this._chatWeight[c] = total;
+      }
+   }//end planChats
+
+   private void userLists (long first, int count, Out out) {
+      for (long id = first; id < first + count; ++id)
+         out.num(id).sep().text(id % 2 == 0 ? "block" : "contact").eol();
+   }
+
+   private void users (long first, int count, Rng rng, Out out) {
+      for (long i = first; i < first + count; ++i) {
+         login(out, (int) i).sep();
+         phone(out, i).sep();
+         for (int k = 0; k < 36; ++k)
+            out.hex(rng.nextInt(16));
+         out.sep();
+         words(out, rng, 1 + rng.nextInt(5), 140).sep();
+         out.num(2 * i).sep().num(2 * i + 1).eol();
+      }
+   }//end users
+
+   // Contacts and blocks of each user, as members of their lists.
+   private void listMembers (long first, int count, Rng rng, Out out) {
+      for (long i = first; i < first + count; ++i) {
+         int contacts = (int) Math.min(Math.min(MAX_DEGREE, this._users - 1), Math.floor(this._contacts * 0.5 * Math.pow(1 - rng.nextDouble(), -0.5)));
+         int blocks = (int) Math.min(this._users - 1 - contacts, Math.floor(Math.log(1 - rng.nextDouble()) / Math.log(this._blocks / (this._blocks + 1))));
+         int[] picked = pickUsers(rng, (int) i, contacts + Math.max(0, blocks));
+
+         for (int k = 0; k < picked.length; ++k) {
+            out.num(k < contacts ? 2 * i + 1 : 2 * i).sep();
+            login(out, picked[k]).eol();
+         }
+      }//end for
+   }//end listMembers
+
+   // Distinct users other than self; low user numbers are picked more often, like popular users.
+   private int[] pickUsers (Rng rng, int self, int n) {
+      int[] picked = new int[n];
+      int found = 0;
+      while (found < n) {
+         int user = n * 4 > this._users ? rng.nextInt(this._users) : (int) (this._users * Math.pow(rng.nextDouble(), 2));
+         if (user == self)
+            continue;
+         boolean seen = false;
+         for (int k = 0; k < found && !seen; ++k)
+            seen = picked[k] == user;
+         if (!seen)
+            picked[found++] = user;
+      }//end while
+      return picked;
+   }//end pickUsers
+
+   private void chats (long first, int count, Out out) {
+      for (int c = (int) first; c < first + count; ++c) {
+         out.num(c).sep().text(this._chatSize[c] == 2 ? "private" : "group").sep();
+         login(out, chatMember(c, 0)).eol();
+      }
+   }
+
+   private void chatMembers (long first, int count, Out out) {
+      for (int c = (int) first; c < first + count; ++c)
+         for (int j = 0; j < this._chatSize[c]; ++j) {
+            out.num(c).sep();
+            login(out, chatMember(c, j)).eol();
+         }
+   }
+
+   /**
+    * The j-th member of chat c, the first being its initial sender.  Members
+    * are a walk through the users with a stride that shares no factor with
+    * the user count, so they are distinct, and any member can be found
+    * without generating the whole list.
+    */
+   private int chatMember (int c, int j) {
+      long h = Rng.mix(this._seed + c);
+      long start = (h >>> 1) % this._users;
+      long stride = 1 + (h >>> 33) % (this._users - 1);
+      while (gcd(stride, this._users) != 1)
+         ++stride;
+      return (int) ((start + j * stride) % this._users);
+   }
+
+   private static long gcd (long a, long b) {
+      while (b != 0) {
+         long t = a % b;
+         a = b;
+         b = t;
+      }
+      return a;
+   }
+
+   private void messages (long first, int count, Rng rng, Out out) {
+      long span = this._days * 86400L;
+      for (long id = first; id < first + count; ++id) {
+         // position in time by inverting the cumulative rate 1 + growth * x over x in [0, 1]
+         double u = (id + 0.5) / this._messages;
+         double x = this._growth == 0 ? u
+            : (Math.sqrt(1 + this._growth * (2 + this._growth) * u) - 1) / this._growth;
+
+         long pick = (long) (rng.nextDouble() * this._chatWeight[this._chats - 1]);
+         int c = Arrays.binarySearch(this._chatWeight, pick + 1);
+         if (c < 0)
+            c = -c - 1;
+
+         out.num(id).sep();
+         words(out, rng, 2 + rng.nextInt(20), 300).sep();
+         out.timestamp(START_SECONDS + (long) (x * span)).sep();
+         login(out, chatMember(c, rng.nextInt(this._chatSize[c]))).sep();
+         out.num(c).eol();
+      }//end for
+   }//end messages
+
+   private static Out login (Out out, int user) {
+      return out.text(NAMES[user % NAMES.length]).text("_").text(NAMES[(user / NAMES.length) % NAMES.length]).text("_").num(user);
+   }
+
+   // A unique phone number per user: i times a number coprime to 10^10 is a permutation.
+   private static Out phone (Out out, long user) {
+      long n = (user * 7919L + 1234567L) % 10000000000L;
+      out.text("+1(");
+      out.digits(n / 10000000L, 3).text(")").digits((n / 10000L) % 1000, 3).text("-").digits(n % 10000, 4);
+      return out;
+   }
+
+   private static Out words (Out out, Rng rng, int n, int maxLength) {
+      int start = out.len;
+      for (int k = 0; k < n; ++k) {
+         String word = WORDS[rng.nextInt(WORDS.length)];
+         if (out.len - start + word.length() + 1 > maxLength)
+            break;
+         if (k > 0)
+            out.text(" ");
+         out.text(word);
+      }
+      return out;
+   }//end words
+
+   /**
+    * SplitMix64 random stream; cheap to seed per block.
+    */
+   private static class Rng {
+
+      private long _state;
+
+      Rng (long seed) {
+         this._state = seed;
+      }
+
+      static long mix (long z) {
+         z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+         z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+         return z ^ (z >>> 31);
+      }
+
+      long nextLong () {
+         return mix(this._state += 0x9E3779B97F4A7C15L);
+      }
+
+      double nextDouble () {
+         return (nextLong() >>> 11) * 0x1.0p-53;
+      }
+
+      int nextInt (int bound) {
+         return (int) ((nextLong() >>> 33) * bound >>> 31);
+      }
+
+   }//end Rng
+
+   /**
+    * Growable byte buffer for one block of rows.  Everything written is
+    * ASCII, so characters are copied over as bytes.
+    */
+   private static class Out {
+
+      byte[] buf = new byte[1 << 16];
+      int len = 0;
+
+      private void ensure (int n) {
+         if (this.len + n > this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.len + n));
+      }
+
+      Out text (String s) {
+         ensure(s.length());
+         for (int i = 0; i < s.length(); ++i)
+            this.buf[this.len++] = (byte) s.charAt(i);
+         return this;
+      }
+
+      Out num (long n) {
+         ensure(20);
+         if (n < 0) {
+            this.buf[this.len++] = '-';
+            n = -n;
+         }
+         int start = this.len;
+         do {
+            this.buf[this.len++] = (byte) ('0' + n % 10);
+            n /= 10;
+         } while (n > 0);
+         for (int i = start, j = this.len - 1; i < j; ++i, --j) {
+            byte t = this.buf[i];
+            this.buf[i] = this.buf[j];
+            this.buf[j] = t;
+         }
+         return this;
+      }
+
+      Out digits (long n, int width) {
+         ensure(width);
+         for (int i = this.len + width - 1; i >= this.len; --i) {
+            this.buf[i] = (byte) ('0' + n % 10);
+            n /= 10;
+         }
+         this.len += width;
+         return this;
+      }
+
+      Out hex (int digit) {
+         ensure(1);
+         this.buf[this.len++] = (byte) "0123456789abcdef".charAt(digit);
+         return this;
+      }
+
+      // yyyy-mm-dd hh:mm:ss in UTC, without going through Calendar for every row
+      Out timestamp (long seconds) {
+         long days = seconds / 86400;
+         int secs = (int) (seconds % 86400);
+
+         // civil date from days since 1970-01-01
+         long z = days + 719468;
+         long era = z / 146097;
+         long doe = z - era * 146097;
+         long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+         long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+         long mp = (5 * doy + 2) / 153;
+         long day = doy - (153 * mp + 2) / 5 + 1;
+         long month = mp < 10 ? mp + 3 : mp - 9;
+         long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+         digits(year, 4).text("-").digits(month, 2).text("-").digits(day, 2).text(" ");
+         return digits(secs / 3600, 2).text(":").digits((secs / 60) % 60, 2).text(":").digits(secs % 60, 2);
+      }//end timestamp
+
+      Out sep () {
+         ensure(1);
+         this.buf[this.len++] = ';';
+         return this;
+      }
+
+      Out eol () {
+         ensure(1);
+         this.buf[this.len++] = '\n';
+         return this;
+      }
+
+   }//end Out
+
+}//end DatasetGenerator
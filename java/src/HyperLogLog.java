@@ -0,0 +1,68 @@
+/**
+ * HyperLogLog estimate of the number of distinct values seen, in a fixed
+ * 2^precision bytes however many values are added.  Each value is added as
+ * a 64-bit hash; sketches with the same precision merge by taking the
+ * larger register, so they can be filled on different threads.
+ *
+ * The standard error is about 1.04 / sqrt(2^precision), 1.6% at 12.
+ *
+ */
+public class HyperLogLog {
+
+   private final int _precision;
+   private final byte[] _registers;
+
+   public HyperLogLog (int precision) {
+      this._precision = precision;
+      this._registers = new byte[1 << precision];
+   }
+
+   public void add (long hash) {
+      int index = (int) (hash >>> (64 - this._precision));
+      // position of the first 1 bit after the index bits; the sentinel bit caps it
+      int rank = Long.numberOfLeadingZeros((hash << this._precision) | (1L << (this._precision - 1))) + 1;
+      if (rank > this._registers[index])
+         this._registers[index] = (byte) rank;
+   }
+
+   public void merge (HyperLogLog other) {
+      for (int i = 0; i < this._registers.length; ++i)
+         if (other._registers[i] > this._registers[i])
+            this._registers[i] = other._registers[i];
+   }
+
+   public long estimate () {
+      int m = this._registers.length;
+      double sum = 0;
+      int zeros = 0;
+      for (byte r : this._registers) {
+         sum += 1.0 / (1L << r);
+         if (r == 0)
+            ++zeros;
+      }
+
+      double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+      // few values: count empty registers instead, which is more accurate there
+      if (estimate <= 2.5 * m && zeros > 0)
+         estimate = m * Math.log((double) m / zeros);
+      return Math.round(estimate);
+   }//end estimate
+
+   /**
+    * 64-bit hash of a string for add().
+    */
+   public static long hash (CharSequence s) {
+      long h = 0xcbf29ce484222325L;
+      for (int i = 0; i < s.length(); ++i) {
+         h ^= s.charAt(i);
+         h *= 0x100000001b3L;
+      }
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }//end hash
+
+}//end HyperLogLog
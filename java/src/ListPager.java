@@ -0,0 +1,109 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Reads a contact or block list a page at a time, in login order.
+ *
+ * A list is a range of the USER_LIST_CONTAINS primary key (list_id,
+ * list_member), which is already in login order, so each page is an index
+ * range scan that stops after PAGE_SIZE rows.  Pages are keyed on the last
+ * login shown rather than an offset, so a page costs the same however far
+ * into the list it is.  An optional prefix starts the scan at the prefix and
+ * keeps only the logins that start with it.  Contact pages come with each
+ * contact's status.
+ *
+ */
+public class ListPager {
+
+   public static final int PAGE_SIZE = 20;
+
+   private final int _listID;
+   private final boolean _statuses;
+   private final String _prefix;
+   // last login returned, null before the first page
+   private String _after = null;
+   private boolean _more = true;
+
+   private ListPager (int listID, boolean statuses, String prefix) {
+      this._listID = listID;
+      this._statuses = statuses;
+      this._prefix = prefix;
+   }
+
+   /**
+    * Starts paging through one of a user's lists.
+    *
+    * @param esql the connection to look the list up through
+    * @param login the owner of the list
+    * @param listType "contact" or "block"
+    * @param prefix only logins starting with this, "" for all
+    * @return the pager, or null if there is no such user
+    * @throws java.sql.SQLException when the lookup fails
+    */
+   public static ListPager open (Messenger esql, String login, String listType, String prefix) throws SQLException {
+      boolean contacts = !listType.equals("block");
+      List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+         "SELECT %s FROM USR WHERE login = '%s'", contacts ? "contact_list" : "block_list", login));
+      if (result.isEmpty() || result.get(0).get(0) == null)
+         return null;
+      return new ListPager(Integer.parseInt(result.get(0).get(0)), contacts, prefix);
+   }//end open
+
+   /**
+    * The number of entries in the list, matching the prefix, as a query.
+    */
+   public String countQuery () {
+      return String.format("SELECT COUNT(*) FROM USER_LIST_CONTAINS ULC WHERE ULC.list_id = %d%s",
+         this._listID, prefixCondition());
+   }
+
+   /**
+    * Reads the next page: list_member, and status for contacts.
+    *
+    * @return up to PAGE_SIZE rows, empty once the list is done
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<List<String>> next (Messenger esql) throws SQLException {
+      if (!this._more)
+         return new java.util.ArrayList<List<String>>();
+
+      // one row more than a page tells whether another page follows
+      List<List<String>> rows = esql.executeQueryAndReturnResult(String.format(
+         "SELECT ULC.list_member%s FROM USER_LIST_CONTAINS ULC%s WHERE ULC.list_id = %d%s%s%s " +
+         "ORDER BY ULC.list_member LIMIT %d",
+         this._statuses ? ", C.status" : "",
+         this._statuses ? ", USR C" : "",
+         this._listID,
+         this._after == null ? "" : String.format(" AND ULC.list_member > '%s'", this._after),
+         prefixCondition(),
+         this._statuses ? " AND C.login = ULC.list_member" : "",
+         PAGE_SIZE + 1));
+
+      this._more = rows.size() > PAGE_SIZE;
+      if (this._more)
+         rows = rows.subList(0, PAGE_SIZE);
+      if (!rows.isEmpty())
+         this._after = rows.get(rows.size() - 1).get(0).trim();
+      return rows;
+   }//end next
+
+   /**
+    * Whether next() has more to return.
+    */
+   public boolean hasMore () {
+      return this._more;
+   }
+
+   public String prefix () {
+      return this._prefix;
+   }
+
+   // The scan starts at the prefix; substr keeps it free of LIKE's wildcards.
+   private String prefixCondition () {
+      if (this._prefix.length() == 0)
+         return "";
+      return String.format(" AND ULC.list_member >= '%s' AND substr(ULC.list_member, 1, %d) = '%s'",
+         this._prefix, this._prefix.length(), this._prefix);
+   }
+
+}//end ListPager
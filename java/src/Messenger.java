@@ -20,9 +20,14 @@ import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,13 +37,60 @@ import java.util.ArrayList;
 public class Messenger {
 
    // reference to physical database connection.
-   private Connection _connection = null;
+   private volatile Connection _connection = null;
+
+   // where and as whom to connect, kept for reconnect
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // NOTIFY channels seen on this connection but not yet asked for by hasNotification
+   private Set<String> _pendingNotifications = new HashSet<String>();
+
+   // channels to LISTEN on again after a reconnect
+   private Set<String> _listening = new HashSet<String>();
+
+   // set while a statement runs and left set if it throws, so ensureAlive
+   // only has to check the connection after a failure
+   private volatile boolean _failed = false;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // screens are rendered into this buffer and written out once per screen
+   static ScreenBuffer screen = new ScreenBuffer();
+
+   // status messages shown on the main menu and in the contact list
+   static StatusCache statuses = new StatusCache(1024, 5 * 60 * 1000);
+
+   // old messages that were moved out of MESSAGE (see the archive admin command)
+   static ChatArchive archive = ChatArchive.open();
+
+   // password hashing runs on its own small pool, see Credentials
+   static Credentials credentials = new Credentials(
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 16);
+
+   // all logins, for checking and suggesting user names as they are typed
+   static UserDirectory directory = new UserDirectory();
+
+   // who is in which chat, for member lists and membership checks
+   static ChatRoster rosters = new ChatRoster(directory);
+
+
+   // identical reads running at the same time on any of the connections share one execution
+   static SingleFlight flights = SingleFlight.open();
+
+   // messages and edits go through a local journal, so they survive the database being away
+   static Outbox outbox = null;
+
+   // extra connections for running a handler's independent queries at the same time
+   static QueryPool queries = null;
+
+   // deleted accounts are taken apart in the background, on its own connection
+   static AccountDeletion deletions = null;
+
    /**
     * Creates a new instance of Messenger
     *
@@ -51,39 +103,122 @@ public class Messenger {
    public Messenger (String dbname, String dbport, String user, String passwd) throws SQLException {
 
       //System.out.print("\tConnecting to database...");
-      try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
+      // constructs the connection URL
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._passwd = passwd;
+      System.out.println ("Connection URL: " + this._url + "\n");
 
+      try{
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this._connection = DriverManager.getConnection(this._url, user, passwd);
          System.out.println("\t\t\tDone\n\n");
-      }catch (Exception e){
+      }catch (SQLException e){
          System.err.println("\t\tError - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("\t\tMake sure you started postgres on this machine");
-         System.exit(-1);
+         throw e;
       }//end catch
    }//end Messenger
 
+   /**
+    * Creates an instance without a connection, for stand-ins that answer
+    * the queries themselves (see java/test).
+    */
+   protected Messenger () {
+      this._url = null;
+      this._user = null;
+      this._passwd = null;
+   }
+
+   /**
+    * Method to check that the connection still reaches the DBMS.  Costs one
+    * round trip, so it is meant for after a statement failed.
+    *
+    * @return true if a trivial query went through
+    */
+   public boolean isAlive () {
+      try{
+         executeQuery("SELECT 1");
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isAlive
+
+   /**
+    * Method for the thread that uses the connection to bring it back if the
+    * DBMS went away, e.g. before drawing the next screen.  Free unless the
+    * last statement on the connection failed; only then is the connection
+    * checked, with one round trip, and replaced if it is dead.  Connections
+    * are not shared between threads, so no other thread reconnects this one.
+    *
+    * @return true if the connection works, reconnecting it if needed
+    */
+   public boolean ensureAlive () {
+      if (!this._failed || isAlive())
+         return true;
+      try{
+         reconnect();
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end ensureAlive
+
+   /**
+    * Method to replace the physical connection with a new one, e.g. after the
+    * DBMS restarted.  LISTENs are issued again; notifications sent while the
+    * connection was down are lost, so every listened channel is reported as
+    * notified once.
+    *
+    * @throws java.sql.SQLException when the new connection cannot be made
+    */
+   public synchronized void reconnect () throws SQLException {
+      Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+      cleanup();
+      this._connection = connection;
+      for (String channel : this._listening)
+         executeUpdate("LISTEN " + channel);
+      this._pendingNotifications.addAll(this._listening);
+      this._failed = false;
+   }//end reconnect
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
     * @param sql the input SQL string
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
+   public int executeUpdate (String sql) throws SQLException {
+      this._failed = true;
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
       // issues the update instruction
-      stmt.executeUpdate (sql);
+      int rowCount = stmt.executeUpdate (sql);
 
       // close the instruction
       stmt.close ();
+      this._failed = false;
+      return rowCount;
    }//end executeUpdate
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) like
+    * executeQueryAndReturnResult, except that when the same query is already
+    * running on another connection it waits for that one and shares its
+    * result (see SingleFlight).  The result must not be changed.
+    *
+    * @param query the input query string
+    * @return the query result as a list of records, unmodifiable
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeSharedQuery (String query) throws SQLException {
+      return flights.read(this, query);
+   }//end executeSharedQuery
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
@@ -94,6 +229,7 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      this._failed = true;
       // creates a statement object
       Statement stmt = this._connection.createStatement ();
 
@@ -124,6 +260,7 @@ public class Messenger {
          ++rowCount;
       }//end while
       stmt.close ();
+      this._failed = false;
       return rowCount;
    }//end executeQuery
 
@@ -137,6 +274,7 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+      this._failed = true;
       // creates a statement object 
       Statement stmt = this._connection.createStatement (); 
  
@@ -161,6 +299,7 @@ public class Messenger {
          result.add(record); 
       }//end while 
       stmt.close (); 
+      this._failed = false;
       return result; 
    }//end executeQueryAndReturnResult
 
@@ -173,6 +312,7 @@ public class Messenger {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
+       this._failed = true;
        // creates a statement object
        Statement stmt = this._connection.createStatement ();
 
@@ -186,6 +326,7 @@ public class Messenger {
           rowCount++;
        }//end while
        stmt.close ();
+       this._failed = false;
        return rowCount;
    }
 
@@ -207,6 +348,36 @@ public class Messenger {
   return -1;
    }
 
+   /**
+    * Method to LISTEN on a notification channel, also after a reconnect.
+    *
+    * @param channel name of the notification channel
+    * @throws java.sql.SQLException when LISTEN fails
+    */
+   public synchronized void listen (String channel) throws SQLException {
+      executeUpdate("LISTEN " + channel);
+      this._listening.add(channel.toLowerCase());
+   }
+
+   /**
+    * Method to check whether a NOTIFY was received on a channel this connection
+    * LISTENs on.  The driver only queues notifications that arrived with earlier
+    * query results, so this does not talk to the DBMS.  Each channel's
+    * notifications are reported once.
+    *
+    * @param channel name of the notification channel
+    * @return true if at least one notification for the channel was pending
+    */
+   public synchronized boolean hasNotification(String channel) {
+      // the driver hands out every channel at once; keep the others for their own callers
+      PGNotification[] notifications = ((PGConnection) this._connection).getNotifications();
+      if (notifications != null)
+         for (PGNotification notification : notifications)
+            this._pendingNotifications.add(notification.getName().toLowerCase());
+
+      return this._pendingNotifications.remove(channel.toLowerCase());
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -221,17 +392,57 @@ public class Messenger {
    }//end cleanup
 
 
+  // The logo and menus never change, so they are built once and appended as is.
+  private static final String BACKSLASH8 = "\\\\\\\\\\\\\\\\";
+  private static final String LOGO =
+    "\n-------|--------------------------------------------------|---------\n" +
+    "    ___|___                                            ___|___\n" +
+    "   ////////\\   _                                  _   /" + BACKSLASH8 + "\n" +
+    "  ////////  \\ ('<        Chitter Chatter         >') /  " + BACKSLASH8 + "\n" +
+    "  | (_)  |  | (^)   David Ding, Stephanie Tong   (^) |  | (_)  |\n" +
+    "  |______|./==''==                              ==''===.|______|\n" +
+    "--------------------------------------------------------------------\n";
+
+  private static final String WELCOME_MENU =
+    "\n\n\t===================================\n" +
+    "\t\tMAIN MENU\n" +
+    "\t===================================\n" +
+    "\t1. Login\n" +
+    "\t2. Create a New Account\n" +
+    "\t===================================\n" +
+    "\t9. < EXIT\n";
+
+  private static final String USER_MENU =
+    "\t===================================\n" +
+    "\t\tMAIN MENU\n" +
+    "\t===================================\n" +
+    "\t0. Change Status\n" +
+    "\t1. Show Chat Interface\n" +
+    "\t2. Show Contacts\n" +
+    "\t3. Show Blocked List\n" +
+    "\t4. Add a New Contact\n" +
+    "\t5. Remove a Contact\n" +
+    "\t6. Block a User\n" +
+    "\t7. Unblock a User\n" +
+    "\t10. Find Contacts by Phone Number\n" +
+    "\t-----------------------------------\n" +
+    "\t8. Delete Account\n" +
+    "\t===================================\n" +
+    "\t9. Log out\n";
+
+  private static final String CHAT_INTERFACE_MENU =
+    "\n\n\t===================================\n" +
+    "\t\tCHAT INTERFACE\n" +
+    "\t===================================\n" +
+    "\t1. Enter a Chat\n" +
+    "\t2. Create a New Chat\n" +
+    "\t3. Delete a Chat\n" +
+    "\t===================================\n" +
+    "\t9. Leave Chat Interface\n";
+
   public static void printLogo()
   {
-    String backslash = "\\";
-    String backslash4 = backslash + backslash + backslash + backslash;
-    System.out.println("\n-------|--------------------------------------------------|---------");
-    System.out.println("    ___|___                                            ___|___");
-    System.out.println("   ////////\\   _                                  _   /" + backslash4 + backslash4);
-    System.out.println("  ////////  \\ ('<        Chitter Chatter         >') /  " + backslash4 + backslash4);
-    System.out.println("  | (_)  |  | (^)   David Ding, Stephanie Tong   (^) |  | (_)  |");
-    System.out.println("  |______|./==''==                              ==''===.|______|");
-    System.out.println("--------------------------------------------------------------------");
+    screen.append(LOGO);
   }
    /**
     * The main execution method
@@ -239,12 +450,13 @@ public class Messenger {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      if (args.length < 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Messenger.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [<admin command>]\n" +
+            ADMIN_USAGE);
          return;
       }//end if
       
@@ -259,18 +471,31 @@ public class Messenger {
          String dbport = args[1];
          String user = args[2];
          esql = new Messenger (dbname, dbport, user, "");
+         statuses.listen(esql);
+         directory.listen(esql);
+         rosters.listen(esql);
+
+         // extra arguments run an admin command instead of the menus
+         if (args.length > 3) {
+            RunAdminCommand(esql, args);
+            return;
+         }//end if
+
+         rosters.build(esql);
+         queries = QueryPool.open(dbname, dbport, user, esql);
+
+         deletions = AccountDeletion.open(new Messenger (dbname, dbport, user, ""), directory);
 
          boolean keepon = true;
          while(keepon) {
+            // this thread's connection is brought back here after a statement failed in an outage,
+            // by this thread only; otherwise redrawing costs no query
+            if (!esql.ensureAlive())
+               System.out.println("\n\tThe database cannot be reached right now.");
+
             // These are sample SQL statements
             printLogo();
-            System.out.println("\n\n\t===================================");
-            System.out.println("\t\tMAIN MENU");
-            System.out.println("\t===================================");
-            System.out.println("\t1. Login");
-            System.out.println("\t2. Create a New Account");
-            System.out.println("\t===================================");
-            System.out.println("\t9. < EXIT");
+            screen.append(WELCOME_MENU);
             String authorisedUser = null;
 
             switch (readChoice())
@@ -281,29 +506,30 @@ public class Messenger {
                default : System.out.println("Unrecognized choice!"); break;
             } //end switch
 
+            // the user's outbox also sends whatever an earlier run of theirs could not
+            if (authorisedUser != null)
+            {
+              Messenger outboxConnection = new Messenger (dbname, dbport, user, "");
+              try{
+                outbox = Outbox.open(authorisedUser, outboxConnection, directory);
+              }catch (IOException e){
+                outboxConnection.cleanup();
+                System.out.println("\n\t" + e.getMessage() + ".");
+                authorisedUser = null;
+              }//end try
+            }
+
             if (authorisedUser != null) 
             {
               boolean usermenu = true;
               while(usermenu) {
+                if (!esql.ensureAlive())
+                  System.out.println("\n\tThe database cannot be reached right now.");
                 printLogo();
-                System.out.println("\n\n\tYou are logged in as " + authorisedUser + ".");
-                System.out.print("\tStatus: ");
+                screen.append("\n\n\tYou are logged in as ").append(authorisedUser).append(".\n");
+                screen.append("\tStatus: ");
                 DisplayStatus(esql, authorisedUser);
-                System.out.println("\t===================================");
-                System.out.println("\t\tMAIN MENU");
-                System.out.println("\t===================================");
-                System.out.println("\t0. Change Status");
-                System.out.println("\t1. Show Chat Interface");
-                System.out.println("\t2. Show Contacts");
-                System.out.println("\t3. Show Blocked List");
-                System.out.println("\t4. Add a New Contact");
-                System.out.println("\t5. Remove a Contact");
-                System.out.println("\t6. Block a User");
-                System.out.println("\t7. Unblock a User");
-                System.out.println("\t-----------------------------------");
-                System.out.println("\t8. Delete Account");
-                System.out.println("\t===================================");
-                System.out.println("\t9. Log out");
+                screen.append(USER_MENU);
                 switch (readChoice()){
                    case 0: ChangeStatusMessage(esql, authorisedUser); break;
                    case 1: ShowChatInterface(esql, authorisedUser); break;
@@ -313,11 +539,14 @@ public class Messenger {
                    case 5: RemoveContact(esql,authorisedUser); break;
                    case 6: AddToBlock(esql, authorisedUser); break;
                    case 7: UnblockUser(esql, authorisedUser); break;
+                   case 10: FindContactsByPhone(esql, authorisedUser); break;
                    case 8: usermenu = DeleteAccount(esql, authorisedUser); break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Invalid selection!"); break;
                 }
               }
+              outbox.close();
+              outbox = null;
             }
          }//end while
 
@@ -331,6 +560,13 @@ public class Messenger {
       finally{
          // make sure to cleanup the created table and close the connection.
          try{
+            screen.flush();
+            if(outbox != null)
+               outbox.close();
+            if(deletions != null)
+               deletions.close();
+            if(queries != null)
+               queries.close();
             if(esql != null) {
                System.out.print("\n\tDisconnecting from database...");
                esql.cleanup ();
@@ -342,6 +578,63 @@ public class Messenger {
       }//end try
    }//end main
   
+   private static final String ADMIN_USAGE =
+      "Admin commands:\n" +
+      "\tpurge-idle <days>          delete every chat with no new message or member in the last <days> days\n" +
+      "\tpurge-chats <chat_id>...   delete the given chats\n" +
+      "\tarchive <days>             move messages older than <days> days to the archive\n" +
+      "\tanalytics                  print message, user, chat and contact list statistics\n" +
+      "\tbench-roster <lookups>     time chat member lookups, old query against the roster\n" +
+      "\tbench-user-ids <lookups>   compare index sizes and joins keyed by user id and by login\n" +
+      "\tbench-shared-reads <readers> <rounds>  count how many concurrent chat reads from separate sessions are shared\n" +
+      "\tdeletions                  list account deletions still in progress\n" +
+      "\trate-limits                count login attempts and posts allowed and refused by the rate limits\n";
+
+   /*
+    * Runs the admin command given after <dbname> <port> <user>
+    **/
+   public static void RunAdminCommand(Messenger esql, String[] args) throws Exception {
+      String command = args[3];
+
+      if (command.equals("purge-idle") && args.length == 5)
+         ChatPurge.purgeIdle(esql, Integer.parseInt(args[4]));
+
+      else if (command.equals("purge-chats") && args.length > 4) {
+         List<Integer> chats = new ArrayList<Integer>();
+         for (int i = 4; i < args.length; ++i)
+            chats.add(Integer.parseInt(args[i]));
+         ChatPurge.purgeChats(esql, chats);
+      }
+
+      else if (command.equals("archive") && args.length == 5)
+         archive.archive(esql, directory, Integer.parseInt(args[4]));
+
+      else if (command.equals("analytics") && args.length == 4)
+         Analytics.run(esql);
+
+      else if (command.equals("bench-roster") && args.length == 5)
+         ChatRoster.benchmark(esql, Integer.parseInt(args[4]));
+
+      else if (command.equals("bench-user-ids") && args.length == 5)
+         UserDirectory.benchmark(esql, Integer.parseInt(args[4]));
+
+      else if (command.equals("bench-shared-reads") && args.length == 6)
+         ChatView.benchmark(args[0], args[1], args[2], esql, Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+
+      // one of the reader processes bench-shared-reads starts
+      else if (command.equals("read-chat") && args.length == 8)
+         ChatView.readRounds(esql, Integer.parseInt(args[4]), args[5], Integer.parseInt(args[6]), Long.parseLong(args[7]));
+
+      else if (command.equals("deletions") && args.length == 4)
+         AccountDeletion.report(esql);
+
+      else if (command.equals("rate-limits") && args.length == 4)
+         RateLimits.report(esql);
+
+      else
+         System.err.println("Unknown admin command!\n" + ADMIN_USAGE);
+   }//end RunAdminCommand
+
    public static void Greeting(){
       System.out.println(
          "\n\n\t********************************************\n" +
@@ -355,6 +648,8 @@ public class Messenger {
     **/
    public static int readChoice() {
       int input;
+      // the menu above the prompt is still sitting in the screen buffer
+      screen.flush();
       // returns only if a correct value is given.
       do {
          System.out.print("\nPlease make your choice: ");
@@ -373,8 +668,8 @@ public class Messenger {
   // For example: DisplayMmenuTitle("Your Chats")
   public static void DisplayMenuTitle(String title)
   {
-    String formattedTitle = "\n\n======================" + title + "======================\n\n";
-    System.out.print(formattedTitle);
+    AppendMenuTitle(title);
+    screen.flush();
   }
 
   // Steph's Note: At the end of each Menu Option function, call this function and pass in the name of the Menu Option.
@@ -382,15 +677,20 @@ public class Messenger {
   // just use it. :)
   public static void DisplayEndTitle(String title)
   {
-    int sz = title.length();
-    String border = "\n======================" + "======================";
-
-    for (int i = 0; i < sz; ++i )
-      border += "=";
+    AppendEndTitle(title);
+    screen.flush();
+  }
 
-    border += "\n\n";
+  // Same as DisplayMenuTitle/DisplayEndTitle, but leaves the text in the screen buffer
+  // so a screen that renders a lot (chat table, messages) can be written out in one go.
+  public static void AppendMenuTitle(String title)
+  {
+    screen.append("\n\n======================").append(title).append("======================\n\n");
+  }
 
-    System.out.print(border);
+  public static void AppendEndTitle(String title)
+  {
+    screen.append('\n').equalsSigns(44 + title.length()).append("\n\n");
   }
 
   public static String checkValidLogin(String login)
@@ -443,6 +743,14 @@ public class Messenger {
         System.out.print("\tEnter user phone: ");
         String phone = in.readLine();
 
+        String passwordHash = credentials.hash(password);
+        if (passwordHash == null)
+        {
+          System.out.println("\n\tThe server is busy, please try again in a moment.");
+          DisplayEndTitle(menuTitle);
+          return;
+        }
+
         //Creating empty contact\block lists for a user
         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
         int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
@@ -451,9 +759,10 @@ public class Messenger {
          
         String query = String.format(
           "INSERT INTO USR (phoneNum, login, password, block_list, contact_list)"+
-          " VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
+          " VALUES ('%s','%s','%s',%s,%s)", phone, login, passwordHash, block_id, contact_id);
 
         esql.executeUpdate(query);
+        directory.add(login, esql.getCurrSeqVal("usr_user_id_seq"));
         System.out.println ("\n\tUser successfully created!");
       }
 
@@ -478,38 +787,13 @@ public class Messenger {
   {
     try
     {
-      // check if user is owner of any chats
-      String query1 = String.format("SELECT * FROM CHAT WHERE init_sender = '%s'", authorisedUser);
-      int result1 = esql.executeQuery(query1);
-
-      if (result1 > 0)
-      {
-        System.out.println("\tYou cannot delete your account because you are a group owner of one or more chats!");
-        return true;
-      }
-
-      // check user sent any messages
-      String query2 = String.format("SELECT * FROM MESSAGE WHERE sender_login = '%s'", authorisedUser);
-      int result2 = esql.executeQuery(query2);
-
-      if (result2 > 0)
-      {
-        System.out.println("\tYou cannot delete your account because you posted a message!");
-        return true;
-      }
+      // the account is locked now; chats are handed over and messages moved
+      // to the tombstone user in the background (see AccountDeletion)
+      deletions.request(esql, authorisedUser);
+      statuses.invalidate(authorisedUser);
 
-      // if you're here, that means the previous two conditions weren't true
-
-      String query3 = String.format("DELETE FROM CHAT_LIST WHERE member = '%s'", authorisedUser);
-      esql.executeUpdate(query3);
-
-      System.out.println("\tYou were removed from chats.");
-
-      // delete yourself from the userlist
-      String query4 = String.format("DELETE FROM USR WHERE login = '%s'", authorisedUser);
-      esql.executeUpdate(query4);
-
-      System.out.println("\tYour existence was erased.");
+      System.out.println("\tYour account is locked and will be erased in the background.");
+      System.out.println("\tChats you own go to another member; your messages stay as [deleted].");
 
       return false;
     }
@@ -530,17 +814,34 @@ public class Messenger {
 
     try
     {
+      // what happens to the user's chats and messages, both looked up at once
+      int userID = directory.id(esql, authorisedUser);
+      String effects = queries.count(String.format("SELECT 1 FROM CHAT WHERE owner_id = %d", userID))
+        .thenCombine(queries.count(String.format("SELECT 1 FROM MESSAGE WHERE sender_id = %d LIMIT 1", userID)),
+        new QueryFuture.Combiner<Integer, Integer, String>() {
+          public String combine (Integer owned, Integer posted) {
+            String s = "";
+            if (owned > 0)
+              s += "\tYou own " + owned + " chat(s); each goes to another member, or is deleted if nobody else is in it.\n";
+            if (posted > 0)
+              s += "\tYour messages stay in their chats, shown as [deleted].\n";
+            return s;
+          }
+        }).join();
+      System.out.print(effects);
+
       System.out.print("\tAre you sure you want to delete your account, " + authorisedUser + "? (y/n): ");
       String answer = in.readLine();
 
       if (answer.equals("y") || answer.equals("Y") || answer.equals ("yes") || answer.equals ("YES")){
         System.out.print("\tPlease enter user password: ");
         String password = in.readLine();
-        String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", authorisedUser, password);
-        int userNum = esql.executeQuery(query);
+        Credentials.Result check = credentials.check(esql, authorisedUser, password);
 
-        if (userNum > 0){
+        if (check == Credentials.Result.OK){
           ret = DeleteAccountHelper(esql, authorisedUser);
+        }else if (check != Credentials.Result.WRONG){
+          System.out.println("\tToo many attempts or the server is busy, please try again later.");
         }else{
           System.out.println("\tWrong password, account not deleted.");
           ret = false;
@@ -585,12 +886,15 @@ public class Messenger {
           password = in.readLine();
         }
 
-        String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-        int userNum = esql.executeQuery(query);
+        Credentials.Result check = credentials.check(esql, login, password);
 
-        if (userNum > 0){
+        if (check == Credentials.Result.OK){
           DisplayEndTitle(menuTitle);
           return login;
+      }else if (check != Credentials.Result.WRONG){
+        System.out.print("\n\tToo many login attempts or the server is busy, please try again later.");
+        DisplayEndTitle(menuTitle);
+          return null;
       }else{
         System.out.print("\n\tIncorrect username or password!");
         DisplayEndTitle(menuTitle);
@@ -613,116 +917,151 @@ public class Messenger {
       String contact = "INVALID";
 
       try{
-        System.out.print("\tEnter the contact's login: ");
-        contact = in.readLine();
-        
-        
-        String query1 = "SELECT * FROM USR WHERE login = '" + contact + "';";
-        int userNum = esql.executeQuery(query1);
-        if(userNum==0){
+        contact = ReadLogin(esql, authorisedUser, "\tEnter the contact's login (end with * for suggestions): ");
+
+        // existence check, block check, unblock and insert all run server side in one statement
+        String query = String.format("SELECT add_contact('%s', '%s')", authorisedUser, contact);
+        String outcome = esql.executeQueryAndReturnResult(query).get(0).get(0);
+
+        if (outcome.equals("missing"))
+        {
           System.out.println("\n\t" + contact + " doesn't exist!");
-        }else{
-			String checkBlock = String.format(
-			"SELECT * FROM USER_LIST_CONTAINS "+
-			"WHERE list_id = (SELECT block_list FROM USR WHERE login = '%s') "+
-			"AND list_member = '%s'",contact,authorisedUser);
-			int blockNum = esql.executeQuery(checkBlock);
-			if(blockNum > 0){
-			  System.out.println("\tSorry you were blocked by the user");
-			}else{
-		  //Remove from blocked
-			  String removeFrom = String.format(
-				"DELETE FROM USER_LIST_CONTAINS "+
-			  "WHERE (select block_list from USR where login='%s')=list_id "+
-			  "AND list_member = '%s';",authorisedUser,contact);
-			  esql.executeUpdate(removeFrom);
-
-			  String addTo = String.format(
-				  "INSERT INTO USER_LIST_CONTAINS " + 
-				  "VALUES ((SELECT contact_list FROM USR WHERE login = '"+ authorisedUser +"'),'" 
-				  + contact + "');" );
-				esql.executeUpdate(addTo);
-
-				System.out.println("\n\t" + contact + " has been added to your contacts.");
-			}
+          DisplaySuggestions(esql, authorisedUser, contact);
         }
+        else if (outcome.equals("blocked"))
+          System.out.println("\tSorry you were blocked by the user");
+        else if (outcome.equals("exists"))
+          System.out.println("\n\t" + contact + " is already in your contact list!");
+        else
+          System.out.println("\n\t" + contact + " has been added to your contacts.");
       }
       catch(Exception e){ 
-          //If User already in contact list it will tell the User so
-      if(e.getMessage().contains("ERROR:  duplicate key violates")){
-        String msg = "\n\t" + contact + " is already in your contact list!";
-        System.out.println(msg);
-        }else{
         System.err.println (e.getMessage ());
       }
-    }
 
     DisplayEndTitle(menuTitle);
 
   }//end
 
+   /*
+    * Adds every user whose phone number is in a list (e.g. an address book)
+    * to the contact list at once.  Users with a block either way are skipped.
+    **/
+   public static void FindContactsByPhone(Messenger esql, String authorisedUser){
+      String menuTitle = "Find Contacts by Phone Number";
+      DisplayMenuTitle(menuTitle);
+
+      try{
+        System.out.println("\tEnter phone numbers as stored, e.g. +1(180)393-1512, separated by commas,");
+        System.out.print("\tor @ followed by the name of a file with one number per line: ");
+        String input = in.readLine().trim();
+        List<String> phones = input.startsWith("@") ? ContactDiscovery.read(input.substring(1).trim()) : ContactDiscovery.split(input);
+
+        ContactDiscovery found = ContactDiscovery.discover(esql, authorisedUser, phones);
+        screen.append("\n\t").append(found.added.size()).append(" new contact(s)");
+        for (String login : found.added)
+          screen.append("\n\t  ").append(login);
+        screen.append("\n\t").append(found.existing.size()).append(" already in your contacts, ")
+          .append(found.blocked.size()).append(" skipped because of a block, ")
+          .append(found.unmatched).append(" number(s) not on Chitter Chatter");
+        if (found.invalid > 0)
+          screen.append(", ").append(found.invalid).append(" not valid phone number(s)");
+        screen.append(".\n");
+        screen.flush();
+      }catch(Exception e){
+        System.err.println (e.getMessage ());
+      }
+      DisplayEndTitle(menuTitle);
+   }
+
    public static void AddToBlock(Messenger esql, String authorisedUser){
       String menuTitle = "Block a User";
       DisplayMenuTitle(menuTitle);
       String blocker = "INVALID";
 
       try{
-          System.out.print("\tEnter the user's login: ");
-          blocker = in.readLine();
+          blocker = ReadLogin(esql, authorisedUser, "\tEnter the user's login (end with * for suggestions): ");
+
+          // removing each other from contacts and adding the block happen in one statement
+          String query = String.format("SELECT add_block('%s', '%s')", authorisedUser, blocker);
+          String outcome = esql.executeQueryAndReturnResult(query).get(0).get(0);
 
-          String query1 = "SELECT * FROM USR WHERE login = '" + blocker + "';";
-          int userNum = esql.executeQuery(query1);
-          if(userNum==0){
+          if (outcome.equals("missing"))
+          {
             System.out.println("\n\t" + blocker + " doesn't exist!");
-          }else{
-            //Remove from contact
-            String removeFrom = String.format(
-              "DELETE FROM USER_LIST_CONTAINS "+
-            "WHERE (select contact_list from USR where login='%s')=list_id "+
-            "AND list_member = '%s';",authorisedUser,blocker);
-            esql.executeUpdate(removeFrom);
-			
-			//Remove from contact of Blocker
-			String removeMe = String.format(
-              "DELETE FROM USER_LIST_CONTAINS "+
-            "WHERE (select contact_list from USR where login='%s')=list_id "+
-            "AND list_member = '%s';",blocker,authorisedUser);
-            esql.executeUpdate(removeMe);
-            
-            //Add to Blocked
-            String addTo = String.format(
-                "INSERT INTO USER_LIST_CONTAINS " + 
-                "VALUES ((SELECT block_list FROM USR WHERE login = '%s'),'%s');"
-                ,authorisedUser,blocker);
-              esql.executeUpdate(addTo);
-
-              System.out.println("\n\t" + blocker + " is now blocked.");
+            DisplaySuggestions(esql, authorisedUser, blocker);
           }
+          else if (outcome.equals("exists"))
+            System.out.println("\n\t" + blocker + " is already blocked!");
+          else
+            System.out.println("\n\t" + blocker + " is now blocked.");
 
       }catch(Exception e){
-        if(e.getMessage().contains("ERROR:  duplicate key violates")){
-        System.out.println("\n\t" + blocker + " is already blocked!");
-          }else{
         System.err.println (e.getMessage ());
       }
-      }
       DisplayEndTitle(menuTitle);
    }
 
-   public static void DisplayStatus(Messenger esql, String authorisedUser)
+   /*
+    * Reads a login from the keyboard. Typing the start of a login followed by '*'
+    * lists the matching users, your contacts first, and asks again.
+    **/
+   public static String ReadLogin(Messenger esql, String authorisedUser, String prompt) throws Exception
+   {
+      while (true)
+      {
+        System.out.print(prompt);
+        String login = in.readLine();
+
+        if (!login.endsWith("*"))
+          return login;
+
+        DisplaySuggestions(esql, authorisedUser, login.substring(0, login.length() - 1));
+      }
+   }
+
+   public static void DisplaySuggestions(Messenger esql, final String authorisedUser, String prefix) throws Exception
    {
+      // the contacts are read on the side while the directory catches up on the main connection
+      QueryFuture<List<String>> contacts = queries.submit(new QueryPool.Query<List<String>>() {
+        public List<String> run (Messenger connection) throws SQLException {
+          return ContactLogins(connection, authorisedUser);
+        }
+      });
+      directory.refresh(esql);
+      List<String> matches = directory.suggest(esql, prefix, contacts.join(), 10);
 
-    try
-    {
-      String statusQuery = String.format("SELECT status FROM USR where login = '%s'", authorisedUser);
-      List<List<String>> statusResult = esql.executeQueryAndReturnResult(statusQuery);
+      if (matches.size() == 0)
+        screen.append("\tNo users start with '").append(prefix).append("'.\n");
+      else
+      {
+        screen.append("\tDid you mean:\n");
+        for (String match : matches)
+          screen.append("\t  ").append(match).append('\n');
+      }
+      screen.flush();
+   }
 
-      String status = "";
+   // The logins in a user's contact list, trimmed.
+   public static List<String> ContactLogins(Messenger esql, String authorisedUser) throws SQLException
+   {
+      String query = String.format(
+        "SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U " +
+        "WHERE U.contact_list = ULC.list_id AND U.login = '%s'", authorisedUser);
+
+      List<String> logins = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult(query))
+        logins.add(row.get(0).trim());
+      return logins;
+   }
 
-      if (statusResult.get(0).get(0) != null)
-        status = statusResult.get(0).get(0).trim();
+   public static void DisplayStatus(Messenger esql, String authorisedUser)
+   {
 
-      System.out.println(status);
+    try
+    {
+      screen.append(statuses.get(esql, authorisedUser));
+      screen.append('\n');
     }
 
     catch (Exception e)
@@ -737,14 +1076,14 @@ public class Messenger {
     DisplayMenuTitle(title);
     try
     {
-      System.out.print("\tOld status: ");
+      screen.append("\tOld status: ");
       DisplayStatus(esql, authorisedUser);
+      screen.flush();
 
       System.out.print("\tNew status: ");
       String newStatus = in.readLine();
 
-      String newStatusQuery = String.format("UPDATE USR SET status = '%s' WHERE login = '%s'", newStatus, authorisedUser);
-      esql.executeUpdate(newStatusQuery);
+      statuses.update(esql, authorisedUser, newStatus);
 
     }
 
@@ -760,21 +1099,8 @@ public class Messenger {
    {
       try
       {
-        String statusQuery = String.format("SELECT status FROM USR where login = '%s'", contactName);
-        List<List<String>> statusResult = esql.executeQueryAndReturnResult(statusQuery);
-        String tab = "\t\t";
-
-        if (contactName.length() < 8)
-          tab = "\t\t\t";
-
-        String status = statusResult.get(0).get(0);
-
-        if (status == null)
-          status = "";
-        else
-          status = status.trim();
-
-        System.out.println("\t" + contactName.trim() + tab + "Status: " + status);
+        String login = contactName.trim();
+        FormatContact(login, statuses.get(esql, login));
       }
 
       catch (Exception e)
@@ -783,105 +1109,159 @@ public class Messenger {
       }
    }
 
-   public static void DisplayContacts(Messenger esql, String authorisedUser, boolean flag)
+   // Appends a contact whose status was read along with the list.
+   public static void FormatContact(String login, String status)
+   {
+        login = login.trim();
+        screen.append('\t').append(login);
+        screen.append(login.length() < 8 ? "\t\t\t" : "\t\t").append("Status: ");
+        screen.append(status == null ? "" : status.trim()).append('\n');
+   }
+
+   // A user's contacts with their statuses, as DisplayContacts shows them.
+   public static String ContactsQuery(String authorisedUser)
+   {
+        return
+        "SELECT ULC.list_member, C.status " +
+        "FROM USER_LIST_CONTAINS ULC, USR U, USR C " + 
+        "WHERE U.contact_list = ULC.list_id AND U.login = '" + authorisedUser + "' AND C.login = ULC.list_member " +
+        "ORDER BY ULC.list_member";
+   }
+
+   // Shows contacts already read with ContactsQuery.
+   public static void DisplayContacts(Messenger esql, List<List<String>> result, boolean flag)
    {
       try
       {
-        String query =
-        "SELECT ULC.list_member " +
-        "FROM USER_LIST_CONTAINS ULC, USR U " + 
-        "WHERE U.contact_list = ULC.list_id AND U.login = '" + authorisedUser + "'";
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
+        // the contacts' statuses come back with the list, so nothing is queried per
+        // contact; the whole list may be bigger than the status cache, so it is not put there
         if(result.size() == 0)
-          System.out.println("\tYou have no friends. :(");
+          screen.append("\tYou have no friends. :(\n");
         else
         {
           if (flag)
-            System.out.println("\tYou have " + result.size() + " friends.\n");
+            screen.append("\tYou have ").append(result.size()).append(" friends.\n\n");
 
-          String output = "";
-          int count = 0;
           for(List<String> list : result)
-          {
-            String name = list.get(0).trim();
-            FormatContact(esql,  name);
-          }
+            FormatContact(list.get(0), list.get(1));
         }
       }
-      
+
       catch(Exception e)
       {
         System.err.println ("\t"+e.getMessage ());
       }
+
+      screen.flush();
    }
 
-   public static void DisplayBlocked(Messenger esql, String authorisedUser, boolean flag)
+   // Shows one of a user's lists a page at a time, in login order. Between pages
+   // the user can go on, narrow the list to logins starting with a prefix, or stop.
+   // Returns false when the list is empty.
+   public static boolean BrowseList(Messenger esql, String authorisedUser, String listType, boolean flag)
    {
+      boolean contacts = listType.equals("contact");
       try
       {
-        String query = 
-        "SELECT ULC.list_member " +
-        "FROM USER_LIST_CONTAINS ULC, USR U " + 
-        "WHERE U.block_list = ULC.list_id AND U.login = '" + authorisedUser + "';";
+        ListPager pager = ListPager.open(esql, authorisedUser, listType, "");
+        if (pager == null)
+          return false;
+
+        // the count and the first page are read on the pool together; allOf waits for both
+        // even if one fails, so no pool thread is still moving the pager on afterwards
+        final ListPager first = pager;
+        QueryFuture<List<List<String>>> count = flag ? queries.query(pager.countQuery()) : null;
+        QueryFuture<List<List<String>>> firstPage = queries.submit(new QueryPool.Query<List<List<String>>>() {
+          public List<List<String>> run (Messenger connection) throws SQLException {
+            return first.next(connection);
+          }
+        });
+        if (count != null)
+          QueryFuture.allOf(count, firstPage).join();
+        List<List<String>> page = firstPage.join();
+        if (page.size() == 0)
+        {
+          screen.append(contacts ? "\tYou have no friends. :(\n" : "\tYou haven't blocked anyone yet.\n");
+          screen.flush();
+          return false;
+        }
 
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> result = esql.executeQueryAndReturnResult(query);
-        if(result.size() == 0)
-          System.out.println("\tYou haven't blocked anyone yet.");
-        else
+        if (count != null)
         {
-          if (flag)
-            System.out.println("\tYou blocked " + result.size() + " users.\n");
+          String n = count.join().get(0).get(0).trim();
+          if (contacts)
+            screen.append("\tYou have ").append(n).append(" friends.\n\n");
+          else
+            screen.append("\tYou blocked ").append(n).append(" users.\n\n");
+        }
+        DisplayListPage(esql, page, contacts);
 
-          String output = "";
-          int count = 0;
-          for(List<String> list : result)
-          {
-            ++count;
-            for(String word : list)
-              output+="\t" + word.trim() + "\n";
-          }
+        // an empty page means the prefix matched nobody, so ask again
+        while (pager.hasMore() || page.size() == 0)
+        {
+          System.out.print("\tEnter for more, a login prefix ending in * to search, 'q' to stop: ");
+          String choice = in.readLine().trim();
+
+          if (choice.equals("q") || choice.equals("Q"))
+            break;
+          if (choice.endsWith("*"))
+            pager = ListPager.open(esql, authorisedUser, listType, choice.substring(0, choice.length() - 1));
+          else if (!pager.hasMore())
+            break;
 
-          System.out.println(output);
+          page = pager.next(esql);
+          if (page.size() == 0)
+            screen.append("\tNobody on this list starts with '").append(pager.prefix()).append("'.\n");
+          DisplayListPage(esql, page, contacts);
         }
-      } // end of try
+      }
 
       catch(Exception e)
       {
-         System.err.println (e.getMessage ());
+        System.err.println ("\t"+e.getMessage ());
       }
-   }
-
-  public static void VerifyContactBlock(Messenger esql, String authorisedUser, String listType)
-  {
-
-    boolean isValidUser = false;
-    String userToRemove = "";
 
-    try 
-    {
-      String userQuery = "";
+      screen.flush();
+      return true;
+   }
 
-      // obtain the users in the list.
-      if (listType.equals("block"))
-        userQuery = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.block_list = ULC.list_id AND U.login = '%s'", authorisedUser);
+   // Shows one page from a ListPager; contact pages carry statuses.
+   private static void DisplayListPage(Messenger esql, List<List<String>> page, boolean contacts)
+   {
+      if (contacts)
+      {
+        // a page is far smaller than the status cache, so it warms the cache for the
+        // contacts on screen without pushing any of them out again
+        for(List<String> list : page)
+        {
+          statuses.put(list.get(0).trim(), list.get(1));
+          FormatContact(list.get(0), list.get(1));
+        }
+      }
       else
-        userQuery = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.contact_list = ULC.list_id AND U.login = '%s'", authorisedUser);
+      {
+        for(List<String> list : page)
+        {
+          screen.append('\t');
+          screen.appendTrimmed(list.get(0));
+          screen.append('\n');
+        }
 
-      List<List<String>> result = esql.executeQueryAndReturnResult(userQuery);
+        screen.append('\n');
+      }
 
-      if(result.size() == 0)
-        return;
+      screen.flush();
+   }
 
-      // check if the input is a valid user in the list
-      while (!isValidUser)
+  public static void VerifyContactBlock(Messenger esql, String authorisedUser, String listType)
+  {
+    try 
+    {
+      // the delete itself tells whether the input is a member of the list
+      while (true)
       {
         System.out.print("\tWho do you want to remove? (Type 'q' to go back): ");
-        userToRemove = in.readLine();
+        String userToRemove = in.readLine();
 
         if (userToRemove.equals("q") || userToRemove.equals ("Q"))
         {
@@ -889,44 +1269,23 @@ public class Messenger {
           return;
         }
 
-        // check if user entered a valid member
-        for (List<String> login : result)
-        {
-          if ( (login.get(0).trim()).equals(userToRemove))
-          {
-            isValidUser = true;
-            break;
-          }
-        }
-
-        if (!isValidUser)
-          System.out.println("\t" + "User " + userToRemove + " doesn't belong to this list!");
-
-      } // end of while loop isValidUser
-
-      // valid user, so remove them from the list
-      if (listType.equals("block"))
-      {
-          String removeFrom = String.format(
-          "DELETE FROM USER_LIST_CONTAINS "+
-          "WHERE (select block_list from USR where login='%s')=list_id "+
-          "AND list_member = '%s'",authorisedUser, userToRemove);
-          esql.executeUpdate(removeFrom);
-
-          System.out.println("\n\t" + userToRemove + " is no longer blocked.");
-      }
-
-      else
-      {
         String removeFrom = String.format(
         "DELETE FROM USER_LIST_CONTAINS "+
-        "WHERE (select contact_list from USR where login='%s')=list_id "+
-        "AND list_member = '%s'", authorisedUser, userToRemove);
-        esql.executeUpdate(removeFrom);
+        "WHERE (select %s from USR where login='%s')=list_id "+
+        "AND list_member = '%s'", listType.equals("block") ? "block_list" : "contact_list", authorisedUser, userToRemove);
 
-        System.out.println("\n\t" + userToRemove + " has been removed from contacts.");
-      }
+        if (esql.executeUpdate(removeFrom) == 0)
+        {
+          System.out.println("\t" + "User " + userToRemove + " doesn't belong to this list!");
+          continue;
+        }
 
+        if (listType.equals("block"))
+          System.out.println("\n\t" + userToRemove + " is no longer blocked.");
+        else
+          System.out.println("\n\t" + userToRemove + " has been removed from contacts.");
+        return;
+      } // end of while loop
 
     } // end of try
 
@@ -936,18 +1295,17 @@ public class Messenger {
     }
   }
 
-   //Try to get this to alphabetical order. Use Indexes.
    public static void ListContacts(Messenger esql,String authorisedUser){
         String menuTitle = "Your Contacts";
         DisplayMenuTitle(menuTitle);
-        DisplayContacts(esql, authorisedUser, true);
+        BrowseList(esql, authorisedUser, "contact", true);
         DisplayEndTitle(menuTitle);     
     }
 
   public static void ListBlocks(Messenger esql,String authorisedUser){
       String menuTitle = "Blocked Users";
       DisplayMenuTitle(menuTitle);
-      DisplayBlocked(esql, authorisedUser, true);
+      BrowseList(esql, authorisedUser, "block", true);
       DisplayEndTitle(menuTitle);    
     }
 
@@ -955,8 +1313,8 @@ public class Messenger {
   {
     String title = "Remove a Contact";
     DisplayMenuTitle(title);
-    DisplayContacts(esql, authorisedUser, false);
-    VerifyContactBlock(esql, authorisedUser, "contact");
+    if (BrowseList(esql, authorisedUser, "contact", false))
+      VerifyContactBlock(esql, authorisedUser, "contact");
     DisplayEndTitle(title);
   }
 
@@ -964,66 +1322,68 @@ public class Messenger {
   {
     String title = "Unblock a User";
     DisplayMenuTitle(title);
-    DisplayBlocked(esql, authorisedUser, false);
-    VerifyContactBlock(esql, authorisedUser, "block");
+    if (BrowseList(esql, authorisedUser, "block", false))
+      VerifyContactBlock(esql, authorisedUser, "block");
     DisplayEndTitle(title);
   }
 
+  // Padding width of each chat table column, taken from the header labels below
+  private static final int[] CHAT_TABLE_WIDTHS = { 12, 12, 19, 17, 9 };
+
   // Steph's Note: This function attempts to place the table divider, "|", at the right location
-  public static String FormatChatTableRow(String menuOption, String listItem, int column)
+  // (it pads a cell of itemLength characters and appends the divider straight into the screen buffer)
+  public static void FormatChatTableRow(int itemLength, int column)
   {
-    int actualSpaces = 0;
-    String formattedString = "";
+    if (column < CHAT_TABLE_WIDTHS.length)
+      screen.spaces(CHAT_TABLE_WIDTHS[column] - itemLength);
 
-    // Chat ID column: ten spaces, then | for column 1
-    if (column == 0)
-    {
-      String columnName = "   Chat ID  ";
-      int numSpaces = columnName.length();
-      actualSpaces = numSpaces - menuOption.length() - listItem.length();
-    }
+    screen.append('|');
+  }
 
-    else if (column == 1)
-    {
-      String columnName = "  Chat Type  ";
-      int numSpaces = columnName.length();
-      actualSpaces = numSpaces - listItem.length() - 1;
-    }
-    else if (column == 2)
-    {
-      String columnName = "  Initial Sender   ";
-      actualSpaces = columnName.length() - listItem.length();
-    }
+  // Appends one row of the chat table. A long recent message (column 3)
+  // is cut down to 12 characters plus "..." so the table stays aligned.
+  public static void FormatChatTableRow(List<String> row)
+  {
+    screen.append('\t');
 
-    else if (column == 3)
+    int last = row.size() - 1;
+    for (int i = 0; i < last; ++i)
     {
-      String columnName = "  Recent Message ";
-      actualSpaces = columnName.length() - listItem.length();
-    }
+      String item = row.get(i);
+      int length = ScreenBuffer.trimmedLength(item);
 
-    for (int i = 0; i < actualSpaces; i++)
-      formattedString += " ";
+      if (length > 15 && i == 3)
+      {
+        int start = ScreenBuffer.trimStart(item);
+        screen.append(item, start, start + 12).append("...");
+        length = 15;
+      }
+      else
+        screen.appendTrimmed(item);
 
-    return formattedString + "|";
+      FormatChatTableRow(length, i);
+      screen.append(' ');
+    }
 
+    if (last >= 0)
+      screen.appendTrimmed(row.get(last));
+    screen.append('\n');
   }
 
+  private static final String CHAT_TABLE_HEADER =
+    "\n\t====================================================================================================\n" +
+    "\t   Chat ID  |  Chat Type  |   Initial Sender   |  Recent Message  |  Unread  |       Timestamp  \n" +
+    "\t============|=============|====================|==================|==========|======================\n";
+
+  private static final String OWNED_CHAT_TABLE_HEADER =
+    "\n\t==============================================\n" +
+    "\t   Chat ID  |  Chat Type  |   Initial Sender\n" +
+    "\t============|=============|===================\n";
+
   // Steph's Note: This function is only used when listing all of the chats.
   public static void DisplayChatTable(boolean flag)
   {
-    if (flag)
-    {
-      System.out.println("\n\t=========================================================================================");
-      System.out.println("\t   Chat ID  |  Chat Type  |   Initial Sender   |  Recent Message  |       Timestamp  ");
-      System.out.println("\t============|=============|====================|==================|======================");
-    }
-
-    else
-    {
-      System.out.println("\n\t==============================================");
-      System.out.println("\t   Chat ID  |  Chat Type  |   Initial Sender");
-      System.out.println("\t============|=============|===================");
-    }
+    screen.append(flag ? CHAT_TABLE_HEADER : OWNED_CHAT_TABLE_HEADER);
   }
 
 
@@ -1036,7 +1396,11 @@ public class Messenger {
       try{
         // For display chats, check if person is member (currentUser) of chat_id.
         // then display all chats according chat_id
-        String query = String.format("SELECT C.*, M.msg_text, M.msg_timestamp FROM CHAT C, MESSAGE M WHERE M.msg_timestamp IN (SELECT MAX(M1.msg_timestamp) AS ts FROM MESSAGE M1 WHERE M1.chat_id = C.chat_id) AND  C.chat_id = M.chat_id AND C.chat_id IN  (SELECT CL.chat_id FROM CHAT_LIST CL WHERE CL.member='%s' ) ORDER BY M.msg_timestamp DESC", authorisedUser);
+        // The unread badge is the chat's last message number minus the one the member has
+        // read up to (see mark_read), so no messages have to be counted here.
+        // Each chat's latest message is its highest seq; msg_id orders chats by when that was sent.
+        // Chats with nothing in MESSAGE yet are still listed, after the others.
+        String query = String.format("SELECT C.chat_id, C.chat_type, C.owner_id, M.msg_text, CASE WHEN C.last_seq > CL.read_seq THEN CAST(C.last_seq - CL.read_seq AS text) || ' new' ELSE '' END, M.msg_timestamp FROM CHAT_LIST CL JOIN CHAT C ON C.chat_id = CL.chat_id LEFT JOIN MESSAGE M ON M.chat_id = C.chat_id AND M.seq = (SELECT MAX(M1.seq) FROM MESSAGE M1 WHERE M1.chat_id = C.chat_id) WHERE CL.member_id = %d ORDER BY M.msg_id IS NULL, M.msg_id DESC", directory.id(esql, authorisedUser));
 
         System.out.println("\tOne moment... loading chats...");
 
@@ -1049,34 +1413,13 @@ public class Messenger {
 
             DisplayChatTable(flag);
 
-            String output = "";
-            int count = 0;
-
-            // rows
+            // rows; owners come back as user ids
             for(List<String> list : result)
             {
-              ++count;
-              //String rowString = count + ". ";
-              String rowString = "";
-              output +="\t" + rowString;
-
-          // columns
-          for(int i=0;i<list.size();++i){
-            if(i==list.size()-1)
-              output+=list.get(i).trim();
-            else
-            {
-                String listItem = list.get(i).trim();
-                if (listItem.length() > 15 && i == 3)
-                  listItem = listItem.substring(0,12) + "...";
-                output +=  listItem + FormatChatTableRow (rowString, listItem, i) + " ";
-
-              }
+              if (list.get(2) != null)
+                list.set(2, directory.login(esql, Integer.parseInt(list.get(2))));
+              FormatChatTableRow(list);
             }
-            output += "\n";
-          }
-          System.out.print(output);
-          output="";
         }
       }
 
@@ -1095,14 +1438,7 @@ public class Messenger {
       boolean chatInterfacing = true;
 
       while(chatInterfacing){
-        System.out.println("\n\n\t===================================");
-        System.out.println("\t\tCHAT INTERFACE");
-        System.out.println("\t===================================");
-        System.out.println("\t1. Enter a Chat");
-        System.out.println("\t2. Create a New Chat");
-        System.out.println("\t3. Delete a Chat");
-        System.out.println("\t===================================");
-        System.out.println("\t9. Leave Chat Interface");
+        screen.append(CHAT_INTERFACE_MENU);
 
         switch(readChoice()){
           case 1: EnterChat(esql, authorisedUser); break;
@@ -1128,6 +1464,8 @@ public class Messenger {
       boolean invalidChatID = true;
       int chatID = -1;
       String chatIDChoice = "";
+      int showNumMessages = 10;
+      ChatView view = null;
 
       while(invalidChatID)
       {
@@ -1138,12 +1476,22 @@ public class Messenger {
         if (chatIDChoice.equals("q") || chatIDChoice.equals("Q") || chatIDChoice.equals("quit") || chatIDChoice.equals("QUIT"))
           return;
 
-        String checkChatIDExistsQuery = "SELECT chat_id FROM chat_list WHERE member = '" + authorisedUser + "' AND chat_id = '" + chatIDChoice + "'";
-        int chatCount = esql.executeQuery(checkChatIDExistsQuery);
+        int choice = -1;
+        try
+        {
+          choice = Integer.parseInt(chatIDChoice.trim());
+        }
+        catch (NumberFormatException e)
+        {
+        }
+
+        // the roster index turns other chats away without a query
+        if(choice >= 0)
+          view = ChatView.open(esql, directory, authorisedUser, choice, showNumMessages);
 
-        if(chatCount == 1)
+        if(view != null)
         {
-          chatID = Integer.parseInt(chatIDChoice);
+          chatID = choice;
           invalidChatID = false;
         }
         else
@@ -1151,58 +1499,38 @@ public class Messenger {
 
       }
 
-      int showNumMessages = 10;
-
       boolean inChat = true;
       boolean isGroupOwner = false;
       boolean messagesLoaded = false;
       String retMsg = "";
 
-      // check if user is group owner of the chats
-      String groupOwnerQuery = String.format("SELECT init_sender from CHAT WHERE chat_id = %s AND init_sender = '%s'", chatIDChoice, authorisedUser);
-      int groupOwnerVal = esql.executeQuery(groupOwnerQuery);
-
-      String getOwnerQuery = String.format("SELECT init_sender from CHAT WHERE chat_id = %s", chatIDChoice);
-      List<List<String>> groupOwnerResult = esql.executeQueryAndReturnResult(getOwnerQuery);
-
-      if (groupOwnerVal != 0)
-        isGroupOwner = true;
-
       while(inChat)
       {
-        ShowChatMessages(esql, authorisedUser, chatID, chatIDChoice, showNumMessages);
-
-        if (messagesLoaded)
+        // the first screen shows the chat as it was opened; later ones read it again, also in one query
+        if (view == null)
+          view = ChatView.open(esql, directory, authorisedUser, chatID, showNumMessages);
+        if (view == null)
         {
-          System.out.println ("\tPast 10 messages have been loaded. Scroll up to view them.");
-          messagesLoaded = false;
+          System.out.println("\tYou are no longer in chat #" + chatID + ".");
+          break;
         }
 
-        System.out.println(retMsg);
+        isGroupOwner = view.owner.equals(authorisedUser);
+        ShowChatMessages(esql, authorisedUser, view, showNumMessages);
 
-        System.out.println("");
-        System.out.println("\tChat #" + chatIDChoice + " Options");
-        System.out.println("\tGroup Owner: " + groupOwnerResult.get(0).get(0));
-        System.out.println("\t=======================");
-        System.out.println("\t1. Show Chat Members");
-        System.out.println("\t2. Write a New Message");
-        System.out.println("\t3. Delete a Message");
-        System.out.println("\t4. Edit a Message");
-        System.out.println("\t5. Load Messages");
-
-        if (isGroupOwner) 
+        if (messagesLoaded)
         {
-          System.out.println("\t6. Add a User to Chat");
-          System.out.println("\t7. Remove a User From Chat");
+          screen.append("\tPast 10 messages have been loaded. Scroll up to view them.\n");
+          messagesLoaded = false;
         }
-        
-        else
-        {
-			System.out.println("\t6. Leave Chat");
-		}
 
-        System.out.println("\t=======================");
-        System.out.println("\t9. Exit Chat");
+        screen.append(retMsg).append('\n');
+
+        screen.append("\n\tChat #").append(chatID).append(" Options\n");
+        screen.append("\tGroup Owner: ").append(view.owner).append('\n');
+        screen.append("\tMembers: ").append(view.memberCount).append(" (").append(view.type).append(")\n");
+        screen.append(isGroupOwner ? OWNER_CHAT_MENU : MEMBER_CHAT_MENU);
+        view = null;
 
         if (isGroupOwner)
         {
@@ -1248,11 +1576,30 @@ public class Messenger {
     }
   } // end EnterChat
 
+  private static final String CHAT_MENU =
+    "\t=======================\n" +
+    "\t1. Show Chat Members\n" +
+    "\t2. Write a New Message\n" +
+    "\t3. Delete a Message\n" +
+    "\t4. Edit a Message\n" +
+    "\t5. Load Messages\n";
+
+  private static final String OWNER_CHAT_MENU = CHAT_MENU +
+    "\t6. Add a User to Chat\n" +
+    "\t7. Remove a User From Chat\n" +
+    "\t=======================\n" +
+    "\t9. Exit Chat\n";
+
+  private static final String MEMBER_CHAT_MENU = CHAT_MENU +
+    "\t6. Leave Chat\n" +
+    "\t=======================\n" +
+    "\t9. Exit Chat\n";
+
   public static boolean LeaveChat(Messenger esql, String authorisedUser, int chatID){
 	  
 	try
 	{
-		String leaveChat = "DELETE FROM chat_list WHERE chat_id = "+chatID+" AND member = '"+authorisedUser+"'";
+		String leaveChat = "DELETE FROM chat_list WHERE chat_id = "+chatID+" AND member_id = "+directory.id(esql, authorisedUser);
 		esql.executeUpdate(leaveChat);
 		
 		System.out.println("\tYou have left chat #" + chatID);
@@ -1274,32 +1621,35 @@ public class Messenger {
 
     try
     {
+      // the contact list is shown after the chat is made and the first message typed; read it meanwhile
+      QueryFuture<List<List<String>>> contacts = queries.query(ContactsQuery(authorisedUser));
+
       String nextChatIDquery = "SELECT chat_id FROM chat ORDER BY chat_id DESC LIMIT 1";
       List<List<String>> result = esql.executeQueryAndReturnResult(nextChatIDquery);
 
       int newChatID = Integer.parseInt(result.get(0).get(0)) + 1;
 
-      String query = String.format("INSERT INTO CHAT (chat_id, chat_type, init_sender) VALUES (%d, 'private', '%s')", newChatID, authorisedUser);
+      int userID = directory.id(esql, authorisedUser);
+      String query = String.format("INSERT INTO CHAT (chat_id, chat_type, owner_id) VALUES (%d, 'private', %d)", newChatID, userID);
       esql.executeUpdate(query);
 
-      String query1 = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", newChatID, authorisedUser);
+      String query1 = String.format("INSERT INTO chat_list (chat_id, member_id) VALUES (%d, %d)", newChatID, userID);
       esql.executeUpdate(query1);
 
       // ask user to write an initial message
-      String messageIDQuery = "SELECT msg_id FROM message ORDER BY msg_id DESC LIMIT 1";
-      String timestampQuery = "SELECT LOCALTIMESTAMP(0)";
-
-      List<List<String>> result_msgID = esql.executeQueryAndReturnResult(messageIDQuery);
-      List<List<String>> result_timestamp = esql.executeQueryAndReturnResult(timestampQuery);
-
-      int msgID = Integer.parseInt(result_msgID.get(0).get(0)) + 1;
-      String timestamp = result_timestamp.get(0).get(0);
-
       System.out.print("\tEnter an initial message: ");
       String message = in.readLine();
-      String initMessageQuery = String.format("INSERT INTO message (msg_id, msg_text, msg_timestamp, sender_login, chat_id) VALUES (%d, '%s', '%s', '%s', %d)",
-                                     msgID, message, timestamp, authorisedUser, newChatID);
-      esql.executeUpdate(initMessageQuery);
+      String initMessageQuery = String.format("SELECT post_message(%d, %d, '%s', NULL)", newChatID, userID, message);
+      int posted = Integer.parseInt(esql.executeQueryAndReturnResult(initMessageQuery).get(0).get(0).trim());
+
+      // over the posting limit (see post_message): a chat without its first message is not kept
+      if (posted == -2)
+      {
+        esql.executeQueryAndReturnResult(String.format("SELECT delete_chat(%d, %d)", newChatID, userID));
+        System.out.println("\tYou are sending messages too fast. Wait a moment and try again.");
+        DisplayEndTitle(title);
+        return;
+      }
 
       // Create a dummy message which contains the dummy message's timestamp.
       // This timestamp is used to determine when the chat was created.
@@ -1309,12 +1659,12 @@ public class Messenger {
       // This means I need to take care of these special cases in Edit, Delete, Display message.
 
       // display contact list and prompt
-      DisplayContacts(esql,authorisedUser,false);
+      DisplayContacts(esql, contacts.join(), false);
       System.out.println("Who do you want to add to the chat from your contact? \nEnter each contact one at a time. Type 'done' when finished adding.");
 
       boolean doneAdding = false;
-      int groupSize = 0;
 
+      // chat_type follows the member count as members are added (see count_members)
       while(!doneAdding)
       {
         System.out.print("\t");
@@ -1328,25 +1678,20 @@ public class Messenger {
         	"WHERE U.contact_list = ULC.list_id AND U.login = '%s' AND ULC.list_member = '%s'", authorisedUser, newUser);
         int result1 = esql.executeQuery(checkUserQuery);
 
-        if (result1 == 0)
+        int newUserID = directory.id(esql, newUser);
+        if (result1 == 0 || newUserID < 0)
           System.out.println("\t" + newUser + " is an invalid user!\n");
 
         // add the user to chat
         else
         {
-          String query2 = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", newChatID, newUser);
+          String query2 = String.format("INSERT INTO chat_list (chat_id, member_id) VALUES (%d, %d)", newChatID, newUserID);
           esql.executeUpdate(query2);
           System.out.println("\t" + newUser + " has been added to chat #" + newChatID + "\n");
-          groupSize++;
         }
 
       }
 
-      if (groupSize > 1)
-      {
-        String query3 = String.format ("UPDATE chat SET chat_type = 'group' WHERE chat_id = %s", newChatID);
-        esql.executeUpdate(query3);
-      }
       System.out.println("\tChat #" + newChatID + " created.");
     }
     catch(Exception e)
@@ -1365,7 +1710,8 @@ public class Messenger {
     try
     {
       // first, find all of the chats that they own using init sender. List those chats.
-      String query1 = String.format("SELECT * FROM CHAT WHERE init_sender = '%s'", authorisedUser);
+      int userID = directory.id(esql, authorisedUser);
+      String query1 = String.format("SELECT chat_id, chat_type, '%s' FROM CHAT WHERE owner_id = %d", authorisedUser, userID);
       List<List<String>> chatList = esql.executeQueryAndReturnResult(query1);
 
       if(chatList.size() == 0)
@@ -1378,37 +1724,12 @@ public class Messenger {
       {
         DisplayChatTable(false);
 
-        String output = "";
-        int count = 0;
-
         // rows
         for(List<String> list : chatList)
-        {
-          ++count;
-          //String rowString = count + ". ";
-          String rowString = "";
-          output +="\t" + rowString;
-
-          // columns
-          for(int i=0;i<list.size();++i)
-          {
-            if(i==list.size()-1)
-              output+=list.get(i).trim();
-            else
-            {
-                String listItem = list.get(i).trim();
+          FormatChatTableRow(list);
 
-                //output+=list.get(i).trim() + ", ";
-                output +=  listItem + FormatChatTableRow (rowString, listItem, i) + " ";
-
-            }
-          } // end of for loop columns
-
-          output += "\n";
-
-        } // end of for loop rows
-
-        System.out.println(output);
+        screen.append('\n');
+        screen.flush();
       } // end of else
 
       // then, ask them to pick a chat. then check if the chat exists with the current user and chat id from input
@@ -1422,28 +1743,18 @@ public class Messenger {
         return;
       }
 
-      String query2 = String.format("SELECT * FROM CHAT WHERE chat_id = %s AND init_sender = '%s'", chatID, authorisedUser);
+      // check that the chat exists and is yours, then delete message -> chat_list -> chat, all in one transaction
+      String query2 = String.format("SELECT delete_chat(%s, %d)", chatID, userID);
+      int removed = Integer.parseInt(esql.executeQueryAndReturnResult(query2).get(0).get(0));
 
-      // then execute query, check if that chat exists. if true, delete all messages first where chat_id = input_chatID
-      int count = esql.executeQuery(query2);
-      if (count == 0)
+      if (removed < 0)
         System.out.println("\tInvalid chat #!");
 
       else
       {
-        // then delete from message -> chat_list -> chat
-        String query3 = String.format("DELETE FROM MESSAGE WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query3);
+        archive.deleteChat(Integer.parseInt(chatID.trim()));
         System.out.println("\tMessages from chat #" + chatID + " deleted.");
-
-        // then delete the entries in chat_list
-        String query4 = String.format("DELETE FROM CHAT_LIST WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query4);
         System.out.println("\tRemoving members from chat #" + chatID);
-
-        // then delete the chat
-        String query5 = String.format("DELETE FROM CHAT WHERE chat_id = %s", chatID);
-        esql.executeUpdate(query5);
         System.out.println("\tChat #" + chatID + " deleted.");
       }
     }
@@ -1458,25 +1769,21 @@ public class Messenger {
   public static void ShowChatMembers(Messenger esql,String authorisedUser,int chatID){
    	String menuTitle = "Chat Members";
   	try{
-  		String query = "SELECT DISTINCT CL.member FROM CHAT C, CHAT_LIST CL WHERE "+chatID+" = CL.chat_id";
-        List<List<String> > result = esql.executeQueryAndReturnResult(query);
+  		// from the members index, no query unless membership changed somewhere
+        List<String> result = rosters.members(esql, chatID);
           if(result.size() == 0){
-            System.out.println("\n\tNo members in chat");
-            DisplayEndTitle(menuTitle);   
+            screen.append("\n\tNo members in chat\n");
           }else{
-           	  System.out.println("======================"+menuTitle+"======================\n");
-              System.out.println("\tYou have " + result.size() + " members in chat.");
+           	  screen.append("======================").append(menuTitle).append("======================\n\n");
+              screen.append("\tYou have ").append(result.size()).append(" members in chat.\n");
 
-	          String output = "";
-	          int count = 0;
-	          for(List<String> list : result)
+	          for(String member : result)
 	          {
-	            ++count;
-	            for(String word : list)
-	              // output+="\t"+count +". "+ word.trim() + "\n";
-	              output += "\t" + word.trim() + "\n";
+	            screen.append('\t');
+	            screen.append(member);
+	            screen.append('\n');
 	          }
-	          System.out.println(output);
+	          screen.append('\n');
           }
       }
       catch(Exception e)
@@ -1508,132 +1815,108 @@ public class Messenger {
    *                                      \|
    *                                       '
    */
+  // Width of the message area inside an empty bubble; longer messages stretch the bubble.
+  private static final int BUBBLE_WIDTH = 35;
+
+  // The column values may still carry their char(n) padding; only the trimmed text is drawn.
   public static void DisplayChatMessages(String msg_id, String body, String timestamp, String sender, String authorisedUser)
   {
-    String bottom1;
-    String bottom2;
-    String bottom3;
-
-    boolean addTabs = false;
-
-    // check if sender == authorizedUSer
-    if (sender.equals(authorisedUser))
-    {
-      addTabs = true;
-      bottom1 = "|____________________________________";
-      bottom2 = "                                     ";
-      bottom3 = "                                      ";
-    }
-
-    else
-    {
-      bottom1 = "| ___________________________________";
-      bottom2 = "|/";
-      bottom3 = "'";
-    }
+    int bodyLength = ScreenBuffer.trimmedLength(body);
+    int senderLength = ScreenBuffer.trimmedLength(sender);
+    int timestampLength = ScreenBuffer.trimmedLength(timestamp);
+    int width = Math.max(BUBBLE_WIDTH, bodyLength);
 
-    String topLine = " ____________________________________";
-    String squiggles = "|~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~";
-    String bubbleSpace = "                                   ";
+    // your own messages are indented and get the tail on the right
+    boolean ownMessage = IsSameLogin(sender, authorisedUser);
+    String tab = ownMessage ? "\t" : "";
 
-    int extraChar = 0;
-    String fillSpace = "";
+    screen.append(tab).append("[ ");
+    screen.appendTrimmed(msg_id);
+    screen.append(" ]\n");
 
-    // if this is true, you need to extend the chat bubble
-    // determine how many more underscores and spaces you need
-    if (bubbleSpace.length() < body.length())
-    {
-      extraChar = body.length() - bubbleSpace.length();
+    screen.append(tab).append(' ').underscores(width + 2).append('\n');
 
+    screen.append(tab).append("| ");
+    screen.appendTrimmed(sender);
+    screen.append(" | ");
+    screen.appendTrimmed(timestamp);
+    screen.spaces(width - senderLength - 3 - timestampLength).append(" |\n"); // num of spaces needed til "|"
 
-      for (int i = 0; i < extraChar; i++)
-      {
-          topLine += "_";
-          squiggles += "~";
-          bubbleSpace += " ";
+    screen.append(tab).append('|').tildes(width + 2).append("|\n");
 
-          if (sender.equals(authorisedUser))
-          {
-            bottom1 += "_";
-            bottom2 += " ";
-            bottom3 += " ";
-          }
+    screen.append(tab).append("| ");
+    screen.appendTrimmed(body);
+    screen.spaces(width - bodyLength).append(" |\n");
 
-          else
-            bottom1 += "_";
+    screen.append(tab).append("| ").spaces(width).append(" |\n");
 
-      }
+    if (ownMessage)
+    {
+      screen.append(tab).append('|').underscores(width + 1).append(" |\n");
+      screen.append(tab).spaces(width + 2).append("\\|\n");
+      screen.append(tab).spaces(width + 3).append("'\n");
     }
 
     else
     {
-      int numSpaces = bubbleSpace.length() - body.length();
-      for (int i = 0; i < numSpaces; i++)
-        fillSpace += " ";
+      screen.append("| ").underscores(width).append("_|\n");
+      screen.append("|/\n");
+      screen.append("'\n");
     }
+  }
 
-      String sendertimeLine = "| " + sender + " | " + timestamp;
-      int numSpacesBorder = bubbleSpace.length() - sender.length() - 3 - timestamp.length(); // num of spaces needed til "|"
-
-      // concatenate spaces for Sender | timestamp;
-      for (int j = 0; j < numSpacesBorder; j++)
-        sendertimeLine += " ";
-
-      String tab = "";
-
-      if (addTabs)
-        tab = "\t";
-
-      System.out.println(tab + "[ " + msg_id + " ]");
-      System.out.println(tab + topLine + "_");
-      System.out.println(tab + sendertimeLine + " |");
-      System.out.println(tab + squiggles + "~|");
-      System.out.println(tab + "| " + body + fillSpace + " |");
-      System.out.println(tab + "| " + bubbleSpace + " |");
-
-      if (sender.equals(authorisedUser))
-      {
-        System.out.println(tab + bottom1 + " |");
-        System.out.println(tab + bottom2 + "\\|");
-        System.out.println(tab + bottom3 + "'");
-      }
-
-      else
-      {
-        System.out.println(bottom1 + "_|");
-        System.out.println(bottom2);
-        System.out.println(bottom3);
-      }
+  // Compares a padded char(50) login column with a login without trimming the column.
+  public static boolean IsSameLogin(String column, String login)
+  {
+    int start = ScreenBuffer.trimStart(column);
+    int end = ScreenBuffer.trimEnd(column, start);
+    return (end - start) == login.length() && column.regionMatches(start, login, 0, login.length());
   }
   
   //(this one shows all messages in a given chat)
-  public static void ShowChatMessages(Messenger esql, String authorisedUser, int chatID, String chatIDChoice, int showNumMessages)
+  public static void ShowChatMessages(Messenger esql, String authorisedUser, ChatView view, int showNumMessages)
   {
-    String menuTitle = "Chat #" + chatIDChoice + " Messages";
-    DisplayMenuTitle(menuTitle);
-    String query = "SELECT M.msg_id, M.msg_text, M.msg_timestamp, M.sender_login FROM message M WHERE M.chat_id = '" + chatID + "' ORDER BY M.msg_timestamp DESC LIMIT " + showNumMessages;
+    int chatID = view.chatID;
+    String menuTitle = "Chat #" + chatID + " Messages";
+    AppendMenuTitle(menuTitle);
 
     try
     {
-      List<List<String>> result = esql.executeQueryAndReturnResult(query);
-
+      // the page was read with the chat, newest first along the chat's (chat_id, seq) index
+      List<List<String>> result = new ArrayList<List<String>>(view.messages);
+      int newestSeq = result.size() > 0 ? Integer.parseInt(result.get(0).get(4).trim()) : -1;
+
+      // MESSAGE only keeps recent history; once that runs out, keep going in the archive
+      // from just before the oldest seq shown
+      int live = result.size();
+      if (live < showNumMessages)
+      {
+        long beforeSeq = live > 0 ? Long.parseLong(result.get(live - 1).get(4).trim()) : Long.MAX_VALUE;
+        result.addAll(archive.readBefore(chatID, beforeSeq, showNumMessages - live));
+      }
 
       if(result.size() == 0)
-        System.out.println("\tThis chat has no messages.");
+        screen.append("\tThis chat has no messages.\n");
 
       else
       {
-        String output = "";
-
         // row
         int numRows = result.size();
         for(int i = numRows-1; i >= 0; i--)
         {
           List<String> row = result.get(i);
-          DisplayChatMessages(row.get(0).trim(), row.get(1).trim(), row.get(2).trim(), row.get(3).trim(), authorisedUser);
+          DisplayChatMessages(row.get(0), row.get(1), row.get(2), row.get(3), authorisedUser);
+
+          if (i == live && live < numRows)
+            screen.append("\t-- messages above are archived and can no longer be edited or deleted --\n\n");
 
         } // end for loop rows
 
+        // move the reader's watermark up to the newest message on screen
+        if (newestSeq >= 0)
+          esql.executeQueryAndReturnResult(String.format("SELECT mark_read(%d, %d, %d)",
+            chatID, directory.id(esql, authorisedUser), newestSeq));
+
       } // end else
 
     } // end try
@@ -1643,7 +1926,8 @@ public class Messenger {
       System.err.println (e.getMessage ());
     }
 
-    DisplayEndTitle(menuTitle);
+    // the chat options menu is appended after this, so the whole screen goes out with readChoice()
+    AppendEndTitle(menuTitle);
 
   }
 
@@ -1654,25 +1938,22 @@ public class Messenger {
 
     try
     {
-      // first, obtain the msg_id.
-      String query1 = "SELECT msg_id FROM message ORDER BY msg_id DESC LIMIT 1";
-      String timestampQuery = "SELECT LOCALTIMESTAMP(0)";
-
-      List<List<String>> result_msgID = esql.executeQueryAndReturnResult(query1);
-      List<List<String>> result_timestamp = esql.executeQueryAndReturnResult(timestampQuery);
-
-      int msgID = Integer.parseInt(result_msgID.get(0).get(0)) + 1;
-      String timestamp = result_timestamp.get(0).get(0);
-
       System.out.print("\tEnter a message: ");
       String message = in.readLine();
-      String query2 = String.format("INSERT INTO message (msg_id, msg_text, msg_timestamp, sender_login, chat_id) VALUES (%d, '%s', '%s', '%s', %d)",
-                                     msgID, message, timestamp, authorisedUser, chatID);
-
 
-      esql.executeUpdate(query2); 
-      
-      ret = "\n\tMessage was sent!";
+      // the outbox journals the message first, so it is not lost if the database is away
+      Outbox.Entry sent = outbox.post(chatID, authorisedUser, message);
+      boolean applied = outbox.await(sent);
+      if (!applied && sent.isLimited())
+        ret = "\n\tYou are sending messages too fast. Your message is saved and will be sent in a moment.";
+      else if (!applied)
+        ret = "\n\tThe database cannot be reached. Your message is saved and will be sent when it is back.";
+      else if (sent.error() != null)
+        ret = sent.error();
+      else if (sent.result() < 0)
+        ret = "\n\tThis chat no longer exists.";
+      else
+        ret = "\n\tMessage was sent!";
     }
 
     catch (Exception e)
@@ -1704,11 +1985,11 @@ public class Messenger {
       }
 
       // first check that the user chose a correct message.
-      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_login = '%s'", msgID, chatID, authorisedUser);
+      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_id = %d", msgID, chatID, directory.id(esql, authorisedUser));
       List<List<String>> result = esql.executeQueryAndReturnResult(verifyMSGIDquery);
 
       if (result.size() == 0)
-        ret = "\tError: You have either entered an invalid message # or tried to delete another user's message.";
+        ret = "\tError: You have either entered an invalid message #, tried to delete another user's message, or chosen an archived message.";
       else
       {
         String oldMessage = result.get(0).get(0);
@@ -1756,11 +2037,11 @@ public class Messenger {
       }
 
       // first check that the user chose a correct message.
-      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_login = '%s'", msgID, chatID, authorisedUser);
+      String verifyMSGIDquery = String.format ("SELECT msg_text FROM MESSAGE WHERE msg_id = %s AND chat_id = %d AND sender_id = %d", msgID, chatID, directory.id(esql, authorisedUser));
       List<List<String>> result = esql.executeQueryAndReturnResult(verifyMSGIDquery);
 
       if (result.size() == 0)
-        ret = "\tError: You have either entered an invalid message # or tried to edit another user's message.";
+        ret = "\tError: You have either entered an invalid message #, tried to edit another user's message, or chosen an archived message.";
       else
       {
         String oldMessage = result.get(0).get(0);
@@ -1768,10 +2049,15 @@ public class Messenger {
         System.out.print("\tEnter a new message: ");
         String newMessage = in.readLine();
 
-        String editMessageQuery = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = %s", newMessage, msgID);
-        esql.executeUpdate(editMessageQuery);
-
-        ret = "\tMessage #" + msgID + " has been editted.";
+        Outbox.Entry edited = outbox.edit(chatID, authorisedUser, Integer.parseInt(msgID.trim()), newMessage);
+        if (!outbox.await(edited))
+          ret = "\tThe database cannot be reached. Your edit is saved and will be made when it is back.";
+        else if (edited.error() != null)
+          ret = edited.error();
+        else if (edited.result() == 0)
+          ret = "\tMessage #" + msgID + " no longer exists or has been archived.";
+        else
+          ret = "\tMessage #" + msgID + " has been editted.";
       }
     }
 
@@ -1804,18 +2090,19 @@ public class Messenger {
           System.out.println("\tYou have no friends. :(");
         else
         {
-            System.out.println("\tYou have " + result.size() + " friends.\n");
+            screen.append("\tYou have ").append(result.size()).append(" friends.\n\n");
 
-          String output = "";
-          int count = 0;
           for(List<String> list : result)
           {
-            ++count;
             for(String word : list)
-              // output+="\t"+count +". "+ word.trim() + "\n";
-              output += "\t" + word.trim() + "\n";
+            {
+              screen.append('\t');
+              screen.appendTrimmed(word);
+              screen.append('\n');
+            }
           }
-            System.out.println(output);
+            screen.append('\n');
+            screen.flush();
         }
     }
 
@@ -1834,11 +2121,12 @@ public class Messenger {
     try
     {
       // display friends who aren't in the chat yet
-      String chatMembers = String.format("SELECT member FROM CHAT_LIST WHERE chat_id = %d", chatID);
       String contacts = String.format("SELECT ULC.list_member FROM USER_LIST_CONTAINS ULC, USR U WHERE U.contact_list = ULC.list_id AND U.login = '%s'", authorisedUser);
-      String query = contacts + " AND ULC.list_member NOT IN (" + chatMembers + ")";
 
-      List<List<String>> users = esql.executeQueryAndReturnResult(query);
+      List<List<String>> users = new ArrayList<List<String>>();
+      for (List<String> contact : esql.executeQueryAndReturnResult(contacts))
+        if (!rosters.isMember(esql, contact.get(0), chatID))
+          users.add(contact);
 
       if (users.size() == 0)
       {
@@ -1855,12 +2143,29 @@ public class Messenger {
       // check if user entered a valid input
       while (!isValidUser)
       {
-        System.out.print("\n\tWho do you want to add? (Type 'q' to cancel): ");
+        System.out.print("\n\tWho do you want to add? (Type 'q' to cancel, end with * to narrow the list): ");
         userToAdd = in.readLine();
 
         if (userToAdd.equals("q") || userToAdd.equals("Q"))
           return "\tNo users were added to the chat.";
 
+        // only the friends listed above can be added, so narrow that list down
+        if (userToAdd.endsWith("*"))
+        {
+          String prefix = userToAdd.substring(0, userToAdd.length() - 1);
+          for (List<String> u : users)
+          {
+            if (u.get(0).startsWith(prefix))
+            {
+              screen.append('\t');
+              screen.appendTrimmed(u.get(0));
+              screen.append('\n');
+            }
+          }
+          screen.flush();
+          continue;
+        }
+
         for (List<String> u : users)
         {
           if (userToAdd.equals(u.get(0).trim()))
@@ -1874,42 +2179,33 @@ public class Messenger {
           System.out.println("\tUser " + userToAdd + "is either already in the chat or an invalid user.");
       } // end of while for isValidUser
 
-      List<List<String>> numMembers = esql.executeQueryAndReturnResult(chatMembers);
+      int numMembers = rosters.count(esql, chatID);
 
-      // after adding this member, check if this action will make the group more than 2 people. if so, change from private to group.
-      if ( (numMembers.size() <= 2)  )
+      // adding to a private chat shows its messages to someone new, so ask first
+      if ( (numMembers <= 2)  )
       {
           System.out.print("\tAre you sure you want to add this user? New users will see your private messages. (y/n): ");
           String answer = in.readLine();
 
-          if (answer.equals("y") || answer.equals("Y") || answer.equals("yes") || answer.equals ("YES"))
-          {
-            // add the user 
-            String addMemberQuery = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", chatID, userToAdd);
-            esql.executeUpdate(addMemberQuery);
-
-             ret = "\t" + userToAdd + " has been added to the chat.";
-
-             // if adding a user to a chat consisting of one other person, change chat_type from private->group
-             if (numMembers.size() == 2)
-             {
-                String privateToGroupQuery = String.format("UPDATE CHAT SET chat_type = 'group' WHERE chat_id = %d", chatID);
-                esql.executeUpdate(privateToGroupQuery);
-                ret += "\n\t" + "Chat #" + chatID + " is now a group chat.";
-             }
-          } // end of checking for yes
-
-          else
+          if (!(answer.equals("y") || answer.equals("Y") || answer.equals("yes") || answer.equals ("YES")))
             return "\t" + userToAdd + " was not added to the chat.";
 
       } // end of if that checks if user really wants to add another user
 
+      // add the user; the chat becomes a group in the same statement, and the
+      // count that comes back tells whether it was this add that did it
+      String addMemberQuery = String.format("SELECT add_chat_member(%d, %d)", chatID, directory.id(esql, userToAdd));
+      int members = Integer.parseInt(esql.executeQueryAndReturnResult(addMemberQuery).get(0).get(0).trim());
+
+      if (members == -2)
+        ret = "\t" + userToAdd + " is not a user.";
+      else if (members < 0)
+        ret = "\t" + userToAdd + " is already in the chat.";
       else
       {
-        // add the user 
-        String addMemberQuery = String.format("INSERT INTO chat_list (chat_id, member) VALUES (%d, '%s')", chatID, userToAdd);
-        esql.executeUpdate(addMemberQuery);
         ret = "\t" + userToAdd + " has been added to the chat.";
+        if (members == 3)
+          ret += "\n\t" + "Chat #" + chatID + " is now a group chat.";
       }
 
     } // end of try
@@ -1932,28 +2228,23 @@ public class Messenger {
 
     try{
       // first display users in the chat
-        String chatMemberQuery = String.format("SELECT CL.member FROM CHAT_LIST CL WHERE CL.chat_id = %d AND CL.member != '%s'", chatID, authorisedUser);
-
-        //Returns # of fitting results
-        //HAVE TO USE executeQueryAndReturnResult, no not use executeQuery
-        List<List<String>> chatMemberList = esql.executeQueryAndReturnResult(chatMemberQuery);
+        List<String> chatMemberList = new ArrayList<String>(rosters.members(esql, chatID));
+        chatMemberList.remove(authorisedUser);
         if(chatMemberList.size() == 0)
           ret = "\tYou can't remove yourself from the chat! :(";
         else
         {
           System.out.println("\tThere are " + chatMemberList.size() + " other user(s) in this chat.\n");
 
-          String output = "";
-          int count = 0;
-          for(List<String> list : chatMemberList)
+          for(String member : chatMemberList)
           {
-            ++count;
-            for(String word : list)
-              // output+="\t"+count +". "+ word.trim() + "\n";
-              output += "\t" + word.trim() + "\n";
+            screen.append('\t');
+            screen.append(member);
+            screen.append('\n');
           }
 
-          System.out.println(output);
+          screen.append('\n');
+          screen.flush();
 
           boolean isValidMember = false;
           String userToRemove = "";
@@ -1970,9 +2261,9 @@ public class Messenger {
             }
 
             // check if user entered a valid member
-            for (List<String> login : chatMemberList)
+            for (String login : chatMemberList)
             {
-              if ( (login.get(0).trim()).equals(userToRemove))
+              if (login.equals(userToRemove))
               {
                 isValidMember = true;
                 break;
@@ -1984,16 +2275,17 @@ public class Messenger {
 
           } // end of while loop
 
-          String removeUserQuery = String.format ("DELETE FROM CHAT_LIST WHERE chat_id = %d AND member = '%s'", chatID, userToRemove);
-          esql.executeUpdate(removeUserQuery);
-          ret = "\n\t" + userToRemove + " has been removed from chat #" + chatID + ".";
+          // the chat goes back to private in the same statement once two members are left
+          String removeUserQuery = String.format ("SELECT remove_chat_member(%d, %d)", chatID, directory.id(esql, userToRemove));
+          int members = Integer.parseInt(esql.executeQueryAndReturnResult(removeUserQuery).get(0).get(0).trim());
 
-          // after deleting this member, check if this action will make the group less than 2 people. if so, make the group private.
-          if ( (chatMemberList.size() == 2) && (chatMemberList.size() - 1) < 2)
+          if (members < 0)
+            ret = "\n\t" + userToRemove + " had already left chat #" + chatID + ".";
+          else
           {
-            String groupToPrivateQuery = String.format("UPDATE CHAT SET chat_type = 'private' WHERE chat_id = %d", chatID);
-            esql.executeUpdate(groupToPrivateQuery);
-            ret += "\n\t" + "Chat #" + chatID + " is now a private chat.";
+            ret = "\n\t" + userToRemove + " has been removed from chat #" + chatID + ".";
+            if (members == 2)
+              ret += "\n\t" + "Chat #" + chatID + " is now a private chat.";
           }
 
         } // end of else
@@ -0,0 +1,480 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Local journal of messages and edits on their way to the database, so
+ * nothing the user typed is lost when the database cannot be reached.
+ *
+ * post() and edit() append the write to an append-only journal file and
+ * return once it is on disk; a background thread then applies the writes in
+ * order on its own connection.  Writers that arrive while the file is being
+ * synced are covered by the next sync together, so a burst of posts costs
+ * one fsync rather than one each.  Each write carries an id made up by the
+ * client, which post_message uses to recognise a post it already has, so a
+ * write whose answer was lost is simply applied again.  Applied writes get a
+ * DONE record; those are not synced, since replaying a write twice is
+ * harmless.
+ *
+ * When a write fails and the connection turns out to be dead, the thread
+ * reconnects its connection with exponential backoff and carries on where
+ * it stopped.  Other connections are left to the threads that use them.
+ * Writes the database refuses are reported and dropped.  A post over the
+ * posting limit (post_message returns -2) is not refused for good: it stays
+ * first in line and is tried again once the sender's bucket has had time to
+ * refill, backing off further while it is still turned away, so a backlog
+ * written offline goes out at the rate the limit allows.  Whatever is not
+ * done by close() is replayed the next time the journal is opened.
+ *
+ * Record layout: length, CRC32 of the payload, payload.  A torn record at
+ * the end (a crash while appending) is cut off on open.
+ *
+ */
+public class Outbox {
+
+   private static final byte POST = 1;
+   private static final byte EDIT = 2;
+   private static final byte DONE = 3;
+
+   private static final long FIRST_BACKOFF_MILLIS = 250;
+   private static final long MAX_BACKOFF_MILLIS = 30000;
+   // a sender's bucket gets one post back a second (see post_message)
+   private static final long LIMIT_BACKOFF_MILLIS = 1000;
+   // how long a caller waits for the database before telling the user the write is queued
+   private static final long WAIT_MILLIS = 2000;
+   private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+   // the journal is emptied once everything in it is done and it has grown this big
+   private static final long COMPACT_BYTES = 1 << 20;
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * A queued write.  Callers can wait for it to be applied.
+    */
+   public static class Entry {
+      final String clientID;
+      final byte type;
+      final int chatID;
+      final String sender;
+      final int msgID;
+      final String text;
+
+      private final CountDownLatch _done = new CountDownLatch(1);
+      private volatile int _result;
+      private volatile String _error;
+      private volatile boolean _limited;
+
+      Entry (String clientID, byte type, int chatID, String sender, int msgID, String text) {
+         this.clientID = clientID;
+         this.type = type;
+         this.chatID = chatID;
+         this.sender = sender;
+         this.msgID = msgID;
+         this.text = text;
+      }
+
+      /**
+       * For a post, the message's number within the chat, or -1 if the chat
+       * is gone; for an edit, the number of messages changed.
+       */
+      public int result () {
+         return this._result;
+      }
+
+      /**
+       * Why the database refused the write, or null.
+       */
+      public String error () {
+         return this._error;
+      }
+
+      /**
+       * True while the post is held back by the posting limit.
+       */
+      public boolean isLimited () {
+         return this._limited;
+      }
+   }//end Entry
+
+   private final RandomAccessFile _file;
+   private final FileChannel _journal;
+   private final FileLock _lock;
+   private final Messenger _connection;
+   private final UserDirectory _directory;
+   private final BlockingQueue<Entry> _pending = new LinkedBlockingQueue<Entry>();
+   private final Thread _worker;
+
+   private final SecureRandom _ids = new SecureRandom();
+   private final Random _jitter = new Random();
+
+   // appends (and queueing, which must happen with them) are serialised on _writeLock;
+   // syncs on _syncLock, which is taken first when both are needed
+   private final Object _writeLock = new Object();
+   private final Object _syncLock = new Object();
+   private long _written;
+   private long _synced;
+
+   private volatile boolean _online = true;
+
+   /**
+    * Opens a user's journal, outbox-<login>.journal in the directory named
+    * by the messenger.outbox.dir system property (default the working
+    * directory), and starts replaying it.  Each user has their own, so
+    * clients sharing a directory only get in each other's way when they are
+    * logged in as the same user.
+    *
+    * @param login the user whose writes go through the outbox
+    * @param connection a connection used only by the outbox thread
+    * @param directory resolves the logins in the journal to user ids
+    * @throws java.io.IOException when the journal cannot be read or is in use by another client
+    */
+   public static Outbox open (String login, Messenger connection, UserDirectory directory) throws IOException {
+      return new Outbox(new File(System.getProperty("messenger.outbox.dir", "."), journalName(login)),
+         connection, directory);
+   }
+
+   // Logins may hold characters a file name cannot; anything but letters, digits, '-' and '_' is hex escaped.
+   static String journalName (String login) {
+      StringBuilder name = new StringBuilder("outbox-");
+      for (byte b : login.trim().getBytes(UTF8)) {
+         char c = (char) (b & 0xff);
+         if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_')
+            name.append(c);
+         else
+            name.append('%').append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return name.append(".journal").toString();
+   }//end journalName
+
+   public Outbox (File file, Messenger connection, UserDirectory directory) throws IOException {
+      this._file = new RandomAccessFile(file, "rw");
+      this._journal = this._file.getChannel();
+      this._lock = this._journal.tryLock();
+      if (this._lock == null) {
+         this._file.close();
+         throw new IOException("Outbox " + file + " is in use by another client logged in as the same user");
+      }
+      this._connection = connection;
+      this._directory = directory;
+
+      load();
+      if (!this._pending.isEmpty())
+         System.out.println("\t" + this._pending.size() + " unsent message(s) will be sent now.");
+
+      this._worker = new Thread(new Runnable() {
+         public void run () {
+            work();
+         }
+      }, "outbox");
+      this._worker.setDaemon(true);
+      this._worker.start();
+   }//end Outbox
+
+   /**
+    * Queues a message.  Returns once it is safely in the journal.
+    *
+    * @param chatID the chat to post to
+    * @param sender the login of the sender
+    * @param text the message
+    * @return the queued write
+    * @throws java.io.IOException when the journal cannot be written
+    */
+   public Entry post (int chatID, String sender, String text) throws IOException {
+      return append(new Entry(newClientID(), POST, chatID, sender, 0, text));
+   }
+
+   /**
+    * Queues an edit of one of the sender's messages.  Returns once it is
+    * safely in the journal.
+    *
+    * @param chatID the chat the message is in
+    * @param sender the login of the sender, who must have written the message
+    * @param msgID the message to change
+    * @param text the new text
+    * @return the queued write
+    * @throws java.io.IOException when the journal cannot be written
+    */
+   public Entry edit (int chatID, String sender, int msgID, String text) throws IOException {
+      return append(new Entry(newClientID(), EDIT, chatID, sender, msgID, text));
+   }
+
+   /**
+    * Waits a little for a queued write to be applied.  Does not wait at all
+    * while the database is known to be unreachable.
+    *
+    * @return true if the write was applied (or refused), false if it is still queued
+    */
+   public boolean await (Entry entry) {
+      try{
+         return entry._done.await(this._online ? WAIT_MILLIS : 0, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         return false;
+      }//end try
+   }//end await
+
+   /**
+    * False while the outbox thread is waiting for the database to come back.
+    */
+   public boolean isOnline () {
+      return this._online;
+   }
+
+   /**
+    * Stops the outbox thread.  Writes not applied yet stay in the journal.
+    */
+   public void close () {
+      this._worker.interrupt();
+      try{
+         this._worker.join(CLOSE_TIMEOUT_MILLIS);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+
+      synchronized (this._syncLock) {
+         try{
+            this._journal.force(false);
+            this._lock.release();
+            this._file.close();
+         }catch (IOException e){
+            // the DONE records not synced yet only cost a harmless replay
+         }//end try
+      }
+      this._connection.cleanup();
+   }//end close
+
+   // 128 random bits: unique without asking the database
+   private String newClientID () {
+      byte[] bytes = new byte[16];
+      this._ids.nextBytes(bytes);
+      StringBuilder id = new StringBuilder(32);
+      for (byte b : bytes)
+         id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return id.toString();
+   }
+
+   private Entry append (Entry entry) throws IOException {
+      long end;
+      synchronized (this._writeLock) {
+         end = write(encode(entry));
+         this._pending.add(entry);
+      }
+      sync(end);
+      return entry;
+   }//end append
+
+   // Group commit: whoever gets the sync lock syncs everything written so far,
+   // and those that queued up behind it find their records already covered.
+   private void sync (long end) throws IOException {
+      synchronized (this._syncLock) {
+         if (this._synced >= end)
+            return;
+         long written;
+         synchronized (this._writeLock) {
+            written = this._written;
+         }
+         this._journal.force(false);
+         this._synced = written;
+      }
+   }//end sync
+
+   private long write (byte[] payload) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+      record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+      while (record.hasRemaining())
+         this._written += this._journal.write(record, this._written);
+      return this._written;
+   }//end write
+
+   private static byte[] encode (Entry entry) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(entry.type);
+      out.writeUTF(entry.clientID);
+      if (entry.type != DONE) {
+         out.writeInt(entry.chatID);
+         out.writeUTF(entry.sender);
+         out.writeInt(entry.msgID);
+         byte[] text = entry.text.getBytes(UTF8);
+         out.writeInt(text.length);
+         out.write(text);
+      }
+      out.flush();
+      return bytes.toByteArray();
+   }//end encode
+
+   private static Entry decode (byte[] payload) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+      byte type = in.readByte();
+      String clientID = in.readUTF();
+      if (type == DONE)
+         return new Entry(clientID, DONE, 0, null, 0, null);
+      int chatID = in.readInt();
+      String sender = in.readUTF();
+      int msgID = in.readInt();
+      byte[] text = new byte[in.readInt()];
+      in.readFully(text);
+      return new Entry(clientID, type, chatID, sender, msgID, new String(text, UTF8));
+   }//end decode
+
+   // Reads the journal back: every write without a DONE record is queued again, in order.
+   private void load () throws IOException {
+      LinkedHashMap<String, Entry> open = new LinkedHashMap<String, Entry>();
+      long size = this._journal.size();
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate(8);
+      while (position + 8 <= size) {
+         header.clear();
+         while (header.hasRemaining() && this._journal.read(header, position + header.position()) > 0);
+         header.flip();
+         int length = header.getInt();
+         int checksum = header.getInt();
+         if (length < 0 || position + 8 + length > size)
+            break;
+
+         ByteBuffer payload = ByteBuffer.allocate(length);
+         while (payload.hasRemaining() && this._journal.read(payload, position + 8 + payload.position()) > 0);
+         CRC32 crc = new CRC32();
+         crc.update(payload.array());
+         if ((int) crc.getValue() != checksum)
+            break;
+
+         Entry entry = decode(payload.array());
+         if (entry.type == DONE)
+            open.remove(entry.clientID);
+         else
+            open.put(entry.clientID, entry);
+         position += 8 + length;
+      }//end while
+
+      if (position < size) {
+         System.err.println("\tOutbox: dropping " + (size - position) + " byte(s) of an incomplete record.");
+         this._journal.truncate(position);
+         this._journal.force(false);
+      }
+      this._written = position;
+      this._synced = position;
+      this._pending.addAll(open.values());
+   }//end load
+
+   private void work () {
+      long backoff = FIRST_BACKOFF_MILLIS;
+      long limitBackoff = LIMIT_BACKOFF_MILLIS;
+      // only this thread takes from the queue, so the write being applied is held here until it is done
+      Entry entry = null;
+      try{
+         while (true) {
+            if (entry == null) {
+               compact();
+               entry = this._pending.take();
+            }
+
+            try{
+               apply(entry);
+            }catch (SQLException e){
+               if (this._connection.isAlive())
+                  // the database is there and said no; trying again will not change that
+                  entry._error = e.getMessage();
+               else {
+                  this._online = false;
+                  // random part so clients do not all come back at the same moment
+                  Thread.sleep(backoff / 2 + (long) (this._jitter.nextDouble() * backoff / 2));
+                  backoff = Math.min(MAX_BACKOFF_MILLIS, 2 * backoff);
+                  reconnect();
+                  continue;
+               }
+            }//end try
+            backoff = FIRST_BACKOFF_MILLIS;
+
+            if (entry.type == POST && entry._error == null && entry._result == -2) {
+               // over the posting limit: keep it, and everything behind it, until the bucket refills
+               entry._limited = true;
+               Thread.sleep(limitBackoff + (long) (this._jitter.nextDouble() * limitBackoff / 2));
+               limitBackoff = Math.min(MAX_BACKOFF_MILLIS, 2 * limitBackoff);
+               continue;
+            }
+            limitBackoff = LIMIT_BACKOFF_MILLIS;
+            entry._limited = false;
+            finish(entry);
+            entry = null;
+         }//end while
+      }catch (InterruptedException e){
+         // closing
+      }//end try
+   }//end work
+
+   private void apply (Entry entry) throws SQLException {
+      // the journal records senders by login; the id is looked up when the entry is applied
+      int sender = this._directory.id(this._connection, entry.sender);
+      if (sender < 0)
+         throw new SQLException("User " + entry.sender + " no longer exists");
+
+      if (entry.type == POST) {
+         entry._result = Integer.parseInt(this._connection.executeQueryAndReturnResult(String.format(
+            "SELECT post_message(%d, %d, '%s', '%s')",
+            entry.chatID, sender, entry.text, entry.clientID)).get(0).get(0));
+      }
+      else
+         // setting the same text twice is harmless, so an edit needs no id check
+         entry._result = this._connection.executeUpdate(String.format(
+            "UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = %d AND chat_id = %d AND sender_id = %d",
+            entry.text, entry.msgID, entry.chatID, sender));
+   }//end apply
+
+   private void reconnect () {
+      try{
+         this._connection.reconnect();
+      }catch (SQLException e){
+         return;
+      }//end try
+      this._online = true;
+   }//end reconnect
+
+   private void finish (Entry entry) {
+      synchronized (this._writeLock) {
+         try{
+            write(encode(new Entry(entry.clientID, DONE, 0, null, 0, null)));
+         }catch (IOException e){
+            // without the DONE record the write is replayed once more, which is harmless
+         }//end try
+      }
+      entry._done.countDown();
+   }//end finish
+
+   // Empties the journal once nothing in it is still pending.
+   private void compact () {
+      synchronized (this._syncLock) {
+         synchronized (this._writeLock) {
+            if (this._written < COMPACT_BYTES || !this._pending.isEmpty())
+               return;
+            try{
+               this._journal.truncate(0);
+               this._journal.force(false);
+               this._written = 0;
+               this._synced = 0;
+            }catch (IOException e){
+               System.err.println("\tOutbox: could not compact the journal: " + e.getMessage());
+            }//end try
+         }
+      }
+   }//end compact
+
+}//end Outbox
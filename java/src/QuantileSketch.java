@@ -0,0 +1,68 @@
+/**
+ * Approximate quantiles of positive values in fixed memory.
+ *
+ * Values are counted in buckets whose bounds grow geometrically, so any
+ * quantile comes back within ACCURACY (relative) of a value that was
+ * actually added, no matter how many values there are.  Zeros are counted
+ * on their own.  Sketches merge by adding up their buckets.
+ *
+ */
+public class QuantileSketch {
+
+   private static final double ACCURACY = 0.01;
+   private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+   private static final double LOG_GAMMA = Math.log(GAMMA);
+   // bucket i covers (GAMMA^(i-OFFSET-1), GAMMA^(i-OFFSET)]: about 1e-18 to 1e17
+   private static final int OFFSET = 2048;
+
+   private final long[] _buckets = new long[2 * OFFSET];
+   private long _zeros = 0;
+   private long _count = 0;
+   private double _max = 0;
+
+   public void add (double value) {
+      if (value <= 0)
+         ++this._zeros;
+      else {
+         int i = (int) Math.ceil(Math.log(value) / LOG_GAMMA) + OFFSET;
+         ++this._buckets[Math.max(0, Math.min(this._buckets.length - 1, i))];
+      }
+      ++this._count;
+      this._max = Math.max(this._max, value);
+   }//end add
+
+   public void merge (QuantileSketch other) {
+      for (int i = 0; i < this._buckets.length; ++i)
+         this._buckets[i] += other._buckets[i];
+      this._zeros += other._zeros;
+      this._count += other._count;
+      this._max = Math.max(this._max, other._max);
+   }
+
+   public long count () {
+      return this._count;
+   }
+
+   public double max () {
+      return this._max;
+   }
+
+   /**
+    * The value at quantile q, e.g. 0.5 for the median.
+    */
+   public double quantile (double q) {
+      if (this._count == 0)
+         return 0;
+      long rank = (long) Math.ceil(q * this._count);
+      long seen = this._zeros;
+      if (seen >= rank)
+         return 0;
+      for (int i = 0; i < this._buckets.length; ++i) {
+         seen += this._buckets[i];
+         if (seen >= rank)
+            return Math.min(this._max, 2 * Math.pow(GAMMA, i - OFFSET) / (GAMMA + 1));
+      }
+      return this._max;
+   }//end quantile
+
+}//end QuantileSketch
@@ -0,0 +1,131 @@
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The result of a query running on a QueryPool.
+ *
+ * join() waits for it and hands back the query's own SQLException, instead
+ * of the ExecutionException of a plain Future.  Results are composed with
+ * thenCombine and allOf; a composed result is worked out by the first
+ * thread that joins it, once both sides are in, so composing never ties up
+ * a pool thread waiting.
+ *
+ */
+public class QueryFuture<T> {
+
+   /**
+    * Merges two results into one.
+    */
+   public interface Combiner<A, B, R> {
+      R combine (A a, B b) throws SQLException;
+   }
+
+   private final Future<T> _future;
+   // set for composed results, which run on the first join
+   private final FutureTask<T> _deferred;
+
+   QueryFuture (Future<T> future) {
+      this(future, null);
+   }
+
+   private QueryFuture (Future<T> future, FutureTask<T> deferred) {
+      this._future = future;
+      this._deferred = deferred;
+   }
+
+   private static <T> QueryFuture<T> deferred (Callable<T> work) {
+      FutureTask<T> task = new FutureTask<T>(work);
+      return new QueryFuture<T>(task, task);
+   }
+
+   /**
+    * Waits for the result.
+    *
+    * @return what the query returned
+    * @throws java.sql.SQLException when the query failed
+    */
+   public T join () throws SQLException {
+      if (this._deferred != null)
+         this._deferred.run();
+
+      boolean interrupted = false;
+      try{
+         while (true) {
+            try{
+               return this._future.get();
+            }catch (InterruptedException e){
+               // the connection is busy with the query either way; wait it out
+               interrupted = true;
+            }//end try
+         }
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         if (cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+         if (cause instanceof Error)
+            throw (Error) cause;
+         throw new SQLException(String.valueOf(cause));
+      }finally{
+         if (interrupted)
+            Thread.currentThread().interrupt();
+      }//end try
+   }//end join
+
+   /**
+    * Combines this result with another one that runs at the same time.
+    *
+    * @param other the other result
+    * @param combiner merges the two once both are in
+    * @return the merged result
+    */
+   public <U, R> QueryFuture<R> thenCombine (final QueryFuture<U> other, final Combiner<? super T, ? super U, R> combiner) {
+      final QueryFuture<T> self = this;
+      return deferred(new Callable<R>() {
+         public R call () throws Exception {
+            return combiner.combine(self.join(), other.join());
+         }
+      });
+   }//end thenCombine
+
+   /**
+    * Waits for all of the given results.  Every one of them is waited for
+    * even if one fails; the first failure is then thrown.
+    */
+   public static QueryFuture<Void> allOf (final QueryFuture<?>... futures) {
+      return deferred(new Callable<Void>() {
+         public Void call () throws Exception {
+            SQLException failure = null;
+            for (QueryFuture<?> future : futures) {
+               try{
+                  future.join();
+               }catch (SQLException e){
+                  if (failure == null)
+                     failure = e;
+               }//end try
+            }
+            if (failure != null)
+               throw failure;
+            return null;
+         }
+      });
+   }//end allOf
+
+   /**
+    * Runs a query on the calling thread and wraps its outcome.
+    */
+   static <T> QueryFuture<T> now (final QueryPool.Query<T> query, final Messenger esql) {
+      FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+         public T call () throws Exception {
+            return query.run(esql);
+         }
+      });
+      task.run();
+      return new QueryFuture<T>(task);
+   }//end now
+
+}//end QueryFuture
@@ -0,0 +1,186 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs queries that do not depend on each other at the same time, so an
+ * operation waits for its slowest query instead of the sum of them.
+ *
+ * The pool holds a few connections of its own and one thread per
+ * connection; a query borrows a connection for as long as it runs.  Queries
+ * are handed in as a Query and come back as a QueryFuture.  The
+ * pool connections do not LISTEN, so caches should be read through the main
+ * connection.  When a query fails because its connection dropped, the
+ * connection is replaced before it goes back into the pool.
+ *
+ * The size comes from the messenger.queries property (default 2); 0 runs
+ * everything on the caller's connection as before.
+ *
+ */
+public class QueryPool {
+
+   /**
+    * Work for a pooled connection.
+    */
+   public interface Query<T> {
+      T run (Messenger esql) throws SQLException;
+   }
+
+   private static final int QUEUE_PER_CONNECTION = 16;
+
+   private final BlockingQueue<Messenger> _idle;
+   private final List<Messenger> _connections = new ArrayList<Messenger>();
+   private final ThreadPoolExecutor _pool;
+   // used when the pool has no connections
+   private final Messenger _fallback;
+
+   /**
+    * Opens the pool sized by the messenger.queries property.
+    *
+    * @param fallback the connection to run queries on when the pool is empty
+    * @throws java.sql.SQLException when a connection cannot be made
+    */
+   public static QueryPool open (String dbname, String dbport, String user, Messenger fallback) throws SQLException {
+      return new QueryPool(dbname, dbport, user, Integer.getInteger("messenger.queries", 2), fallback);
+   }
+
+   public QueryPool (String dbname, String dbport, String user, int size, Messenger fallback) throws SQLException {
+      this._fallback = fallback;
+      this._idle = new ArrayBlockingQueue<Messenger>(Math.max(1, size));
+      try{
+         for (int i = 0; i < size; ++i)
+            this._connections.add(new Messenger(dbname, dbport, user, ""));
+      }catch (SQLException e){
+         for (Messenger connection : this._connections)
+            connection.cleanup();
+         throw e;
+      }//end try
+      this._idle.addAll(this._connections);
+
+      if (size == 0) {
+         this._pool = null;
+         return;
+      }
+      // a full queue runs the query on the caller, which then waits its turn for a connection;
+      // CallerRunsPolicy would drop it silently after close and leave join waiting
+      this._pool = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(QUEUE_PER_CONNECTION * size), new ThreadFactory() {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread(r, "queries");
+               t.setDaemon(true);
+               return t;
+            }
+         }, new RejectedExecutionHandler() {
+            public void rejectedExecution (Runnable r, ThreadPoolExecutor pool) {
+               if (pool.isShutdown())
+                  throw new RejectedExecutionException("query pool is closed");
+               r.run();
+            }
+         });
+   }//end QueryPool
+
+   /**
+    * Starts a query on a pooled connection.
+    *
+    * @param query the work to run
+    * @return its result, to join when it is needed
+    */
+   public <T> QueryFuture<T> submit (final Query<T> query) {
+      if (this._pool == null)
+         return QueryFuture.now(query, this._fallback);
+      try{
+         return new QueryFuture<T>(this._pool.submit(new Callable<T>() {
+            public T call () throws Exception {
+               return borrow(query);
+            }
+         }));
+      }catch (RejectedExecutionException e){
+         // shut down: answer on the caller's connection
+         return QueryFuture.now(query, this._fallback);
+      }//end try
+   }//end submit
+
+   /**
+    * Starts a query returning its rows, as executeSharedQuery: the same query
+    * already running shares its execution and its unmodifiable result, and
+    * takes no pool thread or connection of its own.
+    */
+   public QueryFuture<List<List<String>>> query (final String sql) {
+      final Query<List<List<String>>> shared = new Query<List<List<String>>>() {
+         public List<List<String>> run (Messenger esql) throws SQLException {
+            return esql.executeSharedQuery(sql);
+         }
+      };
+      if (this._pool == null)
+         return QueryFuture.now(shared, this._fallback);
+      try{
+         return new QueryFuture<List<List<String>>>(Messenger.flights.share(sql, this._pool,
+            new Callable<List<List<String>>>() {
+               public List<List<String>> call () throws Exception {
+                  return borrow(new Query<List<List<String>>>() {
+                     public List<List<String>> run (Messenger esql) throws SQLException {
+                        return esql.executeQueryAndReturnResult(sql);
+                     }
+                  });
+               }
+            }));
+      }catch (RejectedExecutionException e){
+         // shut down: answer on the caller's connection
+         return QueryFuture.now(shared, this._fallback);
+      }//end try
+   }//end query
+
+   /**
+    * Starts a query returning whether it found a row, as executeQuery.
+    */
+   public QueryFuture<Integer> count (final String sql) {
+      return submit(new Query<Integer>() {
+         public Integer run (Messenger esql) throws SQLException {
+            return esql.executeQuery(sql);
+         }
+      });
+   }
+
+   private <T> T borrow (Query<T> query) throws Exception {
+      Messenger esql = this._idle.take();
+      try{
+         return query.run(esql);
+      }catch (SQLException e){
+         if (!esql.isAlive()) {
+            try{
+               esql.reconnect();
+            }catch (SQLException ignored){
+               // still down; the next query tries again
+            }//end try
+         }
+         throw e;
+      }finally{
+         this._idle.add(esql);
+      }//end try
+   }//end borrow
+
+   /**
+    * Lets running queries finish and closes the pool's connections.
+    */
+   public void close () {
+      if (this._pool != null) {
+         this._pool.shutdown();
+         try{
+            this._pool.awaitTermination(5, TimeUnit.SECONDS);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }//end try
+      }
+      for (Messenger connection : this._connections)
+         connection.cleanup();
+   }//end close
+
+}//end QueryPool
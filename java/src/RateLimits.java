@@ -0,0 +1,45 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Report of the rate limits every client shares.
+ *
+ * Login attempts (see take_login_attempt) and message posts (see
+ * post_message) are limited in the database, in RATE_BUCKET rows keyed by
+ * kind and name: 'login:<login>' and 'sender:<user id>'.  Each bucket
+ * counts the takes it allowed and refused, and a bucket dropped after an
+ * hour of no use adds its counts to RATE_TOTAL, so the totals cover every
+ * client since the tables were made.  A chat's limit is kept on its CHAT
+ * row instead; only its refusals are counted, under 'chat'.
+ *
+ */
+public class RateLimits {
+
+   /**
+    * Prints how many takes of each kind were allowed and refused, for the
+    * admin command.
+    *
+    * @param esql the connection to read the counts through
+    * @throws java.sql.SQLException when the query fails
+    */
+   public static void report (Messenger esql) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT kind, SUM(taken), SUM(refused) FROM " +
+         "(SELECT kind, taken, refused FROM RATE_TOTAL " +
+         "UNION ALL SELECT split_part(bucket_key, ':', 1), taken, refused FROM RATE_BUCKET) AS counts " +
+         "GROUP BY kind ORDER BY kind");
+      if (rows.isEmpty()) {
+         System.out.println("\tNothing has been rate limited yet.");
+         return;
+      }
+
+      System.out.println(String.format("\t%-8s %12s %12s %9s", "", "allowed", "refused", "refused %"));
+      for (List<String> row : rows) {
+         long taken = Long.parseLong(row.get(1).trim());
+         long refused = Long.parseLong(row.get(2).trim());
+         System.out.println(String.format("\t%-8s %12d %12d %8.1f%%", row.get(0).trim(), taken, refused,
+            taken + refused == 0 ? 0 : 100.0 * refused / (taken + refused)));
+      }
+   }//end report
+
+}//end RateLimits
@@ -0,0 +1,146 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Reusable output buffer for one console session.  Screens append their
+ * contents here and call flush() once, which writes everything to standard
+ * out in a single buffered write.  The builder and the copy buffer are kept
+ * between screens so that redrawing does not allocate.
+ *
+ */
+public class ScreenBuffer {
+
+   // long runs of fill characters; padding is appended as a slice of these
+   private static final int FILL_LENGTH = 512;
+   private static final String SPACES = repeat(' ', FILL_LENGTH);
+   private static final String UNDERSCORES = repeat('_', FILL_LENGTH);
+   private static final String TILDES = repeat('~', FILL_LENGTH);
+   private static final String EQUALS = repeat('=', FILL_LENGTH);
+
+   private final StringBuilder _buffer = new StringBuilder(8192);
+   private char[] _chars = new char[8192];
+   private final Writer _out;
+
+   public ScreenBuffer () {
+      this._out = new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 8192);
+   }//end ScreenBuffer
+
+   public ScreenBuffer append (String s) {
+      this._buffer.append(s);
+      return this;
+   }
+
+   public ScreenBuffer append (char c) {
+      this._buffer.append(c);
+      return this;
+   }
+
+   public ScreenBuffer append (int i) {
+      this._buffer.append(i);
+      return this;
+   }
+
+   public ScreenBuffer append (CharSequence s, int start, int end) {
+      this._buffer.append(s, start, end);
+      return this;
+   }
+
+   /**
+    * Appends s without its leading and trailing whitespace, the same text
+    * s.trim() would give, but without creating the intermediate String.
+    *
+    * @param s the value to append, null appends nothing
+    * @return the number of characters appended
+    */
+   public int appendTrimmed (String s) {
+      if (s == null)
+         return 0;
+      int start = trimStart(s);
+      int end = trimEnd(s, start);
+      this._buffer.append(s, start, end);
+      return end - start;
+   }
+
+   public ScreenBuffer spaces (int n) {
+      return fill(SPACES, n);
+   }
+
+   public ScreenBuffer underscores (int n) {
+      return fill(UNDERSCORES, n);
+   }
+
+   public ScreenBuffer tildes (int n) {
+      return fill(TILDES, n);
+   }
+
+   public ScreenBuffer equalsSigns (int n) {
+      return fill(EQUALS, n);
+   }
+
+   /**
+    * Writes everything appended since the last flush to standard out and
+    * empties the buffer.  Anything already printed through System.out is
+    * flushed first so output stays in order.
+    */
+   public void flush () {
+      int len = this._buffer.length();
+      if (len == 0)
+         return;
+      if (this._chars.length < len)
+         this._chars = new char[Math.max(len, this._chars.length * 2)];
+      this._buffer.getChars(0, len, this._chars, 0);
+      this._buffer.setLength(0);
+      System.out.flush();
+      try{
+         this._out.write(this._chars, 0, len);
+         this._out.flush();
+      }catch (IOException e){
+         System.err.println(e.getMessage());
+      }//end try
+   }//end flush
+
+   public static int trimStart (String s) {
+      int start = 0;
+      while (start < s.length() && s.charAt(start) <= ' ')
+         ++start;
+      return start;
+   }
+
+   public static int trimEnd (String s, int start) {
+      int end = s.length();
+      while (end > start && s.charAt(end - 1) <= ' ')
+         --end;
+      return end;
+   }
+
+   /**
+    * Length of s.trim() without allocating it.
+    */
+   public static int trimmedLength (String s) {
+      if (s == null)
+         return 0;
+      int start = trimStart(s);
+      return trimEnd(s, start) - start;
+   }
+
+   private ScreenBuffer fill (String run, int n) {
+      while (n > 0){
+         int chunk = Math.min(n, FILL_LENGTH);
+         this._buffer.append(run, 0, chunk);
+         n -= chunk;
+      }//end while
+      return this;
+   }
+
+   private static String repeat (char c, int n) {
+      char[] chars = new char[n];
+      java.util.Arrays.fill(chars, c);
+      return new String(chars);
+   }
+
+}//end ScreenBuffer
@@ -0,0 +1,176 @@
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+/**
+ * Coalesces identical reads that run at the same time.
+ *
+ * A read that comes in while the same query is already running, on any of
+ * this client's connections, does not go to the database: it waits for the
+ * running one and gets the same result.  Queries match on their SQL with
+ * whitespace outside string literals collapsed, so the parameters formatted
+ * into them are part of the match.  Results are shared, so they come back
+ * unmodifiable.  Nothing is kept once a query finishes: a read that starts
+ * after it runs again.  Only reads belong here; a write must not be skipped
+ * because an identical one is running.
+ *
+ * Coalescing stops at the process: each session of the messenger runs in
+ * its own, so the reads of two sessions are never shared.
+ *
+ * The counters are registered over JMX (see SingleFlightMBean); the
+ * coalescing ratio is the share of reads that did not reach the database.
+ *
+ */
+public class SingleFlight implements SingleFlightMBean {
+
+   // runs the query on the thread that asked for it
+   private static final Executor CALLER = new Executor() {
+      public void execute (Runnable r) {
+         r.run();
+      }
+   };
+
+   private final ConcurrentMap<String, Future<List<List<String>>>> _inFlight =
+      new ConcurrentHashMap<String, Future<List<List<String>>>>();
+
+   private final AtomicLong _requests = new AtomicLong();
+   private final AtomicLong _executions = new AtomicLong();
+   private final AtomicLong _coalesced = new AtomicLong();
+
+   /**
+    * Creates the coalescer and registers its counters over JMX.
+    */
+   public static SingleFlight open () {
+      SingleFlight flights = new SingleFlight();
+      try{
+         ManagementFactory.getPlatformMBeanServer().registerMBean(flights,
+            new ObjectName("ChitterChatter:type=SingleFlight"));
+      }catch (Exception e){
+         // without JMX reads are still coalesced, the counters just cannot be read remotely
+      }//end try
+      return flights;
+   }//end open
+
+   /**
+    * Reads on the given connection, or waits for the same query already
+    * running elsewhere.
+    *
+    * @param esql the connection to run the query on if it is not running yet
+    * @param sql the query
+    * @return its rows, unmodifiable
+    * @throws java.sql.SQLException when the query fails
+    */
+   public List<List<String>> read (final Messenger esql, final String sql) throws SQLException {
+      return new QueryFuture<List<List<String>>>(share(sql, CALLER, new Callable<List<List<String>>>() {
+         public List<List<String>> call () throws Exception {
+            return esql.executeQueryAndReturnResult(sql);
+         }
+      })).join();
+   }//end read
+
+   /**
+    * Joins the same query if it is running, or starts this one on the
+    * executor.
+    *
+    * @param sql the query, to match on
+    * @param executor where to run the query if it is not running yet
+    * @param query runs the query
+    * @return the running query's result
+    * @throws java.util.concurrent.RejectedExecutionException when the executor turns the query down
+    */
+   public Future<List<List<String>>> share (String sql, Executor executor, final Callable<List<List<String>>> query) {
+      final String key = normalize(sql);
+      this._requests.incrementAndGet();
+
+      FutureTask<List<List<String>>> flight = new FutureTask<List<List<String>>>(new Callable<List<List<String>>>() {
+         public List<List<String>> call () throws Exception {
+            return freeze(query.call());
+         }
+      }) {
+         protected void done () {
+            _inFlight.remove(key, this);
+         }
+      };
+
+      Future<List<List<String>>> running = this._inFlight.putIfAbsent(key, flight);
+      if (running != null) {
+         this._coalesced.incrementAndGet();
+         return running;
+      }
+
+      this._executions.incrementAndGet();
+      try{
+         executor.execute(flight);
+      }catch (RuntimeException e){
+         // done() takes it out again; anyone who joined it in between sees it cancelled
+         flight.cancel(false);
+         this._requests.decrementAndGet();
+         this._executions.decrementAndGet();
+         throw e;
+      }//end try
+      return flight;
+   }//end share
+
+   public long getRequests () {
+      return this._requests.get();
+   }
+
+   public long getExecutions () {
+      return this._executions.get();
+   }
+
+   public long getCoalesced () {
+      return this._coalesced.get();
+   }
+
+   public int getInFlight () {
+      return this._inFlight.size();
+   }
+
+   public double getCoalescingRatio () {
+      long requests = this._requests.get();
+      return requests == 0 ? 0 : (double) this._coalesced.get() / requests;
+   }
+
+   // Collapses whitespace outside string literals, so the same query matches however it was laid out.
+   static String normalize (String sql) {
+      StringBuilder key = new StringBuilder(sql.length());
+      boolean quoted = false;
+      boolean space = false;
+      for (int i = 0; i < sql.length(); ++i) {
+         char c = sql.charAt(i);
+         if (!quoted && Character.isWhitespace(c)) {
+            space = key.length() > 0;
+            continue;
+         }
+         if (space)
+            key.append(' ');
+         space = false;
+         if (c == '\'')
+            quoted = !quoted;
+         key.append(c);
+      }
+      int end = key.length();
+      while (end > 0 && key.charAt(end - 1) == ';')
+         --end;
+      return key.substring(0, end);
+   }//end normalize
+
+   private static List<List<String>> freeze (List<List<String>> rows) {
+      List<List<String>> frozen = new ArrayList<List<String>>(rows.size());
+      for (List<String> row : rows)
+         frozen.add(Collections.unmodifiableList(row));
+      return Collections.unmodifiableList(frozen);
+   }
+
+}//end SingleFlight
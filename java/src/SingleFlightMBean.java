@@ -0,0 +1,17 @@
+/**
+ * Counters of SingleFlight, readable over JMX (e.g. with jconsole) under
+ * ChitterChatter:type=SingleFlight.
+ */
+public interface SingleFlightMBean {
+
+   long getRequests ();
+
+   long getExecutions ();
+
+   long getCoalesced ();
+
+   int getInFlight ();
+
+   double getCoalescingRatio ();
+
+}//end SingleFlightMBean
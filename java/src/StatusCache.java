@@ -0,0 +1,129 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of user status messages keyed by login, so the main menu and the
+ * contact list do not run SELECT status FROM USR on every redraw.
+ *
+ * Entries expire after a TTL and the least recently used entry is evicted
+ * once the cache is full.  A status change runs NOTIFY usr_status; every
+ * Messenger that called listen() drops its cached statuses when the
+ * notification arrives, so sessions sharing one database stay in sync.
+ *
+ */
+public class StatusCache {
+
+   // name of the LISTEN/NOTIFY channel used to invalidate other sessions
+   public static final String CHANNEL = "usr_status";
+
+   private static class CachedStatus {
+      final String status;
+      final long loadedAt;
+
+      CachedStatus (String status, long loadedAt) {
+         this.status = status;
+         this.loadedAt = loadedAt;
+      }
+   }//end CachedStatus
+
+   private final int _maxSize;
+   private final long _ttlMillis;
+   private final LinkedHashMap<String, CachedStatus> _entries;
+
+   /**
+    * Creates an empty cache
+    *
+    * @param maxSize the number of logins kept before the least recently used is evicted
+    * @param ttlMillis how long a cached status is trusted, in milliseconds
+    */
+   public StatusCache (int maxSize, long ttlMillis) {
+      this._maxSize = maxSize;
+      this._ttlMillis = ttlMillis;
+      // access order makes the eldest entry the least recently used one
+      this._entries = new LinkedHashMap<String, CachedStatus>(16, 0.75f, true) {
+         protected boolean removeEldestEntry (Map.Entry<String, CachedStatus> eldest) {
+            return size() > StatusCache.this._maxSize;
+         }
+      };
+   }//end StatusCache
+
+   /**
+    * Subscribes the connection to status change notifications from other sessions.
+    *
+    * @param esql the connection to listen on
+    * @throws java.sql.SQLException when LISTEN fails
+    */
+   public void listen (Messenger esql) throws java.sql.SQLException {
+      esql.listen(CHANNEL);
+   }
+
+   /**
+    * Returns the trimmed status of a user, loading it from USR on a miss.
+    *
+    * @param esql the connection used on a cache miss
+    * @param login the user's login
+    * @return the status, or "" if the user has none
+    * @throws java.sql.SQLException when the status query fails
+    */
+   public synchronized String get (Messenger esql, String login) throws java.sql.SQLException {
+      checkNotifications(esql);
+
+      CachedStatus entry = this._entries.get(login);
+      long now = System.currentTimeMillis();
+      if (entry != null && now - entry.loadedAt < this._ttlMillis)
+         return entry.status;
+
+      String query = String.format("SELECT status FROM USR WHERE login = '%s'", login);
+      List<List<String>> result = esql.executeQueryAndReturnResult(query);
+
+      String status = "";
+      if (result.size() > 0 && result.get(0).get(0) != null)
+         status = result.get(0).get(0).trim();
+
+      this._entries.put(login, new CachedStatus(status, now));
+      return status;
+   }//end get
+
+   /**
+    * Stores a status that was already fetched by another query (e.g. together
+    * with a page of the contact list), so the following lookups are hits.
+    * Only put what one screen shows: more than maxSize entries evict each other.
+    */
+   public synchronized void put (String login, String status) {
+      this._entries.put(login, new CachedStatus(status == null ? "" : status.trim(), System.currentTimeMillis()));
+   }
+
+   public synchronized void invalidate (String login) {
+      this._entries.remove(login);
+   }
+
+   public synchronized void invalidateAll () {
+      this._entries.clear();
+   }
+
+   /**
+    * Saves a new status for a user and tells every listening session to drop
+    * its cached copy.  The update and the notification go out as one statement
+    * string, so it is a single round trip.
+    *
+    * @param esql the connection to update through
+    * @param login the user's login
+    * @param status the new status message
+    * @throws java.sql.SQLException when the update fails
+    */
+   public void update (Messenger esql, String login, String status) throws java.sql.SQLException {
+      invalidate(login);
+      esql.executeUpdate(String.format(
+         "UPDATE USR SET status = '%s' WHERE login = '%s'; NOTIFY %s", status, login, CHANNEL));
+   }
+
+   // Notifications arrive with the results of whatever query ran last, so checking
+   // them does not cost a round trip.  NOTIFY carries no payload on this server,
+   // so any status change elsewhere clears the whole cache.
+   private void checkNotifications (Messenger esql) {
+      if (esql.hasNotification(CHANNEL))
+         this._entries.clear();
+   }
+
+}//end StatusCache
@@ -0,0 +1,345 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * In-memory directory of all logins for type-ahead lookup, and the
+ * dictionary between logins and the integer user ids other tables store.
+ *
+ * Logins are kept in one sorted String[], with each user's id alongside; a
+ * prefix query binary searches for the first login >= prefix and walks
+ * forward while logins still start with it.  The other way, ids index an
+ * array of logins directly, since they come from a sequence.
+ *
+ * The directory is loaded from USR once.  After that it follows USR_LOG:
+ * every user created or deleted is logged with its id and login and runs
+ * NOTIFY usr_directory (see log_user), and the next lookup after the
+ * notification reads the entries logged since and inserts or removes those
+ * users in place.  As in ChatRoster, the last LOG_OVERLAP log ids are read
+ * again each time, since a change can commit after a later one, and a
+ * directory that has not been looked at for half an hour is loaded again.
+ * A user created since the last look is looked up on its own.
+ *
+ * The tombstone user 0, which deleted accounts' messages belong to, is not
+ * in the directory: it is never suggested and has no id by login.  Its id
+ * still reads back as [deleted].
+ *
+ */
+public class UserDirectory {
+
+   public static final String CHANNEL = "usr_directory";
+
+   private static final int LOG_OVERLAP = 100;
+   private static final long RELOAD_AFTER_MILLIS = 30 * 60 * 1000;
+
+   private String[] _logins = null;
+   private int[] _ids = null;
+   private int _size = 0;
+   // user id -> login
+   private String[] _byId = new String[0];
+
+   private long _checkedAt;
+   // log ids already applied, from LOG_OVERLAP below the highest up
+   private final TreeSet<Integer> _applied = new TreeSet<Integer>();
+   private int _lastChange = 0;
+
+   /**
+    * Subscribes the connection to user creation/deletion from other sessions.
+    */
+   public void listen (Messenger esql) throws SQLException {
+      esql.listen(CHANNEL);
+   }
+
+   /**
+    * Loads the directory if it is not loaded yet or another session changed it.
+    */
+   public synchronized void refresh (Messenger esql) throws SQLException {
+      load(esql);
+   }
+
+   /**
+    * Checks whether a login exists without going to USR.
+    */
+   public synchronized boolean contains (Messenger esql, String login) throws SQLException {
+      load(esql);
+      return Arrays.binarySearch(this._logins, 0, this._size, login) >= 0;
+   }
+
+   /**
+    * Returns a user's id.
+    *
+    * @param esql the connection used if the directory has to be (re)loaded
+    * @param login the user's login
+    * @return the id, or -1 if there is no such user or it is the tombstone
+    * @throws java.sql.SQLException when a lookup fails
+    */
+   public synchronized int id (Messenger esql, String login) throws SQLException {
+      load(esql);
+      login = login.trim();
+      int pos = Arrays.binarySearch(this._logins, 0, this._size, login);
+      if (pos >= 0)
+         return this._ids[pos];
+
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+         String.format("SELECT user_id FROM USR WHERE login = '%s' AND user_id <> %d", login, AccountDeletion.TOMBSTONE_ID));
+      if (result.isEmpty())
+         return -1;
+      int id = Integer.parseInt(result.get(0).get(0));
+      add(login, id);
+      return id;
+   }//end id
+
+   /**
+    * Returns the login of a user id.
+    *
+    * @param esql the connection used if the directory has to be (re)loaded
+    * @param id the user's id
+    * @return the trimmed login, or null if there is no such user
+    * @throws java.sql.SQLException when a lookup fails
+    */
+   public synchronized String login (Messenger esql, int id) throws SQLException {
+      if (id == AccountDeletion.TOMBSTONE_ID)
+         return AccountDeletion.TOMBSTONE_LOGIN;
+      load(esql);
+      if (id >= 0 && id < this._byId.length && this._byId[id] != null)
+         return this._byId[id];
+
+      List<List<String>> result = esql.executeQueryAndReturnResult(
+         String.format("SELECT login FROM USR WHERE user_id = %d", id));
+      if (result.isEmpty())
+         return null;
+      String login = result.get(0).get(0).trim();
+      add(login, id);
+      return login;
+   }//end login
+
+   /**
+    * Returns logins starting with prefix.  Those in preferred (the caller's
+    * contacts) come first, then the rest in alphabetical order.
+    *
+    * @param esql the connection used if the directory has to be (re)loaded
+    * @param prefix the start of the login
+    * @param preferred logins ranked ahead of the others
+    * @param limit the most suggestions to return
+    * @return up to limit matching logins
+    * @throws java.sql.SQLException when loading the directory fails
+    */
+   public synchronized List<String> suggest (Messenger esql, String prefix, Collection<String> preferred, int limit) throws SQLException {
+      load(esql);
+      List<String> result = new ArrayList<String>();
+
+      for (String login : preferred)
+         if (result.size() < limit && login.startsWith(prefix) && !result.contains(login))
+            result.add(login);
+
+      for (int i = lowerBound(prefix); i < this._size && result.size() < limit; ++i) {
+         String login = this._logins[i];
+         if (!login.startsWith(prefix))
+            break;
+         if (!preferred.contains(login))
+            result.add(login);
+      }
+      return result;
+   }//end suggest
+
+   public synchronized void add (String login, int id) {
+      if (this._logins == null)
+         return;
+      int pos = Arrays.binarySearch(this._logins, 0, this._size, login);
+      if (pos >= 0)
+         return;
+      pos = -pos - 1;
+      if (this._size == this._logins.length) {
+         this._logins = Arrays.copyOf(this._logins, this._size + this._size / 2 + 16);
+         this._ids = Arrays.copyOf(this._ids, this._logins.length);
+      }
+      System.arraycopy(this._logins, pos, this._logins, pos + 1, this._size - pos);
+      System.arraycopy(this._ids, pos, this._ids, pos + 1, this._size - pos);
+      this._logins[pos] = login;
+      this._ids[pos] = id;
+      ++this._size;
+
+      if (id >= this._byId.length)
+         this._byId = Arrays.copyOf(this._byId, Math.max(id + 1, this._byId.length + this._byId.length / 2 + 16));
+      this._byId[id] = login;
+   }//end add
+
+   public synchronized void remove (String login) {
+      if (this._logins == null)
+         return;
+      int pos = Arrays.binarySearch(this._logins, 0, this._size, login);
+      if (pos < 0)
+         return;
+      this._byId[this._ids[pos]] = null;
+      System.arraycopy(this._logins, pos + 1, this._logins, pos, this._size - pos - 1);
+      System.arraycopy(this._ids, pos + 1, this._ids, pos, this._size - pos - 1);
+      this._logins[--this._size] = null;
+   }//end remove
+
+   private int lowerBound (String prefix) {
+      int pos = Arrays.binarySearch(this._logins, 0, this._size, prefix);
+      return pos >= 0 ? pos : -pos - 1;
+   }
+
+   private void load (Messenger esql) throws SQLException {
+      long now = System.currentTimeMillis();
+      if (this._logins == null || now - this._checkedAt > RELOAD_AFTER_MILLIS) {
+         // a notification from before the load is covered by it
+         esql.hasNotification(CHANNEL);
+         loadAll(esql);
+      }
+      else if (esql.hasNotification(CHANNEL))
+         catchUp(esql);
+      this._checkedAt = now;
+   }//end load
+
+   private void loadAll (Messenger esql) throws SQLException {
+      esql.executeUpdate("DELETE FROM USR_LOG WHERE logged_at < LOCALTIMESTAMP(0) - interval '1 hour'");
+      // the table and the log position have to come from the same snapshot
+      esql.executeUpdate("BEGIN ISOLATION LEVEL SERIALIZABLE READ ONLY");
+      List<List<String>> result;
+      try{
+         // changes committed by now are in the table; later commits of lower ids are caught up on
+         this._applied.clear();
+         this._lastChange = 0;
+         for (List<String> row : esql.executeQueryAndReturnResult(String.format(
+               "SELECT change_id FROM USR_LOG WHERE change_id > " +
+               "(SELECT COALESCE(MAX(change_id), 0) FROM USR_LOG) - %d", LOG_OVERLAP))) {
+            int change = Integer.parseInt(row.get(0));
+            this._applied.add(change);
+            this._lastChange = Math.max(this._lastChange, change);
+         }
+         result = esql.executeQueryAndReturnResult(
+            "SELECT login, user_id FROM USR WHERE user_id <> " + AccountDeletion.TOMBSTONE_ID);
+      }finally{
+         esql.executeUpdate("COMMIT");
+      }//end try
+
+      String[] logins = new String[result.size()];
+      int maxID = -1;
+      for (int i = 0; i < logins.length; ++i) {
+         logins[i] = result.get(i).get(0).trim();
+         maxID = Math.max(maxID, Integer.parseInt(result.get(i).get(1)));
+      }
+      String[] byId = new String[maxID + 1];
+      for (int i = 0; i < logins.length; ++i)
+         byId[Integer.parseInt(result.get(i).get(1))] = logins[i];
+
+      // sorted in Java so the order matches binarySearch regardless of the database collation
+      Arrays.sort(logins);
+      int[] ids = new int[logins.length];
+      for (int id = 0; id < byId.length; ++id)
+         if (byId[id] != null)
+            ids[Arrays.binarySearch(logins, byId[id])] = id;
+
+      this._logins = logins;
+      this._ids = ids;
+      this._size = logins.length;
+      this._byId = byId;
+   }//end loadAll
+
+   // Applies the users created and deleted since the last look, in the order they were logged.
+   private void catchUp (Messenger esql) throws SQLException {
+      List<List<String>> log = esql.executeQueryAndReturnResult(String.format(
+         "SELECT change_id, user_id, login, added FROM USR_LOG WHERE change_id > %d ORDER BY change_id",
+         this._lastChange - LOG_OVERLAP));
+      for (List<String> entry : log) {
+         int change = Integer.parseInt(entry.get(0));
+         this._lastChange = Math.max(this._lastChange, change);
+         if (!this._applied.add(change))
+            continue;
+         String login = entry.get(2).trim();
+         int id = Integer.parseInt(entry.get(1));
+         if (id == AccountDeletion.TOMBSTONE_ID)
+            continue;
+         if (entry.get(3).trim().startsWith("t"))
+            add(login, id);
+         else
+            remove(login);
+      }
+      this._applied.headSet(this._lastChange - LOG_OVERLAP, true).clear();
+   }//end catchUp
+
+   /**
+    * Compares keying CHAT_LIST and MESSAGE by user id against keying them
+    * by login, as they were before.  Both layouts are built as temporary
+    * copies of the current data with the same indexes, so neither carries
+    * bloat from the migration, and the report shows their index sizes, a
+    * join of the whole of both tables on the user key, and lookups of the
+    * members of random chats together with their USR rows.
+    *
+    * @param esql the connection to query through
+    * @param lookups the number of chats to look up with each layout
+    * @throws java.sql.SQLException when a query fails
+    */
+   public static void benchmark (Messenger esql, int lookups) throws SQLException {
+      List<String> range = esql.executeQueryAndReturnResult(
+         "SELECT MIN(chat_id), MAX(chat_id) FROM CHAT").get(0);
+      if (range.get(0) == null) {
+         System.out.println("\tThere are no chats.");
+         return;
+      }
+      int low = Integer.parseInt(range.get(0));
+      int high = Integer.parseInt(range.get(1));
+
+      esql.executeUpdate(
+         "CREATE TEMP TABLE bench_members_id AS SELECT chat_id, member_id AS member FROM CHAT_LIST;" +
+         "CREATE TEMP TABLE bench_members_login AS SELECT CL.chat_id, U.login AS member FROM CHAT_LIST CL, USR U WHERE U.user_id = CL.member_id;" +
+         "CREATE TEMP TABLE bench_messages_id AS SELECT msg_id, chat_id, sender_id AS sender FROM MESSAGE;" +
+         "CREATE TEMP TABLE bench_messages_login AS SELECT M.msg_id, M.chat_id, U.login AS sender FROM MESSAGE M LEFT JOIN USR U ON U.user_id = M.sender_id;" +
+         "CREATE UNIQUE INDEX bench_members_id_key ON bench_members_id (chat_id, member);" +
+         "CREATE UNIQUE INDEX bench_members_login_key ON bench_members_login (chat_id, member);" +
+         "CREATE INDEX bench_messages_id_sender ON bench_messages_id (sender);" +
+         "CREATE INDEX bench_messages_login_sender ON bench_messages_login (sender);" +
+         "ANALYZE bench_members_id; ANALYZE bench_members_login; ANALYZE bench_messages_id; ANALYZE bench_messages_login");
+      try{
+         System.out.println(String.format("\t%-34s %12s %12s", "", "user id", "login"));
+         sizes(esql, "CHAT_LIST (chat_id, member) index", "bench_members_id_key", "bench_members_login_key");
+         sizes(esql, "MESSAGE sender index", "bench_messages_id_sender", "bench_messages_login_sender");
+         sizes(esql, "CHAT_LIST table", "bench_members_id", "bench_members_login");
+         sizes(esql, "MESSAGE table", "bench_messages_id", "bench_messages_login");
+
+         // every message whose sender is in the chat, matched on the user key
+         String join = "SELECT COUNT(*) FROM bench_messages_%s M, bench_members_%s CL " +
+            "WHERE CL.chat_id = M.chat_id AND CL.member = M.sender";
+         long start = System.nanoTime();
+         esql.executeQueryAndReturnResult(String.format(join, "id", "id"));
+         double byId = (System.nanoTime() - start) / 1e6;
+         start = System.nanoTime();
+         esql.executeQueryAndReturnResult(String.format(join, "login", "login"));
+         double byLogin = (System.nanoTime() - start) / 1e6;
+         System.out.println(String.format("\t%-34s %9.1f ms %9.1f ms", "MESSAGE x CHAT_LIST join", byId, byLogin));
+
+         int[] chats = new int[lookups];
+         Random random = new Random(lookups);
+         for (int i = 0; i < lookups; ++i)
+            chats[i] = low + random.nextInt(high - low + 1);
+         start = System.nanoTime();
+         for (int chat : chats)
+            esql.executeQueryAndReturnResult(String.format(
+               "SELECT U.login, U.status FROM bench_members_id CL, USR U WHERE CL.chat_id = %d AND U.user_id = CL.member", chat));
+         byId = (System.nanoTime() - start) / 1e6 / lookups;
+         start = System.nanoTime();
+         for (int chat : chats)
+            esql.executeQueryAndReturnResult(String.format(
+               "SELECT U.login, U.status FROM bench_members_login CL, USR U WHERE CL.chat_id = %d AND U.login = CL.member", chat));
+         byLogin = (System.nanoTime() - start) / 1e6 / lookups;
+         System.out.println(String.format("\t%-34s %9.3f ms %9.3f ms", "chat members with USR, per chat", byId, byLogin));
+      }finally{
+         esql.executeUpdate("DROP TABLE bench_members_id; DROP TABLE bench_members_login; " +
+            "DROP TABLE bench_messages_id; DROP TABLE bench_messages_login");
+      }//end try
+   }//end benchmark
+
+   private static void sizes (Messenger esql, String what, String byId, String byLogin) throws SQLException {
+      List<String> row = esql.executeQueryAndReturnResult(String.format(
+         "SELECT pg_relation_size('%s'), pg_relation_size('%s')", byId, byLogin)).get(0);
+      System.out.println(String.format("\t%-34s %9.1f MB %9.1f MB", what,
+         Long.parseLong(row.get(0)) / 1048576.0, Long.parseLong(row.get(1)) / 1048576.0));
+   }
+
+}//end UserDirectory
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays more posts than the posting limit's burst from a journal written
+ * offline, and checks that every one of them reaches the database once and
+ * in order.  The database is a stand-in that keeps post_message's sender
+ * bucket: BURST posts at once, then one a second.
+ *
+ * Run from java/ after compiling the sources into classes:
+ *
+ *     javac -cp classes -d classes test/OutboxReplayTest.java
+ *     java -cp classes:lib/pg73jdbc3.jar OutboxReplayTest
+ *
+ */
+public class OutboxReplayTest {
+
+   private static final int BURST = 10;
+   private static final int POSTS = BURST + 4;
+   private static final long REFILL_MILLIS = 1000;
+   private static final long TIMEOUT_MILLIS = 60000;
+
+   // answers what Outbox and UserDirectory ask; offline, every statement fails
+   private static class Database extends Messenger {
+      private final boolean _online;
+      private final Map<String, Integer> _posted = new LinkedHashMap<String, Integer>();
+      private final List<String> _texts = new ArrayList<String>();
+      private long _fullAt = 0;
+      private int _refused = 0;
+
+      Database (boolean online) {
+         this._online = online;
+      }
+
+      public synchronized int executeUpdate (String sql) throws SQLException {
+         check();
+         return 0;
+      }
+
+      public synchronized List<List<String>> executeQueryAndReturnResult (String sql) throws SQLException {
+         check();
+         List<List<String>> rows = new ArrayList<List<String>>();
+         if (sql.startsWith("SELECT login, user_id FROM USR"))
+            rows.add(Arrays.asList("alice", "1"));
+         else if (sql.startsWith("SELECT post_message")) {
+            Matcher m = Pattern.compile("'(.*)', '(.*)'\\)$").matcher(sql);
+            if (!m.find())
+               throw new SQLException("unexpected post: " + sql);
+            rows.add(Arrays.asList(Integer.toString(post(m.group(1), m.group(2)))));
+         }
+         return rows;
+      }
+
+      // as post_message: a post already made returns its number without taking a token
+      private int post (String text, String clientID) {
+         Integer seq = this._posted.get(clientID);
+         if (seq != null)
+            return seq;
+         long now = System.currentTimeMillis();
+         long next = Math.max(this._fullAt, now) + REFILL_MILLIS;
+         if (next - now > REFILL_MILLIS * BURST) {
+            ++this._refused;
+            return -2;
+         }
+         this._fullAt = next;
+         this._texts.add(text);
+         this._posted.put(clientID, this._texts.size());
+         return this._texts.size();
+      }
+
+      private void check () throws SQLException {
+         if (!this._online)
+            throw new SQLException("database unreachable");
+      }
+
+      public boolean isAlive () {
+         return this._online;
+      }
+
+      public void reconnect () throws SQLException {
+         check();
+      }
+
+      public boolean hasNotification (String channel) {
+         return false;
+      }
+
+      public void cleanup () {
+      }
+
+      synchronized List<String> texts () {
+         return new ArrayList<String>(this._texts);
+      }
+
+      synchronized int refused () {
+         return this._refused;
+      }
+   }//end Database
+
+   public static void main (String[] args) throws Exception {
+      File journal = File.createTempFile("outbox", ".journal");
+      journal.deleteOnExit();
+
+      // written while the database is away: everything stays in the journal
+      Outbox offline = new Outbox(journal, new Database(false), new UserDirectory());
+      List<String> expected = new ArrayList<String>();
+      for (int i = 0; i < POSTS; ++i) {
+         expected.add("message " + i);
+         offline.post(1, "alice", "message " + i);
+      }
+      offline.close();
+
+      // back online: the journal is replayed against the posting limit
+      Database database = new Database(true);
+      Outbox online = new Outbox(journal, database, new UserDirectory());
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (database.texts().size() < POSTS && System.currentTimeMillis() < deadline)
+         Thread.sleep(100);
+      online.close();
+
+      // nothing may be left over to send again
+      Database after = new Database(true);
+      Outbox reopened = new Outbox(journal, after, new UserDirectory());
+      Thread.sleep(500);
+      reopened.close();
+
+      List<String> delivered = database.texts();
+      boolean ok = delivered.equals(expected) && after.texts().isEmpty() && database.refused() > 0;
+      System.out.println(String.format("%d of %d posts delivered in order, %d refused by the limit and retried, %d sent again: %s",
+         delivered.size(), POSTS, database.refused(), after.texts().size(), ok ? "OK" : "FAILED"));
+      if (!ok) {
+         System.out.println("delivered: " + delivered);
+         System.exit(1);
+      }
+   }//end main
+
+}//end OutboxReplayTest
@@ -1,5 +1,8 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# refuse to reload from data files that would fail part way through a COPY
+java -cp $DIR/../../java/classes DatasetChecker $DIR/../../data || exit 1
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_functions.sql
 psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
\ No newline at end of file
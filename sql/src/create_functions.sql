@@ -0,0 +1,448 @@
+CREATE LANGUAGE plpgsql;
+
+/* Contact and block list changes.
+ * Each function runs as one statement, so all of its steps commit or roll back
+ * together and the client needs a single round trip. The result tells the
+ * client what happened:
+ *   'missing' - the other user does not exist, or is the tombstone user 0
+ *   'blocked' - (add_contact) the other user has blocked p_owner
+ *   'exists'  - the user is already in the list
+ *   'added'   - the user was added to the list
+ */
+
+-- Adds p_contact to p_owner's contact list, lifting any block p_owner had on them.
+CREATE OR REPLACE FUNCTION add_contact(p_owner bpchar, p_contact bpchar) RETURNS text AS $$
+DECLARE
+	owner_lists RECORD;
+	contact_block_list integer;
+BEGIN
+	SELECT INTO contact_block_list block_list FROM USR WHERE login = p_contact AND user_id <> 0;
+	IF NOT FOUND THEN
+		RETURN 'missing';
+	END IF;
+
+	PERFORM 1 FROM USER_LIST_CONTAINS WHERE list_id = contact_block_list AND list_member = p_owner;
+	IF FOUND THEN
+		RETURN 'blocked';
+	END IF;
+
+	SELECT INTO owner_lists block_list, contact_list FROM USR WHERE login = p_owner;
+
+	DELETE FROM USER_LIST_CONTAINS WHERE list_id = owner_lists.block_list AND list_member = p_contact;
+
+	PERFORM 1 FROM USER_LIST_CONTAINS WHERE list_id = owner_lists.contact_list AND list_member = p_contact;
+	IF FOUND THEN
+		RETURN 'exists';
+	END IF;
+
+	INSERT INTO USER_LIST_CONTAINS VALUES (owner_lists.contact_list, p_contact);
+	RETURN 'added';
+
+EXCEPTION
+	-- another session added the same contact between the check and the insert
+	WHEN unique_violation THEN
+		RETURN 'exists';
+END;
+$$ LANGUAGE plpgsql;
+
+-- Adds p_blocked to p_owner's block list and removes them from each other's contacts.
+CREATE OR REPLACE FUNCTION add_block(p_owner bpchar, p_blocked bpchar) RETURNS text AS $$
+DECLARE
+	owner_lists RECORD;
+	blocked_contact_list integer;
+BEGIN
+	SELECT INTO blocked_contact_list contact_list FROM USR WHERE login = p_blocked AND user_id <> 0;
+	IF NOT FOUND THEN
+		RETURN 'missing';
+	END IF;
+
+	SELECT INTO owner_lists block_list, contact_list FROM USR WHERE login = p_owner;
+
+	DELETE FROM USER_LIST_CONTAINS WHERE list_id = owner_lists.contact_list AND list_member = p_blocked;
+	DELETE FROM USER_LIST_CONTAINS WHERE list_id = blocked_contact_list AND list_member = p_owner;
+
+	PERFORM 1 FROM USER_LIST_CONTAINS WHERE list_id = owner_lists.block_list AND list_member = p_blocked;
+	IF FOUND THEN
+		RETURN 'exists';
+	END IF;
+
+	INSERT INTO USER_LIST_CONTAINS VALUES (owner_lists.block_list, p_blocked);
+	RETURN 'added';
+
+EXCEPTION
+	WHEN unique_violation THEN
+		RETURN 'exists';
+END;
+$$ LANGUAGE plpgsql;
+
+/* Deletes a chat with its messages and member list in one transaction.
+ * With p_owner (a user_id) given, only a chat started by p_owner is
+ * deleted; NULL skips that check (used by the admin purge).
+ * Returns the number of messages removed, or -1 if there was no such chat.
+ */
+CREATE OR REPLACE FUNCTION delete_chat(p_chat integer, p_owner integer) RETURNS integer AS $$
+DECLARE
+	removed integer;
+BEGIN
+	-- lock the chat row so no one posts into it while it is being deleted
+	PERFORM 1 FROM CHAT WHERE chat_id = p_chat AND (p_owner IS NULL OR owner_id = p_owner) FOR UPDATE;
+	IF NOT FOUND THEN
+		RETURN -1;
+	END IF;
+
+	PERFORM clear_members(p_chat);
+
+	DELETE FROM MESSAGE WHERE chat_id = p_chat;
+	GET DIAGNOSTICS removed = ROW_COUNT;
+
+	DELETE FROM CHAT WHERE chat_id = p_chat;
+
+	RETURN removed;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Posts a message and returns its number within the chat (MESSAGE.seq), -1
+ * if the chat does not exist, or -2 if the sender or the chat is over its
+ * posting limit.  Numbers go 1, 2, 3... per chat with no gaps: the CHAT
+ * row is locked before CHAT.last_seq is read, so they are handed out one
+ * at a time, and a failed insert rolls the bump back with it.  The same
+ * update marks the chat active (see ChatPurge.purgeIdle) and takes the
+ * chat's posting token.  The timestamp and msg_id are filled in here too,
+ * so posting is a single round trip.
+ *
+ * p_sender is the sender's user_id.  p_client is an id the client made up
+ * for the message, or NULL.  Posting the same id again returns the number
+ * of the first copy instead of adding a second one, so a client that lost
+ * the answer can simply retry.
+ *
+ * The limits hold for every client together: a sender may post 10
+ * messages at once, then one a second (see take_token), and a chat may
+ * receive 20 at once, then five a second.  The chat's bucket is kept on its
+ * CHAT row (posts_full_at, as RATE_BUCKET.full_at), which is locked and
+ * checked first: a post to a missing or busy chat costs the sender nothing.
+ * A retry of a post that went through is not counted again.
+ */
+CREATE OR REPLACE FUNCTION post_message(p_chat integer, p_sender integer, p_text text, p_client bpchar) RETURNS integer AS $$
+DECLARE
+	next_seq integer;
+	chat_full timestamp;
+	next_full timestamp;
+BEGIN
+	SELECT INTO next_seq seq FROM MESSAGE WHERE client_id = p_client;
+	IF FOUND THEN
+		RETURN next_seq;
+	END IF;
+
+	SELECT INTO next_seq, chat_full last_seq + 1, posts_full_at FROM CHAT WHERE chat_id = p_chat FOR UPDATE;
+	IF NOT FOUND THEN
+		RETURN -1;
+	END IF;
+	next_full := GREATEST(chat_full, LOCALTIMESTAMP) + interval '200 milliseconds';
+	IF next_full - LOCALTIMESTAMP > interval '200 milliseconds' * 20 THEN
+		PERFORM count_refused('chat');
+		RETURN -2;
+	END IF;
+	IF NOT take_token('sender:' || CAST(p_sender AS text), interval '1 second', 10) THEN
+		RETURN -2;
+	END IF;
+
+	UPDATE CHAT SET last_seq = next_seq, last_active = LOCALTIMESTAMP(0), posts_full_at = next_full
+	WHERE chat_id = p_chat;
+
+	INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_id, chat_id, seq, client_id)
+	VALUES (p_text, LOCALTIMESTAMP(0), p_sender, p_chat, next_seq, p_client);
+
+	-- a sender who had read everything has still read everything
+	UPDATE CHAT_LIST SET read_seq = next_seq
+	WHERE chat_id = p_chat AND member_id = p_sender AND read_seq = next_seq - 1;
+
+	RETURN next_seq;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Marks a chat as read by p_member (a user_id) up to message number p_seq, or up to
+ * its last message when p_seq is NULL.  Never moves backwards, and does
+ * not write when nothing changes.
+ */
+CREATE OR REPLACE FUNCTION mark_read(p_chat integer, p_member integer, p_seq integer) RETURNS void AS $$
+DECLARE
+	seq integer;
+BEGIN
+	seq := p_seq;
+	IF seq IS NULL THEN
+		SELECT INTO seq last_seq FROM CHAT WHERE chat_id = p_chat;
+	END IF;
+
+	UPDATE CHAT_LIST SET read_seq = seq
+	WHERE chat_id = p_chat AND member_id = p_member AND read_seq < seq;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Membership changes, for the members index every client keeps (see
+ * ChatRoster).  Each added or removed CHAT_LIST row logs its chat and wakes
+ * the clients, which re-read the rosters of the chats logged since they
+ * last looked.  Clients prune entries older than an hour.  Chats whose
+ * members are changed in bulk (member_count -1, see clear_members) are
+ * logged once by the bulk change instead.
+ */
+CREATE OR REPLACE FUNCTION log_membership() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		PERFORM 1 FROM CHAT WHERE chat_id = NEW.chat_id AND member_count < 0;
+	ELSE
+		PERFORM 1 FROM CHAT WHERE chat_id = OLD.chat_id AND member_count < 0;
+	END IF;
+	IF FOUND THEN
+		RETURN NULL;
+	END IF;
+
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO CHAT_LIST_LOG (chat_id, logged_at) VALUES (NEW.chat_id, LOCALTIMESTAMP(0));
+	ELSE
+		INSERT INTO CHAT_LIST_LOG (chat_id, logged_at) VALUES (OLD.chat_id, LOCALTIMESTAMP(0));
+	END IF;
+	NOTIFY chat_roster;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER chat_list_log AFTER INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE log_membership();
+
+/* Users created and deleted, for the login directory every client keeps
+ * (see UserDirectory).  Each USR row added or removed is logged with its id
+ * and login, and wakes the clients, which apply the entries logged since
+ * they last looked.  Clients prune entries older than an hour.
+ */
+CREATE OR REPLACE FUNCTION log_user() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO USR_LOG (user_id, login, added, logged_at) VALUES (NEW.user_id, NEW.login, true, LOCALTIMESTAMP(0));
+	ELSE
+		INSERT INTO USR_LOG (user_id, login, added, logged_at) VALUES (OLD.user_id, OLD.login, false, LOCALTIMESTAMP(0));
+	END IF;
+	NOTIFY usr_directory;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER usr_log AFTER INSERT OR DELETE ON USR
+	FOR EACH ROW EXECUTE PROCEDURE log_user();
+
+/* CHAT.member_count follows CHAT_LIST, and chat_type follows the count: a
+ * chat of more than two members is a group.  Both change with the member
+ * row, in the same statement, and a new member marks the chat active.  It runs before the row is written, so the
+ * CHAT row is locked for update before the foreign key check locks it for
+ * share; concurrent adds and removes then queue up on that lock instead of
+ * deadlocking or counting from a stale value.  A chat counted -1 is having
+ * its members changed in bulk, and is counted again once that is done.
+ */
+CREATE OR REPLACE FUNCTION count_members() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		UPDATE CHAT SET member_count = member_count + 1,
+			chat_type = CASE WHEN member_count + 1 > 2 THEN 'group' ELSE 'private' END,
+			last_active = LOCALTIMESTAMP(0)
+		WHERE chat_id = NEW.chat_id AND member_count >= 0;
+		RETURN NEW;
+	END IF;
+	UPDATE CHAT SET member_count = member_count - 1,
+		chat_type = CASE WHEN member_count - 1 > 2 THEN 'group' ELSE 'private' END
+	WHERE chat_id = OLD.chat_id AND member_count >= 0;
+	RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER chat_member_count BEFORE INSERT OR DELETE ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE count_members();
+
+/* Bulk membership changes.  The row triggers above would update the CHAT
+ * row, log the chat and NOTIFY once for every member row; these lock the
+ * chats and set member_count to -1, which the triggers skip, and then count
+ * and log each chat once and NOTIFY once.  Other sessions never see the -1:
+ * they wait on the row lock and find the new count.
+ *
+ * clear_members takes everyone out of a chat and returns the number of
+ * members removed, or -1 if there is no such chat.  leave_chats takes p_member (a user_id) out
+ * of every chat and returns how many chats they left.
+ */
+CREATE OR REPLACE FUNCTION clear_members(p_chat integer) RETURNS integer AS $$
+DECLARE
+	removed integer;
+BEGIN
+	UPDATE CHAT SET member_count = -1 WHERE chat_id = p_chat;
+	IF NOT FOUND THEN
+		RETURN -1;
+	END IF;
+
+	DELETE FROM CHAT_LIST WHERE chat_id = p_chat;
+	GET DIAGNOSTICS removed = ROW_COUNT;
+
+	UPDATE CHAT SET member_count = 0, chat_type = 'private' WHERE chat_id = p_chat;
+	IF removed > 0 THEN
+		INSERT INTO CHAT_LIST_LOG (chat_id, logged_at) VALUES (p_chat, LOCALTIMESTAMP(0));
+		NOTIFY chat_roster;
+	END IF;
+	RETURN removed;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION leave_chats(p_member integer) RETURNS integer AS $$
+DECLARE
+	chats integer[];
+	left_chats integer;
+	members integer;
+BEGIN
+	chats := ARRAY(SELECT chat_id FROM CHAT_LIST WHERE member_id = p_member ORDER BY chat_id);
+	left_chats := COALESCE(array_upper(chats, 1), 0);
+	IF left_chats = 0 THEN
+		RETURN 0;
+	END IF;
+
+	-- in chat order, so two of these never lock the same chats crosswise
+	FOR i IN 1..left_chats LOOP
+		UPDATE CHAT SET member_count = -1 WHERE chat_id = chats[i];
+	END LOOP;
+
+	DELETE FROM CHAT_LIST WHERE member_id = p_member;
+
+	FOR i IN 1..left_chats LOOP
+		SELECT INTO members COUNT(*) FROM CHAT_LIST WHERE chat_id = chats[i];
+		UPDATE CHAT SET member_count = members,
+			chat_type = CASE WHEN members > 2 THEN 'group' ELSE 'private' END
+		WHERE chat_id = chats[i];
+		INSERT INTO CHAT_LIST_LOG (chat_id, logged_at) VALUES (chats[i], LOCALTIMESTAMP(0));
+	END LOOP;
+	NOTIFY chat_roster;
+	RETURN left_chats;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Adds p_member (a user_id) to a chat, or takes them out of it, in one
+ * round trip.  Returns the chat's member count afterwards, so the caller
+ * sees whether this change turned the chat into a group or back into a
+ * private chat, or -1 if there was nothing to do: the member was already
+ * in the chat, or (remove_chat_member) was not in it.  add_chat_member
+ * returns -2 for the tombstone user 0 and for ids below it.
+ */
+CREATE OR REPLACE FUNCTION add_chat_member(p_chat integer, p_member integer) RETURNS integer AS $$
+DECLARE
+	members integer;
+BEGIN
+	IF p_member <= 0 THEN
+		RETURN -2;
+	END IF;
+	INSERT INTO CHAT_LIST (chat_id, member_id) VALUES (p_chat, p_member);
+	SELECT INTO members member_count FROM CHAT WHERE chat_id = p_chat;
+	RETURN members;
+
+EXCEPTION
+	-- another session added the same member first
+	WHEN unique_violation THEN
+		RETURN -1;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION remove_chat_member(p_chat integer, p_member integer) RETURNS integer AS $$
+DECLARE
+	members integer;
+BEGIN
+	DELETE FROM CHAT_LIST WHERE chat_id = p_chat AND member_id = p_member;
+	IF NOT FOUND THEN
+		RETURN -1;
+	END IF;
+	SELECT INTO members member_count FROM CHAT WHERE chat_id = p_chat;
+	RETURN members;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Rate limits shared by every client.  A bucket is kept as the time at which
+ * it is full again (a missing row is a full bucket): a take is allowed while
+ * that time is at most p_burst intervals ahead, and moves it one interval on.
+ * The bucket row is locked for the take, so concurrent sessions queue up on
+ * it instead of both spending the last token.  Each bucket counts the takes
+ * it allowed and refused; see prune_rate_buckets for where they go after.
+ * Stale buckets are pruned whenever a new one is made, so the table only
+ * grows with the keys in use.
+ */
+CREATE OR REPLACE FUNCTION take_token(p_key text, p_every interval, p_burst integer) RETURNS boolean AS $$
+DECLARE
+	bucket_full timestamp;
+	next_full timestamp;
+BEGIN
+	SELECT INTO bucket_full full_at FROM RATE_BUCKET WHERE bucket_key = p_key FOR UPDATE;
+	IF NOT FOUND THEN
+		PERFORM prune_rate_buckets();
+		BEGIN
+			INSERT INTO RATE_BUCKET (bucket_key, full_at, taken) VALUES (p_key, LOCALTIMESTAMP + p_every, 1);
+			RETURN true;
+		EXCEPTION
+			-- another session made the bucket first
+			WHEN unique_violation THEN
+				SELECT INTO bucket_full full_at FROM RATE_BUCKET WHERE bucket_key = p_key FOR UPDATE;
+		END;
+	END IF;
+
+	next_full := GREATEST(bucket_full, LOCALTIMESTAMP) + p_every;
+	IF next_full - LOCALTIMESTAMP > p_every * p_burst THEN
+		UPDATE RATE_BUCKET SET refused = refused + 1 WHERE bucket_key = p_key;
+		RETURN false;
+	END IF;
+	UPDATE RATE_BUCKET SET full_at = next_full, taken = taken + 1 WHERE bucket_key = p_key;
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Drops the buckets that have been full for an hour, which are the same as
+ * missing ones, after adding their counts to RATE_TOTAL under the kind of
+ * key ('login', 'sender').  The stale rows are locked in key
+ * order before they are counted, so two sessions pruning at once cannot
+ * count the same bucket twice or lock each other's rows crosswise.
+ */
+CREATE OR REPLACE FUNCTION prune_rate_buckets() RETURNS void AS $$
+DECLARE
+	stale RECORD;
+BEGIN
+	PERFORM 1 FROM RATE_BUCKET WHERE full_at < LOCALTIMESTAMP - interval '1 hour' ORDER BY bucket_key FOR UPDATE;
+	FOR stale IN SELECT split_part(bucket_key, ':', 1) AS bucket_kind,
+			SUM(taken) AS bucket_taken, SUM(refused) AS bucket_refused
+			FROM RATE_BUCKET WHERE full_at < LOCALTIMESTAMP - interval '1 hour' GROUP BY 1 LOOP
+		UPDATE RATE_TOTAL SET taken = taken + stale.bucket_taken, refused = refused + stale.bucket_refused
+		WHERE kind = stale.bucket_kind;
+		IF NOT FOUND THEN
+			INSERT INTO RATE_TOTAL (kind, taken, refused)
+			VALUES (stale.bucket_kind, stale.bucket_taken, stale.bucket_refused);
+		END IF;
+	END LOOP;
+	DELETE FROM RATE_BUCKET WHERE full_at < LOCALTIMESTAMP - interval '1 hour';
+END;
+$$ LANGUAGE plpgsql;
+
+/* Counts a refusal under p_kind in RATE_TOTAL, for limits kept outside
+ * RATE_BUCKET (see post_message).
+ */
+CREATE OR REPLACE FUNCTION count_refused(p_kind varchar) RETURNS void AS $$
+BEGIN
+	UPDATE RATE_TOTAL SET refused = refused + 1 WHERE kind = p_kind;
+	IF NOT FOUND THEN
+		BEGIN
+			INSERT INTO RATE_TOTAL (kind, refused) VALUES (p_kind, 1);
+		EXCEPTION
+			-- another session counted the first one
+			WHEN unique_violation THEN
+				UPDATE RATE_TOTAL SET refused = refused + 1 WHERE kind = p_kind;
+		END;
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+/* Takes a login attempt for p_login (see Credentials): 5 at once, then one
+ * every 10 seconds per login.  There is no limit per client: every client
+ * connects from the server's own host, so a bucket keyed on the address
+ * would be one bucket that any client could drain for all the others.
+ */
+CREATE OR REPLACE FUNCTION take_login_attempt(p_login bpchar) RETURNS boolean AS $$
+BEGIN
+	RETURN take_token('login:' || rtrim(p_login), interval '10 seconds', 5);
+END;
+$$ LANGUAGE plpgsql;
@@ -19,3 +19,25 @@ SELECT insert_index();
 DROP FUNCTION insert_index();*/
 
 CREATE INDEX msgTimestamp ON MESSAGE USING BTREE(msg_timestamp);
+
+
+/* Messages of one chat by age: purging idle chats and archiving old messages. */
+CREATE INDEX msgChatTimestamp ON MESSAGE USING BTREE(chat_id, msg_timestamp);
+
+/* Messages of one chat in order (see post_message): paging through its
+ * history newest first, "new since" queries and a chat's latest message. */
+CREATE UNIQUE INDEX msgChatSeq ON MESSAGE USING BTREE(chat_id, seq);
+
+/* Messages by the id their client gave them (see Outbox), so a replayed
+ * post finds the copy that already went through. */
+CREATE UNIQUE INDEX msgClientId ON MESSAGE USING BTREE(client_id);
+
+/* What points at one user, for deleting their account (see AccountDeletion):
+ * the messages they sent, the chats they own and the chats they are in. */
+CREATE INDEX msgSender ON MESSAGE USING BTREE(sender_id);
+CREATE INDEX chatOwner ON CHAT USING BTREE(owner_id);
+CREATE INDEX chatListMember ON CHAT_LIST USING BTREE(member_id);
+
+/* Rate limit buckets by when they are full again, so the stale ones are
+ * dropped without a scan (see prune_rate_buckets). */
+CREATE INDEX rateBucketFull ON RATE_BUCKET USING BTREE(full_at);
@@ -1,4 +1,9 @@
+DROP TABLE RATE_TOTAL;
+DROP TABLE RATE_BUCKET;
+DROP TABLE ACCOUNT_DELETION;
 DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST_LOG;
+DROP TABLE USR_LOG;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
 DROP TABLE USER_LIST_CONTAINS;
@@ -11,9 +16,10 @@ CREATE TABLE USER_LIST(
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
+	user_id serial UNIQUE NOT NULL,
 	login char(50), 
 	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
+	password varchar(128) NOT NULL,
 	status char(140),
 	block_list integer,
 	contact_list integer,
@@ -31,25 +37,70 @@ CREATE TABLE USER_LIST_CONTAINS(
 CREATE TABLE CHAT(
 	chat_id serial, 
 	chat_type char(50) NOT NULL,
-	init_sender char(50),
+	owner_id integer,
+	member_count integer NOT NULL DEFAULT 0,
+	last_seq integer NOT NULL DEFAULT 0,
+	last_active timestamp NOT NULL DEFAULT LOCALTIMESTAMP(0),
+	posts_full_at timestamp,
 	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login));
+	FOREIGN KEY(owner_id) REFERENCES USR(user_id));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login), 
+	member_id integer,
+	read_seq integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(chat_id,member_id), 
+	FOREIGN KEY(member_id) REFERENCES USR(user_id), 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+CREATE TABLE CHAT_LIST_LOG(
+	change_id serial,
+	chat_id integer NOT NULL,
+	logged_at timestamp NOT NULL,
+	PRIMARY KEY(change_id));
+
+CREATE TABLE USR_LOG(
+	change_id serial,
+	user_id integer NOT NULL,
+	login char(50) NOT NULL,
+	added boolean NOT NULL,
+	logged_at timestamp NOT NULL,
+	PRIMARY KEY(change_id));
+
 CREATE TABLE MESSAGE(
 	msg_id serial, 
 	msg_text char(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
-	sender_login char(50),
+	sender_id integer,
 	chat_id integer,
+	seq integer,
+	client_id char(32),
 	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login),
+	FOREIGN KEY(sender_id) REFERENCES USR(user_id),
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
+CREATE TABLE ACCOUNT_DELETION(
+	user_id integer,
+	login char(50) NOT NULL,
+	requested_at timestamp NOT NULL,
+	messages_total integer NOT NULL DEFAULT 0,
+	messages_moved integer NOT NULL DEFAULT 0,
+	claimed_by char(36),
+	claimed_at timestamp,
+	PRIMARY KEY(user_id),
+	FOREIGN KEY(user_id) REFERENCES USR(user_id));
+
+CREATE TABLE RATE_BUCKET(
+	bucket_key varchar(80),
+	full_at timestamp NOT NULL,
+	taken bigint NOT NULL DEFAULT 0,
+	refused bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(bucket_key));
+
+CREATE TABLE RATE_TOTAL(
+	kind varchar(16),
+	taken bigint NOT NULL DEFAULT 0,
+	refused bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(kind));
+
 
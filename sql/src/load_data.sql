@@ -1,32 +1,78 @@
 COPY USER_LIST
 FROM '/class/classes/dding002/ChitterChatter/data/usr_list.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
+-- Sequences continue after the highest id loaded, so generated data sets of any size load too.
+SELECT setval('user_list_list_id_seq', COALESCE(MAX(list_id), 0) + 1, false) FROM USER_LIST;
 
-COPY USR
+-- user_id comes from its sequence; the data files name users by login.
+-- Clients load the whole directory at start, so a bulk load needs no log.
+ALTER TABLE USR DISABLE TRIGGER usr_log;
+COPY USR (login, phoneNum, password, status, block_list, contact_list)
 FROM '/class/classes/dding002/ChitterChatter/data/usr.csv'
 WITH DELIMITER ';';
 
+-- the tombstone user, who keeps the messages of deleted accounts (see AccountDeletion)
+INSERT INTO USR (user_id, login, phoneNum, password) VALUES (0, '[deleted]', '', 'pbkdf2$deleted');
+ALTER TABLE USR ENABLE TRIGGER usr_log;
+
 COPY USER_LIST_CONTAINS
 FROM '/class/classes/dding002/ChitterChatter/data/usr_list_contains.csv'
 WITH DELIMITER ';';
 
-COPY CHAT
+-- chats, members and messages are staged as they are in the files and
+-- stored with the user_id of the login
+CREATE TEMP TABLE chat_load (chat_id integer, chat_type char(50), init_sender char(50));
+COPY chat_load
 FROM '/class/classes/dding002/ChitterChatter/data/chat.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
+INSERT INTO CHAT (chat_id, chat_type, owner_id)
+	SELECT L.chat_id, L.chat_type, U.user_id FROM chat_load L LEFT JOIN USR U ON U.login = L.init_sender;
+DROP TABLE chat_load;
+SELECT setval('chat_chat_id_seq', COALESCE(MAX(chat_id), 0) + 1, false) FROM CHAT;
 
-COPY CHAT_LIST
+CREATE TEMP TABLE chat_list_load (chat_id integer, member char(50));
+COPY chat_list_load
 FROM '/class/classes/dding002/ChitterChatter/data/chat_list.csv'
 WITH DELIMITER ';';
+-- clients build their members index from the whole table, so a bulk load needs no log
+-- and member counts are worked out once at the end rather than row by row
+ALTER TABLE CHAT_LIST DISABLE TRIGGER chat_list_log;
+ALTER TABLE CHAT_LIST DISABLE TRIGGER chat_member_count;
+INSERT INTO CHAT_LIST (chat_id, member_id)
+	SELECT L.chat_id, U.user_id FROM chat_list_load L, USR U WHERE U.login = L.member;
+ALTER TABLE CHAT_LIST ENABLE TRIGGER chat_list_log;
+ALTER TABLE CHAT_LIST ENABLE TRIGGER chat_member_count;
+UPDATE CHAT SET member_count = (SELECT COUNT(*) FROM CHAT_LIST L WHERE L.chat_id = CHAT.chat_id);
+UPDATE CHAT SET chat_type = CASE WHEN member_count > 2 THEN 'group' ELSE 'private' END;
+DROP TABLE chat_list_load;
 
-COPY MESSAGE
-	(msg_id, 
-	msg_text, 
-	msg_timestamp, 
-	sender_login,
-	chat_id)
+CREATE TEMP TABLE message_load
+	(msg_id integer, 
+	msg_text char(300), 
+	msg_timestamp timestamp, 
+	sender_login char(50),
+	chat_id integer);
+COPY message_load
 FROM '/class/classes/dding002/ChitterChatter/data/message.csv'
 WITH DELIMITER ';';
-ALTER SEQUENCE message_msg_id_seq RESTART 50000;
+INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_id, chat_id)
+	SELECT L.msg_id, L.msg_text, L.msg_timestamp, U.user_id, L.chat_id
+	FROM message_load L LEFT JOIN USR U ON U.login = L.sender_login;
+DROP TABLE message_load;
+SELECT setval('message_msg_id_seq', COALESCE(MAX(msg_id), 0) + 1, false) FROM MESSAGE;
+
 
+-- Number each chat's messages 1, 2, 3... in the order they were sent (see
+-- post_message in create_functions.sql); all loaded history counts as
+-- read.
+CREATE TEMP SEQUENCE message_order;
+CREATE TEMP TABLE message_rank AS SELECT msg_id, chat_id, nextval('message_order') AS n
+	FROM (SELECT msg_id, chat_id FROM MESSAGE ORDER BY chat_id, msg_timestamp, msg_id) AS ordered;
+CREATE TEMP TABLE chat_first AS SELECT chat_id, MIN(n) AS n FROM message_rank GROUP BY chat_id;
+UPDATE MESSAGE SET seq = R.n - F.n + 1 FROM message_rank R, chat_first F
+	WHERE MESSAGE.msg_id = R.msg_id AND F.chat_id = R.chat_id;
+UPDATE CHAT SET last_seq = COALESCE((SELECT MAX(seq) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), 0);
+-- a chat was last active when its last message was sent; one without any counts from the load
+UPDATE CHAT SET last_active = COALESCE((SELECT MAX(msg_timestamp) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), last_active);
+UPDATE CHAT_LIST SET read_seq = (SELECT C.last_seq FROM CHAT C WHERE C.chat_id = CHAT_LIST.chat_id);
+ALTER TABLE MESSAGE ALTER COLUMN seq SET NOT NULL;
@@ -0,0 +1,156 @@
+/* Brings a database created with the original create_tables.sql and
+ * create_indexes.sql, which has no functions, up to date in one step.
+ * The steps are not guarded (this server has no IF NOT EXISTS for columns
+ * and indexes), so the script must run exactly once, and must stop at the
+ * first error instead of going on half applied:
+ *
+ *     psql -v ON_ERROR_STOP=1 -f upgrade.sql <dbname>
+ *     psql -v ON_ERROR_STOP=1 -f create_functions.sql <dbname>
+ *
+ * create_functions.sql then adds the functions and the triggers the new
+ * columns and tables are kept by.  A second run of this script fails on its
+ * first step and changes nothing. */
+
+-- Messages of one chat by age, for batched purging and archiving (see
+-- ChatPurge and ChatArchive).  As the first step it is also what stops a
+-- second run.
+CREATE INDEX msgChatTimestamp ON MESSAGE USING BTREE(chat_id, msg_timestamp);
+
+-- Passwords are stored as PBKDF2 hashes, which do not fit in char(50).
+-- Existing plaintext passwords are hashed by the client on the next login.
+ALTER TABLE USR ALTER COLUMN password TYPE varchar(128);
+
+-- Per-chat message numbers replace timestamp ordering (see post_message),
+-- and each member has a read position among them (see mark_read).
+-- Everything already in the database counts as read.  msg_id now comes from
+-- its sequence.
+ALTER TABLE CHAT_LIST ADD COLUMN read_seq integer;
+ALTER TABLE MESSAGE ADD COLUMN seq integer;
+ALTER TABLE CHAT ADD COLUMN last_seq integer;
+CREATE TEMP SEQUENCE message_order;
+CREATE TEMP TABLE message_rank AS SELECT msg_id, chat_id, nextval('message_order') AS n
+	FROM (SELECT msg_id, chat_id FROM MESSAGE ORDER BY chat_id, msg_timestamp, msg_id) AS ordered;
+CREATE TEMP TABLE chat_first AS SELECT chat_id, MIN(n) AS n FROM message_rank GROUP BY chat_id;
+UPDATE MESSAGE SET seq = R.n - F.n + 1 FROM message_rank R, chat_first F
+	WHERE MESSAGE.msg_id = R.msg_id AND F.chat_id = R.chat_id;
+UPDATE CHAT SET last_seq = COALESCE((SELECT MAX(seq) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), 0);
+ALTER TABLE CHAT ALTER COLUMN last_seq SET DEFAULT 0;
+ALTER TABLE CHAT ALTER COLUMN last_seq SET NOT NULL;
+UPDATE CHAT_LIST SET read_seq = (SELECT C.last_seq FROM CHAT C WHERE C.chat_id = CHAT_LIST.chat_id);
+ALTER TABLE CHAT_LIST ALTER COLUMN read_seq SET DEFAULT 0;
+ALTER TABLE CHAT_LIST ALTER COLUMN read_seq SET NOT NULL;
+ALTER TABLE MESSAGE ALTER COLUMN seq SET NOT NULL;
+CREATE UNIQUE INDEX msgChatSeq ON MESSAGE USING BTREE(chat_id, seq);
+SELECT setval('message_msg_id_seq', COALESCE(MAX(msg_id), 0) + 1, false) FROM MESSAGE;
+
+-- Client ids on messages make posting idempotent (see Outbox).
+ALTER TABLE MESSAGE ADD COLUMN client_id char(32);
+CREATE UNIQUE INDEX msgClientId ON MESSAGE USING BTREE(client_id);
+
+-- Log of membership changes for the clients' members index (see ChatRoster),
+-- filled by the chat_list_log trigger.
+CREATE TABLE CHAT_LIST_LOG(
+	change_id serial,
+	chat_id integer NOT NULL,
+	logged_at timestamp NOT NULL,
+	PRIMARY KEY(change_id));
+
+-- Integer user ids replace logins in the tables that point at users (see
+-- UserDirectory).  Contact and block lists keep logins, so they can be
+-- listed in login order from their key.  Every row is rewritten, so the
+-- tables are compacted at the end.
+
+CREATE SEQUENCE usr_user_id_seq;
+ALTER TABLE USR ADD COLUMN user_id integer;
+UPDATE USR SET user_id = nextval('usr_user_id_seq');
+ALTER TABLE USR ALTER COLUMN user_id SET DEFAULT nextval('usr_user_id_seq');
+ALTER TABLE USR ALTER COLUMN user_id SET NOT NULL;
+ALTER TABLE USR ADD UNIQUE (user_id);
+
+ALTER TABLE CHAT ADD COLUMN owner_id integer;
+UPDATE CHAT SET owner_id = (SELECT U.user_id FROM USR U WHERE U.login = CHAT.init_sender);
+ALTER TABLE CHAT DROP COLUMN init_sender;
+ALTER TABLE CHAT ADD FOREIGN KEY (owner_id) REFERENCES USR(user_id);
+
+ALTER TABLE CHAT_LIST ADD COLUMN member_id integer;
+UPDATE CHAT_LIST SET member_id = (SELECT U.user_id FROM USR U WHERE U.login = CHAT_LIST.member);
+ALTER TABLE CHAT_LIST DROP CONSTRAINT chat_list_pkey;
+ALTER TABLE CHAT_LIST DROP COLUMN member;
+ALTER TABLE CHAT_LIST ALTER COLUMN member_id SET NOT NULL;
+ALTER TABLE CHAT_LIST ADD PRIMARY KEY (chat_id, member_id);
+ALTER TABLE CHAT_LIST ADD FOREIGN KEY (member_id) REFERENCES USR(user_id);
+
+ALTER TABLE MESSAGE ADD COLUMN sender_id integer;
+UPDATE MESSAGE SET sender_id = (SELECT U.user_id FROM USR U WHERE U.login = MESSAGE.sender_login);
+ALTER TABLE MESSAGE DROP COLUMN sender_login;
+ALTER TABLE MESSAGE ADD FOREIGN KEY (sender_id) REFERENCES USR(user_id);
+
+VACUUM FULL CHAT;
+VACUUM FULL CHAT_LIST;
+VACUUM FULL MESSAGE;
+REINDEX TABLE CHAT_LIST;
+REINDEX TABLE MESSAGE;
+
+-- Accounts are deleted in the background (see AccountDeletion): messages go
+-- to a tombstone user, owned chats to another member, and progress is kept
+-- in ACCOUNT_DELETION.  The indexes find what points at a user.
+INSERT INTO USR (user_id, login, phoneNum, password) VALUES (0, '[deleted]', '', 'pbkdf2$deleted');
+CREATE TABLE ACCOUNT_DELETION(
+	user_id integer,
+	login char(50) NOT NULL,
+	requested_at timestamp NOT NULL,
+	messages_total integer NOT NULL DEFAULT 0,
+	messages_moved integer NOT NULL DEFAULT 0,
+	claimed_by char(36),
+	claimed_at timestamp,
+	PRIMARY KEY(user_id),
+	FOREIGN KEY(user_id) REFERENCES USR(user_id));
+CREATE INDEX msgSender ON MESSAGE USING BTREE(sender_id);
+CREATE INDEX chatOwner ON CHAT USING BTREE(owner_id);
+CREATE INDEX chatListMember ON CHAT_LIST USING BTREE(member_id);
+
+-- Chats carry their member count, kept by the chat_member_count trigger
+-- along with chat_type (see count_members).
+ALTER TABLE CHAT ADD COLUMN member_count integer;
+UPDATE CHAT SET member_count = (SELECT COUNT(*) FROM CHAT_LIST L WHERE L.chat_id = CHAT.chat_id);
+UPDATE CHAT SET chat_type = CASE WHEN member_count > 2 THEN 'group' ELSE 'private' END;
+ALTER TABLE CHAT ALTER COLUMN member_count SET DEFAULT 0;
+ALTER TABLE CHAT ALTER COLUMN member_count SET NOT NULL;
+
+-- Chats carry when they last had a message or a new member (see
+-- post_message and count_members), which is what purge-idle goes by.  A
+-- chat without messages counts from the upgrade.
+ALTER TABLE CHAT ADD COLUMN last_active timestamp;
+UPDATE CHAT SET last_active = COALESCE((SELECT MAX(msg_timestamp) FROM MESSAGE M WHERE M.chat_id = CHAT.chat_id), LOCALTIMESTAMP(0));
+ALTER TABLE CHAT ALTER COLUMN last_active SET DEFAULT LOCALTIMESTAMP(0);
+ALTER TABLE CHAT ALTER COLUMN last_active SET NOT NULL;
+
+-- Login attempts and message posts are rate limited on the server, per
+-- login and per sender in buckets every client shares, and per chat on the
+-- CHAT row (see post_message).  Buckets count what they allowed and
+-- refused, and pruned buckets add their counts to RATE_TOTAL (see
+-- take_token and prune_rate_buckets).
+ALTER TABLE CHAT ADD COLUMN posts_full_at timestamp;
+CREATE TABLE RATE_BUCKET(
+	bucket_key varchar(80),
+	full_at timestamp NOT NULL,
+	taken bigint NOT NULL DEFAULT 0,
+	refused bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(bucket_key));
+CREATE TABLE RATE_TOTAL(
+	kind varchar(16),
+	taken bigint NOT NULL DEFAULT 0,
+	refused bigint NOT NULL DEFAULT 0,
+	PRIMARY KEY(kind));
+CREATE INDEX rateBucketFull ON RATE_BUCKET USING BTREE(full_at);
+
+-- Log of users created and deleted, so clients update their login directory
+-- in place instead of reloading it (see UserDirectory), filled by the usr_log
+-- trigger.
+CREATE TABLE USR_LOG(
+	change_id serial,
+	user_id integer NOT NULL,
+	login char(50) NOT NULL,
+	added boolean NOT NULL,
+	logged_at timestamp NOT NULL,
+	PRIMARY KEY(change_id));